@@ -0,0 +1,10 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+
+# Example: ./bench.sh benchDB 5432 user --load ../data --scale 1,10 --threads 4
+# --load truncates the shop tables of the target database before loading.
+mkdir -p bin-bench
+javac -cp "lib/postgresql-42.1.4.jar" src/*.java bench/*.java -d bin-bench/ || exit 1
+java -cp lib/*:bin-bench/ ShopBenchmark $DBNAME $PORT $USER "${@:4}"
@@ -0,0 +1,515 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Benchmark harness for the data-access paths behind the ten menu choices.
+ * Each operation runs for a warmup period and then a measured period on a
+ * number of threads; the harness prints throughput, p50/p99/max latency,
+ * bytes allocated per operation and errors. The dataset scale factor and
+ * the connection/statement strategy are parameters, and every combination
+ * of the values given is measured.
+ *
+ * With --load the harness truncates the shop tables of the target database
+ * and loads code/data/*.csv scale times, with ids and VINs shifted per copy.
+ * Only point it at a database you can throw away.
+ *
+ * Usage: ShopBenchmark <dbname> <port> <user> [--load <dataDir>] [--scale 1,10]
+ *        [--strategy cached,plain] [--threads 4] [--pool 8] [--warmup 5]
+ *        [--measure 10] [--k 10] [--ops addCustomer,report10,...]
+ *
+ */
+public class ShopBenchmark {
+
+	/**
+	 * One benchmarked operation. Implementations must be safe to call from
+	 * several threads at once.
+	 */
+	interface Op {
+		void run(MechanicShop esql, Random rnd) throws Exception;
+	}
+
+	/**
+	 * Row handler touching every column, standing in for a report consumer
+	 * without the cost of printing.
+	 */
+	static final ReportRows CONSUME = new ReportRows() {
+		public void values(String... values) {
+		}
+	};
+
+	//reference data read once per run, used to pick valid keys
+	private static List<String> lnames = new ArrayList<String>();
+	private static int[] ownerIds = new int[0];
+	private static String[] ownedVins = new String[0];
+	private static int[] mechanicIds = new int[0];
+	private static int maxRid = 0;
+	private static int k = 10;
+	//VINs of cars added by the benchmark: BZ + 14 digits never collides with data VINs
+	private static final AtomicLong vinCounter = new AtomicLong((System.currentTimeMillis() % 100000000L) * 1000000L);
+
+	private static final Map<String, Op> OPS = new LinkedHashMap<String, Op>();
+	static {
+		OPS.put("addCustomer", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.addCustomer("Bench", lnames.get(rnd.nextInt(lnames.size())), "(555)555-0100", "1 Bench Street");
+			}
+		});
+		OPS.put("addMechanic", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.addMechanic("Bench", "Mechanic", rnd.nextInt(40));
+			}
+		});
+		OPS.put("addCar", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				String vin = "BZ" + String.format("%014d", vinCounter.incrementAndGet());
+				esql.addCar(ownerIds[rnd.nextInt(ownerIds.length)], vin, "Bench", "Model", 1970 + rnd.nextInt(50));
+			}
+		});
+		// ten cars per call in one statement; compare with ten addCar calls
+		OPS.put("addFleet10", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				List<Car> cars = new ArrayList<Car>();
+				for (int i = 0; i < 10; ++i) {
+					cars.add(new Car("BZ" + String.format("%014d", vinCounter.incrementAndGet()), "Bench", "Model",
+						1970 + rnd.nextInt(50)));
+				}
+				esql.addCars(ownerIds[rnd.nextInt(ownerIds.length)], cars);
+			}
+		});
+		OPS.put("insertServiceRequest", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				int i = rnd.nextInt(ownerIds.length);
+				esql.insertServiceRequest(ownerIds[i], ownedVins[i], "5/20/2016", 1 + rnd.nextInt(200000), "Bench complaint");
+			}
+		});
+		OPS.put("closeServiceRequest", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				int mid = mechanicIds[rnd.nextInt(mechanicIds.length)];
+				int rid = rnd.nextInt(maxRid + 1);
+				// same validation round trips the menu makes before inserting
+				// on or after the opening date of every generated request
+				if (esql.mechanicExists(mid) && esql.serviceRequestOpenedBy(rid, "1/7/2017")) {
+					esql.closeServiceRequest(rid, mid, "1/7/2017", "Bench comment", 1 + rnd.nextInt(1000));
+				}
+			}
+		});
+		OPS.put("lnameLookup", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.findCustomersByLName(lnames.get(rnd.nextInt(lnames.size())), MechanicShop.CUSTOMER_LOOKUP_LIMIT);
+			}
+		});
+		// a last name with one letter dropped; run with -Dmechanicshop.search=true
+		// to look it up in memory, without it only the prefix is found
+		OPS.put("customerSearch", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				String lname = lnames.get(rnd.nextInt(lnames.size())).trim();
+				if (lname.length() > 1) {
+					int drop = rnd.nextInt(lname.length());
+					lname = lname.substring(0, drop) + lname.substring(drop + 1);
+				}
+				esql.searchCustomers(lname, MechanicShop.CUSTOMER_LOOKUP_LIMIT);
+			}
+		});
+		// one page of an owner's cars past a VIN, bypassing the first-page
+		// cache; run with addFleet10 to see it stay flat as fleets grow
+		OPS.put("carPage", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				int i = rnd.nextInt(ownerIds.length);
+				esql.findCarsOwned(ownerIds[i], null, null, ownedVins[i], MechanicShop.CAR_PAGE_SIZE);
+			}
+		});
+		OPS.put("report6", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.listCustomersWithBillLessThan100(CONSUME);
+			}
+		});
+		OPS.put("report7", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.listCustomersWithMoreThan20Cars(CONSUME);
+			}
+		});
+		OPS.put("report8", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.listCarsBefore1995With50000Milles(CONSUME);
+			}
+		});
+		OPS.put("report9", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.listKCarsWithTheMostServices(k, CONSUME);
+			}
+		});
+		// k cars from the in-memory ranking at any depth; compare with report9
+		OPS.put("topCarsPage", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.topCarsByServices(rnd.nextInt(1000), k);
+			}
+		});
+		OPS.put("report10", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				esql.listCustomersInDescendingOrderOfTheirTotalBill(CONSUME);
+			}
+		});
+		// same 100 customers read through List<List<String>> and through the
+		// typed Customer mapper; compare the alloc/op column
+		OPS.put("mapStrings", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				List<List<String>> rows = esql.executeQueryAndReturnResult("bench.mapStrings",
+					"SELECT " + Customer.COLUMNS + " FROM Customer ORDER BY id LIMIT 100");
+				long sum = 0;
+				for (List<String> row : rows) {
+					sum += Integer.parseInt(row.get(0)) + row.get(4).trim().length();
+				}
+				if (sum < 0) throw new IllegalStateException();
+			}
+		});
+		OPS.put("mapTyped", new Op() {
+			public void run(MechanicShop esql, Random rnd) throws Exception {
+				List<Customer> rows = esql.executeQueryForList("bench.mapTyped",
+					"SELECT " + Customer.COLUMNS + " FROM Customer ORDER BY id LIMIT 100", Customer.MAPPER);
+				long sum = 0;
+				for (Customer c : rows) {
+					sum += c.id + c.address.length();
+				}
+				if (sum < 0) throw new IllegalStateException();
+			}
+		});
+	}
+
+	/**
+	 * Latencies and counters of one thread for one operation.
+	 */
+	private static class Sample {
+		long[] latencies = new long[1 << 12];
+		int count = 0;
+		long errors = 0;
+		long allocated = 0;
+		Throwable firstError = null;
+
+		void add(long nanos) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = nanos;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: ShopBenchmark <dbname> <port> <user> [--load <dataDir>] [--scale 1,10]"
+				+ " [--strategy cached,plain] [--threads 4] [--pool 8] [--warmup 5] [--measure 10] [--k 10] [--ops a,b]");
+			return;
+		}
+		String dbname = args[0];
+		String port = args[1];
+		String user = args[2];
+		String dataDir = null;
+		String[] scales = {"1"};
+		String[] strategies = {"cached", "plain"};
+		int threads = 4;
+		String pool = "8";
+		int warmup = 5;
+		int measure = 10;
+		List<String> ops = new ArrayList<String>(OPS.keySet());
+		for (int i = 3; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("--load")) dataDir = value;
+			else if (args[i].equals("--scale")) scales = value.split(",");
+			else if (args[i].equals("--strategy")) strategies = value.split(",");
+			else if (args[i].equals("--threads")) threads = Integer.parseInt(value);
+			else if (args[i].equals("--pool")) pool = value;
+			else if (args[i].equals("--warmup")) warmup = Integer.parseInt(value);
+			else if (args[i].equals("--measure")) measure = Integer.parseInt(value);
+			else if (args[i].equals("--k")) k = Integer.parseInt(value);
+			else if (args[i].equals("--ops")) ops = Arrays.asList(value.split(","));
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		for (String op : ops) {
+			if (!OPS.containsKey(op)) {
+				throw new IllegalArgumentException("Unknown operation " + op + ", expected one of " + OPS.keySet());
+			}
+		}
+		Class.forName("org.postgresql.Driver");
+		System.setProperty("mechanicshop.pool.max", pool);
+
+		System.out.println(String.format("%-6s %-8s %-22s %8s %10s %10s %10s %10s %12s %7s",
+			"scale", "strategy", "operation", "threads", "ops/s", "p50(us)", "p99(us)", "max(us)", "alloc/op(B)", "errors"));
+		for (String scale : scales) {
+			for (String strategy : strategies) {
+				if (strategy.equals("cached")) {
+					System.setProperty("mechanicshop.statementCache", "true");
+					System.clearProperty("mechanicshop.prepareThreshold");
+				}
+				else if (strategy.equals("plain")) {
+					// a fresh statement per call that is never prepared server side
+					System.setProperty("mechanicshop.statementCache", "false");
+					System.setProperty("mechanicshop.prepareThreshold", "0");
+				}
+				else {
+					throw new IllegalArgumentException("Unknown strategy " + strategy + ", expected cached or plain");
+				}
+				MechanicShop esql = new MechanicShop(dbname, port, user, "");
+				try {
+					new SchemaMigration(esql.getConnectionPool()).migrate();
+					if (dataDir != null && strategy.equals(strategies[0])) {
+						load(esql, dataDir, Integer.parseInt(scale));
+					}
+					esql.initiateSequences();
+					esql.initiateAnalytics();
+					esql.initiateWriteBehind();
+					esql.initiateSearch();
+					readReferenceData(esql);
+					for (String op : ops) {
+						run(esql, scale, strategy, op, OPS.get(op), threads, warmup, measure);
+					}
+					for (LookupCache<?, ?> cache : esql.getLookupCaches()) {
+						System.out.println("       lookup cache " + cache.stats());
+					}
+				}finally {
+					esql.cleanup();
+				}
+			}
+		}
+	}//end main
+
+	/**
+	 * Runs op on threads threads for warmup seconds, then for measure seconds
+	 * while recording every call, and prints one result line.
+	 */
+	private static void run(final MechanicShop esql, String scale, String strategy, String name, final Op op,
+			int threads, int warmup, int measure) throws InterruptedException {
+		final long warmupEnd = System.nanoTime() + warmup * 1000000000L;
+		final long measureEnd = warmupEnd + measure * 1000000000L;
+		final Sample[] samples = new Sample[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final Sample sample = samples[t] = new Sample();
+			final Random rnd = new Random(31L * t + name.hashCode());
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					long allocStart = -1;
+					while (true) {
+						long start = System.nanoTime();
+						if (start >= measureEnd) break;
+						boolean measured = start >= warmupEnd;
+						if (measured && allocStart < 0) allocStart = allocatedBytes();
+						try {
+							op.run(esql, rnd);
+							if (measured) sample.add(System.nanoTime() - start);
+						}catch (Exception e) {
+							if (measured) {
+								++sample.errors;
+								if (sample.firstError == null) sample.firstError = e;
+							}
+						}
+					}
+					if (allocStart >= 0) sample.allocated = allocatedBytes() - allocStart;
+				}
+			}, "bench-" + name + "-" + t);
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		int total = 0;
+		long errors = 0;
+		long allocated = 0;
+		Throwable firstError = null;
+		for (Sample s : samples) {
+			total += s.count;
+			errors += s.errors;
+			allocated += s.allocated;
+			if (firstError == null) firstError = s.firstError;
+		}
+		long[] all = new long[total];
+		int pos = 0;
+		for (Sample s : samples) {
+			System.arraycopy(s.latencies, 0, all, pos, s.count);
+			pos += s.count;
+		}
+		Arrays.sort(all);
+		long calls = total + errors;
+		System.out.println(String.format("%-6s %-8s %-22s %8d %10.1f %10d %10d %10d %12d %7d",
+			scale, strategy, name, threads, total / (double) measure,
+			percentile(all, 0.50) / 1000, percentile(all, 0.99) / 1000, total == 0 ? 0 : all[total - 1] / 1000,
+			calls == 0 ? 0 : allocated / calls, errors));
+		if (firstError != null) {
+			System.out.println("       first error: " + firstError.getMessage());
+		}
+	}//end run
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * @return bytes allocated so far by the calling thread, or 0 if the JVM cannot tell
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/**
+	 * Reads the keys the operations pick from: last names, (owner, vin)
+	 * pairs, mechanic ids and the largest rid.
+	 */
+	private static void readReferenceData(MechanicShop esql) throws SQLException {
+		lnames = new ArrayList<String>();
+		for (List<String> row : esql.executeQueryAndReturnResult("bench.lnames",
+				"SELECT DISTINCT rtrim(lname) FROM Customer LIMIT 10000")) {
+			lnames.add(row.get(0));
+		}
+		List<Owns> owns = esql.executeQueryForList("bench.owns",
+			"SELECT " + Owns.COLUMNS + " FROM Owns LIMIT 100000", Owns.MAPPER);
+		ownerIds = new int[owns.size()];
+		ownedVins = new String[owns.size()];
+		for (int i = 0; i < owns.size(); ++i) {
+			ownerIds[i] = owns.get(i).customerId;
+			ownedVins[i] = owns.get(i).carVin;
+		}
+		List<List<String>> mechanics = esql.executeQueryAndReturnResult("bench.mechanics", "SELECT id FROM Mechanic LIMIT 10000");
+		mechanicIds = new int[mechanics.size()];
+		for (int i = 0; i < mechanicIds.length; ++i) {
+			mechanicIds[i] = Integer.parseInt(mechanics.get(i).get(0));
+		}
+		List<List<String>> rid = esql.executeQueryAndReturnResult("bench.maxRid", "SELECT COALESCE(max(rid), 0) FROM Service_Request");
+		maxRid = Integer.parseInt(rid.get(0).get(0));
+		if (lnames.isEmpty() || ownerIds.length == 0 || mechanicIds.length == 0) {
+			throw new IllegalStateException("The benchmark database has no data; run with --load <dataDir>");
+		}
+	}
+
+	/**
+	 * Tables in load order, with the CSV file and the number of leading
+	 * fields that need shifting per copy: {table, file, fields}
+	 */
+	private static final String[][] TABLES = {
+		{"Customer", "customer.csv", "1"},
+		{"Mechanic", "mechanic.csv", "1"},
+		{"Car", "car.csv", "1"},
+		{"Owns", "owns.csv", "3"},
+		{"Service_Request", "service_request.csv", "3"},
+		{"Closed_Request", "closed_request.csv", "3"}
+	};
+
+	/**
+	 * Replaces the shop data with scale copies of the CSV files in dataDir.
+	 * Copy r shifts every id by r times (max id + 1) of its table and
+	 * replaces the first two characters of every VIN with a code starting
+	 * with a digit, which data VINs never do.
+	 */
+	private static void load(MechanicShop esql, String dataDir, int scale) throws SQLException, IOException {
+		if (scale < 1 || scale > 360) {
+			throw new IllegalArgumentException("Scale factor must be between 1 and 360");
+		}
+		int customerStride = maxId(dataDir + "/customer.csv");
+		int mechanicStride = maxId(dataDir + "/mechanic.csv");
+		int ownsStride = maxId(dataDir + "/owns.csv");
+		int ridStride = maxId(dataDir + "/service_request.csv");
+		int widStride = maxId(dataDir + "/closed_request.csv");
+
+		ConnectionPool.ShopConnection conn = esql.getConnectionPool().borrow();
+		try {
+			Connection connection = conn.connection();
+			Statement stmt = connection.createStatement();
+			stmt.executeUpdate("TRUNCATE Customer, Mechanic, Car, Owns, Service_Request, Closed_Request,"
+				+ " Car_Service_Count, Customer_Bill_Total");
+			stmt.close();
+			CopyManager copy = ((PGConnection) connection).getCopyAPI();
+			for (String[] table : TABLES) {
+				long start = System.nanoTime();
+				long rows = 0;
+				int fields = Integer.parseInt(table[2]);
+				for (int r = 0; r < scale; ++r) {
+					StringBuilder chunk = new StringBuilder();
+					BufferedReader reader = new BufferedReader(new FileReader(dataDir + "/" + table[1]));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (line.trim().isEmpty()) continue;
+						String[] f = line.split(",", fields + 1);
+						if (table[0].equals("Customer")) f[0] = shift(f[0], r, customerStride);
+						else if (table[0].equals("Mechanic")) f[0] = shift(f[0], r, mechanicStride);
+						else if (table[0].equals("Car")) f[0] = vin(f[0], r);
+						else if (table[0].equals("Owns")) {
+							f[0] = shift(f[0], r, ownsStride);
+							f[1] = shift(f[1], r, customerStride);
+							f[2] = vin(f[2], r);
+						}
+						else if (table[0].equals("Service_Request")) {
+							f[0] = shift(f[0], r, ridStride);
+							f[1] = shift(f[1], r, customerStride);
+							f[2] = vin(f[2], r);
+						}
+						else {
+							f[0] = shift(f[0], r, widStride);
+							f[1] = shift(f[1], r, ridStride);
+							f[2] = shift(f[2], r, mechanicStride);
+						}
+						for (int i = 0; i < f.length; ++i) {
+							if (i > 0) chunk.append(',');
+							chunk.append(f[i]);
+						}
+						chunk.append('\n');
+						++rows;
+					}
+					reader.close();
+					copy.copyIn("COPY " + table[0] + " FROM STDIN WITH DELIMITER ','", new StringReader(chunk.toString()));
+				}
+				long ms = (System.nanoTime() - start) / 1000000;
+				System.out.println("Loaded " + rows + " rows into " + table[0] + " in " + ms + " ms");
+			}
+			stmt = connection.createStatement();
+			stmt.execute("ANALYZE");
+			stmt.close();
+		}catch (SQLException e) {
+			conn.failed(e);
+			throw e;
+		}finally {
+			esql.getConnectionPool().release(conn);
+		}
+	}//end load
+
+	private static int maxId(String file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		int max = -1;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int comma = line.indexOf(',');
+			if (comma > 0) max = Math.max(max, Integer.parseInt(line.substring(0, comma).trim()));
+		}
+		reader.close();
+		return max + 1;
+	}
+
+	private static String shift(String id, int copy, int stride) {
+		return copy == 0 ? id : Integer.toString(Integer.parseInt(id.trim()) + copy * stride);
+	}
+
+	private static String vin(String vin, int copy) {
+		if (copy == 0) return vin;
+		String code = "" + (char) ('0' + copy / 36) + Character.forDigit(copy % 36, 36);
+		return code.toUpperCase() + vin.trim().substring(2);
+	}
+}
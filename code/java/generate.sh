@@ -0,0 +1,4 @@
+#! /bin/bash
+# Writes a dataset shaped like ../data, SCALE times its size, into OUTDIR.
+# Example: ./generate.sh ../data /tmp/shop100 100 8
+java -cp bin/ DataGenerator "$@"
@@ -4,4 +4,24 @@ PORT=$2
 USER=$3
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER
+# Extra arguments run a non-interactive command, e.g.
+#          ./run.sh flightDB 5432 user ingest service_request feed.csv
+#          ./run.sh flightDB 5432 user load ../data
+#          ./run.sh flightDB 5432 user server 5166   (then: nc localhost 5166)
+#          ./run.sh flightDB 5432 user api 5167
+#          (loopback only; -Dmechanicshop.server.bind=0.0.0.0 in JAVA_OPTS opens them to the network)
+# JVM options go in JAVA_OPTS, e.g. latency metrics for Prometheus:
+#          JAVA_OPTS=-Dmechanicshop.metrics.port=9466 ./run.sh flightDB 5432 user server
+# or a log of statements slower than 200 ms with their plans:
+#          JAVA_OPTS="-Dmechanicshop.slowQuery.ms=200 -Dmechanicshop.slowQuery.explain=true" ./run.sh flightDB 5432 user
+# or request tables partitioned by month, keeping two years online (PostgreSQL 11+):
+#          JAVA_OPTS="-Dmechanicshop.partition=true -Dmechanicshop.partition.keepMonths=24" ./run.sh flightDB 5432 user
+# or reports answered from an in-memory copy of the tables, at most 5 s behind:
+#          JAVA_OPTS="-Dmechanicshop.analytics=true -Dmechanicshop.analytics.refresh=5000" ./run.sh flightDB 5432 user
+# or reports split into 4 key ranges run on 4 connections at once:
+#          JAVA_OPTS=-Dmechanicshop.report.parallel=4 ./run.sh flightDB 5432 user
+# or service requests acknowledged once journaled and inserted in batches behind the clerk:
+#          JAVA_OPTS="-Dmechanicshop.writeBehind=true -Dmechanicshop.writeBehind.dir=journal" ./run.sh flightDB 5432 user server
+# or customers looked up in memory, also by misspelled last names and by phone:
+#          JAVA_OPTS=-Dmechanicshop.search=true ./run.sh flightDB 5432 user
+java $JAVA_OPTS -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER "${@:4}"
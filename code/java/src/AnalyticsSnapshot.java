@@ -0,0 +1,687 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Column-oriented copy of Customer, Car, Owns, Service_Request and
+ * Closed_Request held in the JVM, so the five reports run here instead of
+ * on the database the front desks write to. Every column is a primitive
+ * array (ids, bills, dates as epoch days, make and model as dictionary
+ * codes) and a report is a fork/join scan over row ranges whose inner
+ * loops the JIT can vectorize; the partial results of the ranges are
+ * merged as the tasks join.
+ *
+ * A background thread reads new rows every mechanicshop.analytics.refresh
+ * ms and reloads everything every mechanicshop.analytics.reload ms. New
+ * rows are found by id; ids come from sequence blocks, so rows committed
+ * out of id order are found as long as they fall within
+ * mechanicshop.analytics.overlap ids of the highest one loaded. Reports
+ * may therefore lag the database by one refresh. Rows are never updated
+ * or deleted by the shop; such changes only show after a reload.
+ *
+ */
+public class AnalyticsSnapshot {
+	//rows scanned by one fork/join leaf
+	private static final int GRAIN = 1 << 16;
+	//day number below every date, for reports over the whole history
+	public static final int ALL_DAYS = Integer.MIN_VALUE;
+
+	/**
+	 * Growable int column.
+	 */
+	private static final class Ints {
+		int[] values = new int[1024];
+		int size = 0;
+
+		void add(int v) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = v;
+		}
+
+		void addAll(Ints other) {
+			for (int i = 0; i < other.size; ++i) {
+				add(other.values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Codes for the distinct strings of a column.
+	 */
+	private static final class Dictionary {
+		final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		final ArrayList<String> strings = new ArrayList<String>();
+
+		int code(String s) {
+			Integer code = codes.get(s);
+			if (code == null) {
+				code = strings.size();
+				codes.put(s, code);
+				strings.add(s);
+			}
+			return code;
+		}
+	}
+
+	/**
+	 * The columns of every table; rows already present are skipped, so an
+	 * overlapping refresh adds nothing twice.
+	 */
+	private static final class Store {
+		//indexed by customer id
+		String[] fname = new String[1024];
+		String[] lname = new String[1024];
+		int maxCustomerId = -1;
+
+		final HashMap<String, Integer> carRow = new HashMap<String, Integer>();
+		final Dictionary makes = new Dictionary();
+		final Dictionary models = new Dictionary();
+		final Ints carMake = new Ints();
+		final Ints carModel = new Ints();
+		final Ints carYear = new Ints();
+
+		final BitSet ownsLoaded = new BitSet();
+		final Ints ownsCustomer = new Ints();
+		int maxOwnsId = -1;
+
+		//row of each rid, -1 where none
+		int[] requestRow = new int[1024];
+		final Ints requestCustomer = new Ints();
+		final Ints requestCar = new Ints();
+		final Ints requestDate = new Ints();
+		final Ints requestOdometer = new Ints();
+		int maxRid = -1;
+
+		final BitSet closedLoaded = new BitSet();
+		final Ints closedRid = new Ints();
+		final Ints closedDate = new Ints();
+		final Ints closedBill = new Ints();
+		final ArrayList<String> closedComment = new ArrayList<String>();
+		int maxWid = -1;
+
+		Store() {
+			Arrays.fill(requestRow, -1);
+		}
+
+		void addCustomer(int id, String first, String last) {
+			if (id >= fname.length) {
+				int size = Math.max(id + 1, fname.length * 2);
+				fname = Arrays.copyOf(fname, size);
+				lname = Arrays.copyOf(lname, size);
+			}
+			fname[id] = first;
+			lname[id] = last;
+			maxCustomerId = Math.max(maxCustomerId, id);
+		}
+
+		void addCar(String vin, String make, String model, int year) {
+			if (carRow.containsKey(vin)) {
+				return;
+			}
+			carRow.put(vin, carMake.size);
+			carMake.add(makes.code(make));
+			carModel.add(models.code(model));
+			carYear.add(year);
+		}
+
+		void addOwns(int ownershipId, int customerId) {
+			if (ownsLoaded.get(ownershipId)) {
+				return;
+			}
+			ownsLoaded.set(ownershipId);
+			ownsCustomer.add(customerId);
+			maxOwnsId = Math.max(maxOwnsId, ownershipId);
+		}
+
+		void addRequest(int rid, int customerId, String vin, int day, int odometer) {
+			if (rid >= requestRow.length) {
+				int old = requestRow.length;
+				requestRow = Arrays.copyOf(requestRow, Math.max(rid + 1, old * 2));
+				Arrays.fill(requestRow, old, requestRow.length, -1);
+			}
+			if (requestRow[rid] >= 0) {
+				return;
+			}
+			Integer car = carRow.get(vin);
+			requestRow[rid] = requestCustomer.size;
+			requestCustomer.add(customerId);
+			requestCar.add(car == null ? -1 : car);
+			requestDate.add(day);
+			requestOdometer.add(odometer);
+			maxRid = Math.max(maxRid, rid);
+		}
+
+		void addClosed(int wid, int rid, int day, String comment, int bill) {
+			if (closedLoaded.get(wid)) {
+				return;
+			}
+			closedLoaded.set(wid);
+			closedRid.add(rid);
+			closedDate.add(day);
+			closedComment.add(comment);
+			closedBill.add(bill);
+			maxWid = Math.max(maxWid, wid);
+		}
+	}//end Store
+
+	/**
+	 * Work of a scan on one range of rows, and how two partial results combine.
+	 */
+	private interface Kernel<R> {
+		R leaf(int lo, int hi);
+
+		R merge(R left, R right);
+	}
+
+	private static final class Scan<R> extends RecursiveTask<R> {
+		private static final long serialVersionUID = 1L;
+
+		private final Kernel<R> _kernel;
+		private final int _lo;
+		private final int _hi;
+
+		Scan(Kernel<R> kernel, int lo, int hi) {
+			this._kernel = kernel;
+			this._lo = lo;
+			this._hi = hi;
+		}
+
+		protected R compute() {
+			if (_hi - _lo <= GRAIN) {
+				return _kernel.leaf(_lo, _hi);
+			}
+			int mid = (_lo + _hi) >>> 1;
+			Scan<R> left = new Scan<R>(_kernel, _lo, mid);
+			left.fork();
+			R right = new Scan<R>(_kernel, mid, _hi).compute();
+			return _kernel.merge(left.join(), right);
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final ForkJoinPool _workers;
+	private final long _refreshMs;
+	private final long _reloadMs;
+	private final int _overlap;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	//replaced by a reload, appended to by a refresh, both on the refresh thread only
+	private volatile Store _store;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param esql shop whose tables are copied
+	 * @param threads fork/join parallelism of the reports
+	 */
+	public AnalyticsSnapshot(MechanicShop esql, int threads) {
+		this._esql = esql;
+		this._workers = new ForkJoinPool(threads);
+		this._refreshMs = Long.getLong("mechanicshop.analytics.refresh", 5000L);
+		this._reloadMs = Long.getLong("mechanicshop.analytics.reload", 3600000L);
+		this._overlap = Integer.getInteger("mechanicshop.analytics.overlap", 10000);
+	}
+
+	/**
+	 * Loads every table, then keeps the copy up to date in a background thread.
+	 *
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	public void start() throws SQLException {
+		long begin = System.nanoTime();
+		_store = load(new Store(), false);
+		System.out.println("Analytics snapshot loaded: " + _store.requestCustomer.size + " service requests, "
+			+ _store.closedBill.size + " closed requests in " + (System.nanoTime() - begin) / 1000000 + " ms");
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				long loadedAt = System.currentTimeMillis();
+				while (!_closed) {
+					try {
+						Thread.sleep(_refreshMs);
+						if (System.currentTimeMillis() - loadedAt >= _reloadMs) {
+							_store = load(new Store(), false);
+							loadedAt = System.currentTimeMillis();
+						}
+						else {
+							load(_store, true);
+						}
+					}catch (InterruptedException e) {
+						return;
+					}catch (SQLException e) {
+						System.err.println("Analytics refresh failed: " + e.getMessage());
+					}catch (RuntimeException e) {
+						// the store may be half updated: the next refresh reloads it whole
+						System.err.println("Analytics refresh failed: " + e);
+						loadedAt = 0;
+					}
+				}
+			}
+		}, "analytics-refresh");
+		thread.setDaemon(true);
+		thread.start();
+	}//end start
+
+	public void close() {
+		_closed = true;
+		_workers.shutdown();
+	}
+
+	/**
+	 * A table read into rows of objects, applied to a store at once for a
+	 * full load, or after every table was read for a refresh.
+	 */
+	private abstract static class Reader implements RowHandler {
+		final Store target;
+		final List<Object[]> rows = new ArrayList<Object[]>();
+
+		/**
+		 * @param target store rows go straight into, or null to keep them in rows
+		 */
+		Reader(Store target) {
+			this.target = target;
+		}
+
+		abstract Object[] read(ResultSet rs) throws SQLException;
+
+		abstract void apply(Store store, Object[] row);
+
+		public void row(ResultSet rs) throws SQLException {
+			Object[] row = read(rs);
+			if (target != null) {
+				apply(target, row);
+			}
+			else {
+				rows.add(row);
+			}
+		}
+
+		void applyAll(Store store) {
+			for (Object[] row : rows) {
+				apply(store, row);
+			}
+		}
+	}
+
+	/**
+	 * Reads every table into store, or with incremental only the rows past
+	 * the highest ids store already has, which are then added under the
+	 * write lock.
+	 *
+	 * @return store
+	 */
+	private Store load(final Store store, boolean incremental) throws SQLException {
+		int fromCustomer = -1, fromOwns = -1, fromRid = -1, fromWid = -1;
+		if (incremental) {
+			fromCustomer = store.maxCustomerId - _overlap;
+			fromOwns = store.maxOwnsId - _overlap;
+			fromRid = store.maxRid - _overlap;
+			fromWid = store.maxWid - _overlap;
+		}
+		Store direct = incremental ? null : store;
+		Reader customers = new Reader(direct) {
+			Object[] read(ResultSet rs) throws SQLException {
+				return new Object[] {rs.getInt(1), rs.getString(2), rs.getString(3)};
+			}
+
+			void apply(Store s, Object[] row) {
+				s.addCustomer((Integer) row[0], (String) row[1], (String) row[2]);
+			}
+		};
+		Reader cars = new Reader(direct) {
+			Object[] read(ResultSet rs) throws SQLException {
+				return new Object[] {rs.getString(1), rs.getString(2), rs.getString(3), rs.getInt(4)};
+			}
+
+			void apply(Store s, Object[] row) {
+				s.addCar((String) row[0], (String) row[1], (String) row[2], (Integer) row[3]);
+			}
+		};
+		Reader owns = new Reader(direct) {
+			Object[] read(ResultSet rs) throws SQLException {
+				return new Object[] {rs.getInt(1), rs.getInt(2), rs.getString(3)};
+			}
+
+			void apply(Store s, Object[] row) {
+				s.addOwns((Integer) row[0], (Integer) row[1]);
+			}
+		};
+		Reader requests = new Reader(direct) {
+			Object[] read(ResultSet rs) throws SQLException {
+				return new Object[] {rs.getInt(1), rs.getInt(2), rs.getString(3),
+					(int) rs.getDate(4).toLocalDate().toEpochDay(), rs.getInt(5)};
+			}
+
+			void apply(Store s, Object[] row) {
+				s.addRequest((Integer) row[0], (Integer) row[1], (String) row[2], (Integer) row[3], (Integer) row[4]);
+			}
+		};
+		Reader closed = new Reader(direct) {
+			Object[] read(ResultSet rs) throws SQLException {
+				return new Object[] {rs.getInt(1), rs.getInt(2), (int) rs.getDate(3).toLocalDate().toEpochDay(),
+					rs.getString(4), rs.getInt(5)};
+			}
+
+			void apply(Store s, Object[] row) {
+				s.addClosed((Integer) row[0], (Integer) row[1], (Integer) row[2], (String) row[3], (Integer) row[4]);
+			}
+		};
+
+		int fetch = MechanicShop.REPORT_FETCH_SIZE * 10;
+		_esql.executeQueryStreaming("Analytics.Customer", "SELECT id, fname, lname FROM Customer WHERE id > ?;",
+			fetch, customers, fromCustomer);
+		if (!incremental) {
+			_esql.executeQueryStreaming("Analytics.Car", "SELECT vin, make, model, year FROM Car;", fetch, cars);
+		}
+		_esql.executeQueryStreaming("Analytics.Owns", "SELECT ownership_id, customer_id, car_vin FROM Owns WHERE ownership_id > ?;",
+			fetch, owns, fromOwns);
+		_esql.executeQueryStreaming("Analytics.ServiceRequest",
+			"SELECT rid, customer_id, car_vin, date, odometer FROM Service_Request WHERE rid > ?;", fetch, requests, fromRid);
+		_esql.executeQueryStreaming("Analytics.ClosedRequest",
+			"SELECT wid, rid, date, comment, bill FROM Closed_Request WHERE wid > ?;", fetch, closed, fromWid);
+		if (!incremental) {
+			return store;
+		}
+
+		// only cars that came with the new rows are read
+		List<String> newVins = new ArrayList<String>();
+		_lock.readLock().lock();
+		try {
+			HashSet<String> seen = new HashSet<String>();
+			for (Object[] row : owns.rows) {
+				if (!store.carRow.containsKey(row[2]) && seen.add((String) row[2])) newVins.add((String) row[2]);
+			}
+			for (Object[] row : requests.rows) {
+				if (!store.carRow.containsKey(row[2]) && seen.add((String) row[2])) newVins.add((String) row[2]);
+			}
+		}finally {
+			_lock.readLock().unlock();
+		}
+		if (!newVins.isEmpty()) {
+			_esql.executeQueryStreaming("Analytics.NewCars",
+				"SELECT vin, make, model, year FROM Car WHERE vin = ANY (CAST(? AS VARCHAR[]));", fetch, cars,
+				MechanicShop.arrayLiteral(newVins));
+		}
+
+		_lock.writeLock().lock();
+		try {
+			customers.applyAll(store);
+			cars.applyAll(store);
+			owns.applyAll(store);
+			requests.applyAll(store);
+			closed.applyAll(store);
+		}finally {
+			_lock.writeLock().unlock();
+		}
+		return store;
+	}//end load
+
+	private <R> R scan(int rows, Kernel<R> kernel) {
+		return _workers.invoke(new Scan<R>(kernel, 0, rows));
+	}
+
+	/**
+	 * Date, comment and bill of closed requests with a bill under 100,
+	 * closed on or after day sinceDay.
+	 */
+	public int listCustomersWithBillLessThan100(ReportRows handler, final int sinceDay) {
+		long start = System.nanoTime();
+		_lock.readLock().lock();
+		try {
+			Store s = _store;
+			final int[] bill = s.closedBill.values;
+			final int[] date = s.closedDate.values;
+			Ints rows = scan(s.closedBill.size, new Kernel<Ints>() {
+				public Ints leaf(int lo, int hi) {
+					Ints found = new Ints();
+					for (int i = lo; i < hi; ++i) {
+						if (bill[i] < 100 & date[i] >= sinceDay) {
+							found.add(i);
+						}
+					}
+					return found;
+				}
+
+				public Ints merge(Ints left, Ints right) {
+					left.addAll(right);
+					return left;
+				}
+			});
+			handler.columns("date", "comment", "bill");
+			for (int r = 0; r < rows.size; ++r) {
+				int i = rows.values[r];
+				handler.values(LocalDate.ofEpochDay(date[i]).toString(), s.closedComment.get(i), Integer.toString(bill[i]));
+			}
+			Metrics.statement("Analytics.ListCustomersWithBillLessThan100", start, rows.size);
+			return rows.size;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}//end listCustomersWithBillLessThan100
+
+	/**
+	 * First and last name of customers owning more than 20 cars.
+	 */
+	public int listCustomersWithMoreThan20Cars(ReportRows handler) {
+		long start = System.nanoTime();
+		_lock.readLock().lock();
+		try {
+			Store s = _store;
+			final int[] customer = s.ownsCustomer.values;
+			int maxId = s.maxCustomerId;
+			for (int i = 0; i < s.ownsCustomer.size; ++i) {
+				maxId = Math.max(maxId, customer[i]);
+			}
+			final int keys = maxId + 1;
+			int[] cars = scan(s.ownsCustomer.size, new Kernel<int[]>() {
+				public int[] leaf(int lo, int hi) {
+					int[] count = new int[keys];
+					for (int i = lo; i < hi; ++i) {
+						++count[customer[i]];
+					}
+					return count;
+				}
+
+				public int[] merge(int[] left, int[] right) {
+					for (int i = 0; i < left.length; ++i) {
+						left[i] += right[i];
+					}
+					return left;
+				}
+			});
+			handler.columns("fname", "lname");
+			int n = 0;
+			for (int id = 0; id < cars.length; ++id) {
+				if (cars[id] > 20 && id < s.fname.length && s.fname[id] != null) {
+					handler.values(s.fname[id], s.lname[id]);
+					++n;
+				}
+			}
+			Metrics.statement("Analytics.ListCustomersWithMoreThan20Cars", start, n);
+			return n;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}//end listCustomersWithMoreThan20Cars
+
+	/**
+	 * Distinct make, model and year of cars built before 1995 with a
+	 * service request under 50000 miles made on or after day sinceDay.
+	 */
+	public int listCarsBefore1995With50000Milles(ReportRows handler, final int sinceDay) {
+		long start = System.nanoTime();
+		_lock.readLock().lock();
+		try {
+			Store s = _store;
+			final int[] car = s.requestCar.values;
+			final int[] odometer = s.requestOdometer.values;
+			final int[] date = s.requestDate.values;
+			final int[] year = s.carYear.values;
+			final int[] make = s.carMake.values;
+			final int[] model = s.carModel.values;
+			HashSet<Long> found = scan(s.requestCar.size, new Kernel<HashSet<Long>>() {
+				public HashSet<Long> leaf(int lo, int hi) {
+					HashSet<Long> cars = new HashSet<Long>();
+					for (int i = lo; i < hi; ++i) {
+						int c = car[i];
+						if (c >= 0 && odometer[i] < 50000 && date[i] >= sinceDay && year[c] < 1995) {
+							cars.add(((long) make[c] << 40) | ((long) model[c] << 16) | year[c]);
+						}
+					}
+					return cars;
+				}
+
+				public HashSet<Long> merge(HashSet<Long> left, HashSet<Long> right) {
+					if (left.size() < right.size()) {
+						right.addAll(left);
+						return right;
+					}
+					left.addAll(right);
+					return left;
+				}
+			});
+			handler.columns("make", "model", "year");
+			for (long key : found) {
+				handler.values(s.makes.strings.get((int) (key >>> 40)), s.models.strings.get((int) (key >>> 16) & 0xffffff),
+					Integer.toString((int) (key & 0xffff)));
+			}
+			Metrics.statement("Analytics.ListCarsBefore1995With50000Milles", start, found.size());
+			return found.size();
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}//end listCarsBefore1995With50000Milles
+
+	/**
+	 * Make, model and number of service requests of the k cars with the most requests.
+	 */
+	public int listKCarsWithTheMostServices(int k, ReportRows handler) {
+		long start = System.nanoTime();
+		_lock.readLock().lock();
+		try {
+			Store s = _store;
+			final int[] car = s.requestCar.values;
+			final int cars = s.carMake.size;
+			final int[] requests = scan(s.requestCar.size, new Kernel<int[]>() {
+				public int[] leaf(int lo, int hi) {
+					int[] count = new int[cars];
+					for (int i = lo; i < hi; ++i) {
+						if (car[i] >= 0) {
+							++count[car[i]];
+						}
+					}
+					return count;
+				}
+
+				public int[] merge(int[] left, int[] right) {
+					for (int i = 0; i < left.length; ++i) {
+						left[i] += right[i];
+					}
+					return left;
+				}
+			});
+			// the k largest counts, smallest of them on top
+			PriorityQueue<Integer> top = new PriorityQueue<Integer>(Math.max(1, Math.min(k, cars)), new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Integer.compare(requests[a], requests[b]);
+				}
+			});
+			for (int c = 0; c < cars; ++c) {
+				if (requests[c] == 0) {
+					continue;
+				}
+				if (top.size() < k) {
+					top.add(c);
+				}
+				else if (requests[c] > requests[top.peek()]) {
+					top.poll();
+					top.add(c);
+				}
+			}
+			Integer[] ranked = top.toArray(new Integer[top.size()]);
+			Arrays.sort(ranked, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Integer.compare(requests[b], requests[a]);
+				}
+			});
+			handler.columns("make", "model", "numrequests");
+			for (int c : ranked) {
+				handler.values(s.makes.strings.get(s.carMake.values[c]), s.models.strings.get(s.carModel.values[c]),
+					Integer.toString(requests[c]));
+			}
+			Metrics.statement("Analytics.ListKCarsWithTheMostServices", start, ranked.length);
+			return ranked.length;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}//end listKCarsWithTheMostServices
+
+	/**
+	 * First name, last name and total bill of customers, highest total first.
+	 */
+	public int listCustomersInDescendingOrderOfTheirTotalBill(ReportRows handler) {
+		long start = System.nanoTime();
+		_lock.readLock().lock();
+		try {
+			Store s = _store;
+			final int[] rid = s.closedRid.values;
+			final int[] bill = s.closedBill.values;
+			final int[] requestRow = s.requestRow;
+			final int[] customer = s.requestCustomer.values;
+			int maxId = s.maxCustomerId;
+			for (int i = 0; i < s.requestCustomer.size; ++i) {
+				maxId = Math.max(maxId, customer[i]);
+			}
+			final int keys = maxId + 1;
+			final long[] total = scan(s.closedRid.size, new Kernel<long[]>() {
+				public long[] leaf(int lo, int hi) {
+					long[] sum = new long[keys];
+					for (int i = lo; i < hi; ++i) {
+						int r = rid[i] < requestRow.length ? requestRow[rid[i]] : -1;
+						if (r >= 0) {
+							sum[customer[r]] += bill[i];
+						}
+					}
+					return sum;
+				}
+
+				public long[] merge(long[] left, long[] right) {
+					for (int i = 0; i < left.length; ++i) {
+						left[i] += right[i];
+					}
+					return left;
+				}
+			});
+			List<Integer> billed = new ArrayList<Integer>();
+			for (int id = 0; id < total.length; ++id) {
+				if (total[id] > 0 && id < s.fname.length && s.fname[id] != null) {
+					billed.add(id);
+				}
+			}
+			Integer[] ordered = billed.toArray(new Integer[billed.size()]);
+			Arrays.sort(ordered, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Long.compare(total[b], total[a]);
+				}
+			});
+			handler.columns("fname", "lname", "totalbill");
+			for (int id : ordered) {
+				handler.values(s.fname[id], s.lname[id], Long.toString(total[id]));
+			}
+			Metrics.statement("Analytics.ListCustomersInDescendingOrderOfTheirTotalBill", start, ordered.length);
+			return ordered.length;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}//end listCustomersInDescendingOrderOfTheirTotalBill
+}
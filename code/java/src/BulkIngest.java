@@ -0,0 +1,210 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Non-interactive loader for dealer-network feeds shaped like
+ * service_request.csv and closed_request.csv. Rows are streamed from the
+ * file in batches, sent either with COPY FROM STDIN or with JDBC batched
+ * inserts, and committed every few batches.
+ *
+ */
+public class BulkIngest {
+	/**
+	 * Tables accepted by the ingest command.
+	 */
+	public enum Table {
+		SERVICE_REQUEST("Service_Request",
+			"COPY Service_Request (rid, customer_id, car_vin, date, odometer, complain) FROM STDIN WITH DELIMITER ','",
+			"INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (?,?,?,CAST(? AS DATE),?,?)"),
+		CLOSED_REQUEST("Closed_Request",
+			"COPY Closed_Request (wid, rid, mid, date, comment, bill) FROM STDIN WITH DELIMITER ','",
+			"INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) VALUES (?,?,?,CAST(? AS DATE),?,?)");
+
+		final String name;
+		final String copySql;
+		final String insertSql;
+
+		Table(String name, String copySql, String insertSql) {
+			this.name = name;
+			this.copySql = copySql;
+			this.insertSql = insertSql;
+		}
+
+		public static Table parse(String name) {
+			for (Table t : values()) {
+				if (t.name.equalsIgnoreCase(name)) {
+					return t;
+				}
+			}
+			throw new IllegalArgumentException("Cannot ingest into table " + name
+				+ " (expected service_request or closed_request)");
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final boolean _useCopy;
+	private final int _batchSize;
+	private final int _commitBatches;
+
+	/**
+	 * @param pool pool to borrow the ingest connection from
+	 * @param useCopy true to send batches with COPY, false for batched INSERTs
+	 * @param batchSize number of rows sent per batch
+	 * @param commitBatches number of batches per transaction
+	 */
+	public BulkIngest(ConnectionPool pool, boolean useCopy, int batchSize, int commitBatches) {
+		if (batchSize < 1 || commitBatches < 1) {
+			throw new IllegalArgumentException("Batch size and commit interval must be positive");
+		}
+		this._pool = pool;
+		this._useCopy = useCopy;
+		this._batchSize = batchSize;
+		this._commitBatches = commitBatches;
+	}
+
+	/**
+	 * Streams every line of file into table, printing rows/sec per batch.
+	 * On failure the open transaction is rolled back; rows of earlier
+	 * commits stay in the table.
+	 *
+	 * @param table target table
+	 * @param file path of the CSV file
+	 * @return number of rows ingested
+	 * @throws java.sql.SQLException when a batch is rejected by the database
+	 * @throws java.io.IOException when the file cannot be read
+	 */
+	public long ingest(Table table, String file) throws SQLException, IOException {
+		System.out.println("Ingesting " + file + " into " + table.name + " using "
+			+ (_useCopy ? "COPY" : "batched INSERT") + " (batch " + _batchSize
+			+ " rows, commit every " + _commitBatches + " batches)");
+		// opened first: a missing file must not hold a pooled connection
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		ConnectionPool.ShopConnection conn;
+		try {
+			conn = _pool.borrow();
+		}catch (SQLException e) {
+			reader.close();
+			throw e;
+		}
+		long committed = 0;
+		long pending = 0;
+		int batch = 0;
+		long start = System.nanoTime();
+		try {
+			Connection connection = conn.connection();
+			connection.setAutoCommit(false);
+			CopyManager copy = _useCopy ? ((PGConnection) connection).getCopyAPI() : null;
+			PreparedStatement insert = _useCopy ? null : conn.statements().prepare("BulkIngest." + table, table.insertSql);
+
+			StringBuilder chunk = new StringBuilder();
+			String line;
+			int rows = 0;
+			boolean eof = false;
+			while (!eof) {
+				line = reader.readLine();
+				if (line == null) {
+					eof = true;
+				}
+				else if (!line.trim().isEmpty()) {
+					if (_useCopy) {
+						chunk.append(line).append('\n');
+					}
+					else {
+						addRow(insert, table, line);
+					}
+					++rows;
+				}
+				if (rows == _batchSize || (eof && rows > 0)) {
+					long batchStart = System.nanoTime();
+					if (_useCopy) {
+						copy.copyIn(table.copySql, new StringReader(chunk.toString()));
+						chunk.setLength(0);
+					}
+					else {
+						insert.executeBatch();
+					}
+					++batch;
+					pending += rows;
+					if (batch % _commitBatches == 0 || eof) {
+						connection.commit();
+						committed += pending;
+						pending = 0;
+					}
+					long elapsed = System.nanoTime() - batchStart;
+					System.out.println("  batch " + batch + ": " + rows + " rows in " + (elapsed / 1000000) + " ms ("
+						+ rowsPerSecond(rows, elapsed) + " rows/sec)");
+					rows = 0;
+				}
+			}//end while
+			long elapsed = System.nanoTime() - start;
+			System.out.println("Ingested " + committed + " rows into " + table.name + " in " + (elapsed / 1000000)
+				+ " ms (" + rowsPerSecond(committed, elapsed) + " rows/sec)");
+			return committed;
+		}catch (SQLException e) {
+			conn.failed(e);
+			System.err.println("Ingest of " + file + " stopped in batch " + (batch + 1) + "; "
+				+ committed + " rows were committed before the failure");
+			throw e;
+		}finally {
+			try {
+				reader.close();
+			}finally {
+				// release rolls back anything uncommitted and restores autocommit
+				_pool.release(conn);
+			}
+		}
+	}//end ingest
+
+	/**
+	 * Splits one CSV line into the columns of table and adds it to the batch.
+	 * The free-text column may itself contain commas.
+	 */
+	private static void addRow(PreparedStatement insert, Table table, String line) throws SQLException {
+		String[] f = line.split(",", -1);
+		if (f.length < 6) {
+			throw new SQLException("Malformed " + table.name + " row: " + line, "22000");
+		}
+		insert.clearParameters();
+		try {
+			if (table == Table.SERVICE_REQUEST) {
+				insert.setInt(1, Integer.parseInt(f[0].trim()));
+				insert.setInt(2, Integer.parseInt(f[1].trim()));
+				insert.setString(3, f[2].trim());
+				insert.setString(4, f[3].trim());
+				insert.setInt(5, Integer.parseInt(f[4].trim()));
+				insert.setString(6, join(f, 5, f.length));
+			}
+			else {
+				insert.setInt(1, Integer.parseInt(f[0].trim()));
+				insert.setInt(2, Integer.parseInt(f[1].trim()));
+				insert.setInt(3, Integer.parseInt(f[2].trim()));
+				insert.setString(4, f[3].trim());
+				insert.setString(5, join(f, 4, f.length - 1));
+				insert.setInt(6, Integer.parseInt(f[f.length - 1].trim()));
+			}
+		}catch (NumberFormatException e) {
+			throw new SQLException("Malformed " + table.name + " row: " + line, "22000");
+		}
+		insert.addBatch();
+	}
+
+	private static String join(String[] fields, int from, int to) {
+		StringBuilder sb = new StringBuilder(fields[from]);
+		for (int i = from + 1; i < to; ++i) {
+			sb.append(',').append(fields[i]);
+		}
+		return sb.toString();
+	}
+
+	private static long rowsPerSecond(long rows, long nanos) {
+		return nanos <= 0 ? rows : rows * 1000000000L / nanos;
+	}
+}
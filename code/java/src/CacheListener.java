@@ -0,0 +1,121 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Keeps the lookup caches of several shop processes coherent. A process
+ * that changes a cached row sends "cache:key" on a Postgres NOTIFY
+ * channel; every process LISTENs on its own connection, outside the pool,
+ * and drops the entry. A "*" key drops the whole cache.
+ *
+ * Notifications sent while the listening connection is down are lost, so
+ * after a reconnect every cache is dropped.
+ *
+ */
+public class CacheListener {
+	public static final String CHANNEL = "mechanicshop_cache";
+
+	/**
+	 * Applies an invalidation received from any process.
+	 */
+	public interface Receiver {
+		/**
+		 * @param cache name of the cache, or null for every cache
+		 * @param key key to drop, or "*" for the whole cache
+		 */
+		void invalidated(String cache, String key);
+	}
+
+	private final ConnectionPool _pool;
+	private final Receiver _receiver;
+	private volatile boolean _closed = false;
+	private Thread _thread;
+
+	public CacheListener(ConnectionPool pool, Receiver receiver) {
+		this._pool = pool;
+		this._receiver = receiver;
+	}
+
+	/**
+	 * Starts listening in a background thread.
+	 */
+	public synchronized void start() {
+		_thread = new Thread(new Runnable() {
+			public void run() {
+				listen();
+			}
+		}, "cache-listener");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	private void listen() {
+		boolean first = true;
+		while (!_closed) {
+			Connection connection = null;
+			try {
+				connection = _pool.openUnpooled();
+				Statement stmt = connection.createStatement();
+				stmt.execute("LISTEN " + CHANNEL);
+				stmt.close();
+				if (!first) {
+					// whatever was sent while we were away is lost
+					_receiver.invalidated(null, "*");
+				}
+				first = false;
+				PGConnection pg = connection.unwrap(PGConnection.class);
+				while (!_closed) {
+					PGNotification[] notifications = pg.getNotifications(1000);
+					if (notifications == null) {
+						continue;
+					}
+					for (PGNotification n : notifications) {
+						String payload = n.getParameter();
+						int colon = payload.indexOf(':');
+						if (colon > 0) {
+							_receiver.invalidated(payload.substring(0, colon), payload.substring(colon + 1));
+						}
+					}
+				}
+			}catch (SQLException e) {
+				if (!_closed) {
+					System.err.println("Cache listener lost its connection: " + e.getMessage());
+					try {
+						Thread.sleep(1000);
+					}catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}finally {
+				if (connection != null) {
+					try {
+						connection.close();
+					}catch (SQLException e) {
+						// ignored.
+					}
+				}
+			}
+		}//end while
+	}//end listen
+
+	/**
+	 * Tells every listening process, this one included, to drop key from cache.
+	 *
+	 * @param conn connection to send the notification on
+	 * @throws java.sql.SQLException when the notification cannot be sent
+	 */
+	public static void send(ConnectionPool.ShopConnection conn, String cache, String key) throws SQLException {
+		PreparedStatement stmt = conn.statements().prepare("cacheNotify", "SELECT pg_notify(?, ?)");
+		stmt.setString(1, CHANNEL);
+		stmt.setString(2, cache + ":" + key);
+		stmt.executeQuery().close();
+	}
+
+	public void close() {
+		_closed = true;
+	}
+}
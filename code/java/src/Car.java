@@ -0,0 +1,34 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Row of the Car table.
+ *
+ */
+public final class Car {
+	//column list matching MAPPER, for SELECT clauses
+	public static final String COLUMNS = "vin, make, model, year";
+
+	public static final RowMapper<Car> MAPPER = new RowMapper<Car>() {
+		public Car map (ResultSet rs) throws SQLException {
+			return new Car(rs.getString(1), rs.getString(2), rs.getString(3), rs.getInt(4));
+		}
+	};
+
+	public final String vin;
+	public final String make;
+	public final String model;
+	public final int year;
+
+	public Car(String vin, String make, String model, int year) {
+		this.vin = vin;
+		this.make = make;
+		this.model = model;
+		this.year = year;
+	}
+
+	@Override
+	public String toString() {
+		return vin + " " + make + " " + model + " " + year;
+	}
+}
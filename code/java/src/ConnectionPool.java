@@ -0,0 +1,358 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Small bounded pool of physical connections to the shop database.
+ * Connections are validated when borrowed, idle connections above the
+ * minimum are closed after a timeout, and connections held longer than the
+ * leak threshold are reported. With mechanicshop.pool.leakTrace the report
+ * includes the stack that borrowed the connection, which costs a stack
+ * trace per borrow.
+ *
+ */
+public class ConnectionPool {
+	private static final boolean LEAK_TRACE = Boolean.getBoolean("mechanicshop.pool.leakTrace");
+
+	private final String _url;
+	private final Properties _props;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _idleTimeoutMs;
+	private final long _leakThresholdMs;
+	private final long _borrowTimeoutMs;
+	private final long _validationIntervalMs;
+
+	//idle connections, most recently used first
+	private final ArrayDeque<ShopConnection> _idle = new ArrayDeque<ShopConnection>();
+	//every connection currently handed out
+	private final List<ShopConnection> _borrowed = new ArrayList<ShopConnection>();
+	//connections being opened outside the lock, counted against _maxSize
+	private int _pending = 0;
+	private boolean _closed = false;
+	//statement cache counters of connections that were already closed
+	private long _retiredHits = 0;
+	private long _retiredMisses = 0;
+	private final Thread _housekeeper;
+
+	/**
+	 * A pooled physical connection together with its statement cache.
+	 */
+	public static class ShopConnection {
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private long _lastUsed;
+		private long _borrowedAt;
+		private Throwable _borrowSite;
+		private boolean _broken = false;
+		private boolean _leakReported = false;
+
+		ShopConnection(Connection connection) {
+			this._connection = connection;
+			this._statements = new StatementCache(connection);
+			this._lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection connection() {
+			return _connection;
+		}
+
+		public StatementCache statements() {
+			return _statements;
+		}
+
+		/**
+		 * Marks the connection as unusable if e reports a lost connection,
+		 * so it is closed instead of being returned to the pool.
+		 *
+		 * @param e exception raised while using this connection
+		 */
+		public void failed(SQLException e) {
+			String state = e.getSQLState();
+			if (state == null || state.startsWith("08")) {
+				_broken = true;
+			}
+		}
+	}
+
+	public ConnectionPool(String url, Properties props, int minSize, int maxSize, long idleTimeoutMs,
+			long leakThresholdMs, long borrowTimeoutMs, long validationIntervalMs) throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+			throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+		}
+		this._url = url;
+		this._props = props;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._idleTimeoutMs = idleTimeoutMs;
+		this._leakThresholdMs = leakThresholdMs;
+		this._borrowTimeoutMs = borrowTimeoutMs;
+		this._validationIntervalMs = validationIntervalMs;
+
+		// open the minimum number of connections up front so a bad url fails fast
+		for (int i = 0; i < minSize; ++i) {
+			_idle.push(open());
+		}
+
+		_housekeeper = new Thread(new Runnable() {
+			public void run() {
+				housekeep();
+			}
+		}, "connection-pool-housekeeper");
+		_housekeeper.setDaemon(true);
+		_housekeeper.start();
+	}
+
+	private ShopConnection open() throws SQLException {
+		return new ShopConnection(DriverManager.getConnection(_url, _props));
+	}
+
+	/**
+	 * Opens a connection with the pool's settings that is not part of the
+	 * pool, for a caller that keeps it for its whole life (e.g. LISTEN).
+	 *
+	 * @return a connection the caller must close
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openUnpooled() throws SQLException {
+		return DriverManager.getConnection(_url, _props);
+	}
+
+	/**
+	 * Borrows a validated connection, opening a new one if the pool is below
+	 * its maximum size, or waiting for one to be released otherwise.
+	 *
+	 * @return a connection that must be handed back with release
+	 * @throws java.sql.SQLException when no connection could be obtained in time
+	 */
+	public ShopConnection borrow() throws SQLException {
+		long deadline = System.currentTimeMillis() + _borrowTimeoutMs;
+		while (true) {
+			ShopConnection conn = null;
+			boolean create = false;
+			synchronized (this) {
+				while (true) {
+					if (_closed) {
+						throw new SQLException("Connection pool is closed", "08003");
+					}
+					if (!_idle.isEmpty()) {
+						conn = _idle.pop();
+						break;
+					}
+					if (_borrowed.size() + _pending < _maxSize) {
+						++_pending;
+						create = true;
+						break;
+					}
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						throw new SQLException("Timed out after " + _borrowTimeoutMs
+							+ "ms waiting for a database connection (pool size " + _maxSize + ")", "08001");
+					}
+					try {
+						wait(wait);
+					}catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection", "08001");
+					}
+				}//end while
+			}
+
+			if (create) {
+				try {
+					conn = open();
+				}finally {
+					synchronized (this) {
+						--_pending;
+						if (conn == null) {
+							notifyAll();
+						}
+					}
+				}
+			}
+			else if (!validate(conn)) {
+				discard(conn);
+				continue;
+			}
+
+			synchronized (this) {
+				conn._borrowedAt = System.currentTimeMillis();
+				conn._borrowSite = LEAK_TRACE && _leakThresholdMs > 0 ? new Throwable("Connection borrowed here") : null;
+				conn._leakReported = false;
+				_borrowed.add(conn);
+			}
+			return conn;
+		}//end while
+	}//end borrow
+
+	/**
+	 * A connection used recently is trusted without a round trip; otherwise
+	 * the driver is asked to check it is still alive.
+	 */
+	private boolean validate(ShopConnection conn) {
+		try {
+			if (conn._connection.isClosed()) {
+				return false;
+			}
+			if (System.currentTimeMillis() - conn._lastUsed < _validationIntervalMs) {
+				return true;
+			}
+			return conn._connection.isValid(5);
+		}catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool. Any transaction left open is
+	 * rolled back and autocommit is restored.
+	 *
+	 * @param conn connection obtained from borrow
+	 */
+	public void release(ShopConnection conn) {
+		if (conn == null) {
+			return;
+		}
+		if (!conn._broken) {
+			try {
+				if (!conn._connection.getAutoCommit()) {
+					conn._connection.rollback();
+					conn._connection.setAutoCommit(true);
+				}
+			}catch (SQLException e) {
+				conn._broken = true;
+			}
+		}
+		synchronized (this) {
+			_borrowed.remove(conn);
+			if (!conn._broken && !_closed) {
+				conn._lastUsed = System.currentTimeMillis();
+				conn._borrowSite = null;
+				_idle.push(conn);
+				notifyAll();
+				return;
+			}
+		}
+		discard(conn);
+	}//end release
+
+	private void discard(ShopConnection conn) {
+		synchronized (this) {
+			_retiredHits += conn._statements.getHits();
+			_retiredMisses += conn._statements.getMisses();
+			notifyAll();
+		}
+		conn._statements.close();
+		try {
+			conn._connection.close();
+		}catch (SQLException e) {
+			// ignored.
+		}
+	}
+
+	/**
+	 * Background loop closing idle connections above the minimum size and
+	 * reporting connections that have been borrowed for too long.
+	 */
+	private void housekeep() {
+		long period = Math.max(1000, Math.min(_idleTimeoutMs, _leakThresholdMs > 0 ? _leakThresholdMs : _idleTimeoutMs) / 2);
+		while (true) {
+			try {
+				Thread.sleep(period);
+			}catch (InterruptedException e) {
+				return;
+			}
+			List<ShopConnection> evicted = new ArrayList<ShopConnection>();
+			synchronized (this) {
+				if (_closed) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				int total = _idle.size() + _borrowed.size();
+				// oldest idle connections sit at the tail of the deque
+				Iterator<ShopConnection> it = _idle.descendingIterator();
+				while (it.hasNext() && total > _minSize) {
+					ShopConnection conn = it.next();
+					if (now - conn._lastUsed < _idleTimeoutMs) {
+						break;
+					}
+					it.remove();
+					evicted.add(conn);
+					--total;
+				}
+				if (_leakThresholdMs > 0) {
+					for (ShopConnection conn : _borrowed) {
+						if (!conn._leakReported && now - conn._borrowedAt > _leakThresholdMs) {
+							conn._leakReported = true;
+							System.err.println("Possible connection leak: connection held for "
+								+ (now - conn._borrowedAt) + "ms");
+							if (conn._borrowSite != null) {
+								conn._borrowSite.printStackTrace();
+							}
+							else {
+								System.err.println("Run with -Dmechanicshop.pool.leakTrace=true to see where it was borrowed");
+							}
+						}
+					}
+				}
+			}
+			for (ShopConnection conn : evicted) {
+				discard(conn);
+			}
+		}//end while
+	}//end housekeep
+
+	public synchronized int getIdleCount() {
+		return _idle.size();
+	}
+
+	public synchronized int getBorrowedCount() {
+		return _borrowed.size();
+	}
+
+	/**
+	 * @return statement cache hits summed over every connection of the pool
+	 */
+	public synchronized long getStatementCacheHits() {
+		long hits = _retiredHits;
+		for (ShopConnection conn : _idle) hits += conn._statements.getHits();
+		for (ShopConnection conn : _borrowed) hits += conn._statements.getHits();
+		return hits;
+	}
+
+	/**
+	 * @return statement cache misses summed over every connection of the pool
+	 */
+	public synchronized long getStatementCacheMisses() {
+		long misses = _retiredMisses;
+		for (ShopConnection conn : _idle) misses += conn._statements.getMisses();
+		for (ShopConnection conn : _borrowed) misses += conn._statements.getMisses();
+		return misses;
+	}
+
+	/**
+	 * Closes idle connections and stops handing out new ones. Borrowed
+	 * connections are closed as they are released.
+	 */
+	public void close() {
+		List<ShopConnection> idle;
+		synchronized (this) {
+			if (_closed) {
+				return;
+			}
+			_closed = true;
+			idle = new ArrayList<ShopConnection>(_idle);
+			_idle.clear();
+			notifyAll();
+		}
+		_housekeeper.interrupt();
+		for (ShopConnection conn : idle) {
+			discard(conn);
+		}
+	}//end close
+}
@@ -0,0 +1,42 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Row of the Customer table. CHAR columns are stored without their
+ * trailing padding.
+ *
+ */
+public final class Customer {
+	//column list matching MAPPER, for SELECT clauses
+	public static final String COLUMNS = "id, fname, lname, phone, address";
+
+	public static final RowMapper<Customer> MAPPER = new RowMapper<Customer>() {
+		public Customer map (ResultSet rs) throws SQLException {
+			return new Customer(rs.getInt(1), trim(rs.getString(2)), trim(rs.getString(3)),
+				trim(rs.getString(4)), trim(rs.getString(5)));
+		}
+	};
+
+	public final int id;
+	public final String fname;
+	public final String lname;
+	public final String phone;
+	public final String address;
+
+	public Customer(int id, String fname, String lname, String phone, String address) {
+		this.id = id;
+		this.fname = fname;
+		this.lname = lname;
+		this.phone = phone;
+		this.address = address;
+	}
+
+	static String trim(String s) {
+		return s == null ? null : s.trim();
+	}
+
+	@Override
+	public String toString() {
+		return id + " " + fname + " " + lname + " " + phone + " " + address;
+	}
+}
@@ -0,0 +1,607 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory search over the first name, last name and phone of every
+ * customer, tolerant of typos. Last names starting with the query come
+ * first, in the order of the database lookup (findCustomersByLName), then
+ * last names one typo away from the query and last names sounding
+ * like it, ranked by the trigram similarity (as pg_trgm computes it) of
+ * their first and last names to the query. Text with three digits or more
+ * searches the phones instead.
+ *
+ * Every candidate is found by hash or tree lookups, never by a scan, so a
+ * search costs about the same with any number of customers: the typos are
+ * found through the one-letter deletions of every distinct last name,
+ * the sounds through the Soundex code of every distinct last name, and
+ * phones through the postings of their rarest digit trigram. Sharing a
+ * deletion finds every name one typo away: a letter missing, extra or
+ * wrong, or two neighbouring letters swapped. Names two typos away, such
+ * as snoth for smith, are only found when they happen to sound alike.
+ *
+ * New customers of this process are added as they are inserted; customers
+ * added by other processes are read in the background when their cache
+ * notification arrives (mechanicshop.cache.notify).
+ *
+ */
+public class CustomerIndex {
+	//score added to last names sounding like the query
+	private static final double SOUNDEX_BONUS = 0.2;
+	//last names longer than this are only found by prefix and sound
+	private static final int MAX_TYPO_LENGTH = 24;
+
+	/**
+	 * Growable list of document or name numbers.
+	 */
+	private static final class Postings {
+		int[] ids = new int[2];
+		int size = 0;
+
+		void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+
+	/**
+	 * Names already scored by one search, reused by the searches of a
+	 * thread: a name was seen when its stamp is the current one.
+	 */
+	private static final class Scratch {
+		int[] stamp = new int[0];
+		int current = 0;
+		boolean[] hit = new boolean[64];
+
+		void begin(int names) {
+			if (stamp.length < names) {
+				stamp = new int[Math.max(names, stamp.length * 2)];
+				current = 0;
+			}
+			++current;
+		}
+
+		/**
+		 * @return true the first time name is seen by this search
+		 */
+		boolean first(int name) {
+			if (stamp[name] == current) {
+				return false;
+			}
+			stamp[name] = current;
+			return true;
+		}
+
+		boolean[] hit(int size) {
+			if (hit.length < size) {
+				hit = new boolean[size * 2];
+			}
+			return hit;
+		}
+	}//end Scratch
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * A candidate document with its score.
+	 */
+	private static final class Match {
+		final int doc;
+		final double score;
+
+		Match(int doc, double score) {
+			this.doc = doc;
+			this.score = score;
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final int _overlap;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	//per document
+	private final ArrayList<Customer> _customers = new ArrayList<Customer>();
+	private final BitSet _ids = new BitSet();
+	private int _maxId = -1;
+	private int[] _docLName = new int[1024];
+	private final ArrayList<String> _fnames = new ArrayList<String>();
+	private int[] _fnameGrams = new int[1024];
+	private final ArrayList<String> _phoneDigits = new ArrayList<String>();
+
+	//per distinct normalized last name
+	private final HashMap<String, Integer> _lnameIds = new HashMap<String, Integer>();
+	private final ArrayList<String> _lnames = new ArrayList<String>();
+	private final ArrayList<String> _lnameSounds = new ArrayList<String>();
+	private final ArrayList<Postings> _lnameDocs = new ArrayList<Postings>();
+	private int[] _lnameGrams = new int[1024];
+
+	//a last name and its one-letter deletions -> last names
+	private final HashMap<String, Postings> _deletions = new HashMap<String, Postings>();
+	//Soundex code -> last names
+	private final HashMap<String, Postings> _sounds = new HashMap<String, Postings>();
+	//normalized last name, then id -> document, in the order of the database lookup
+	private final TreeMap<String, Integer> _byLName = new TreeMap<String, Integer>();
+	//digit trigram -> documents
+	private final HashMap<Long, Postings> _phoneGrams = new HashMap<Long, Postings>();
+	//a catch up with the database is queued or running
+	private final AtomicBoolean _catchingUp = new AtomicBoolean();
+
+	//worst match first, for the heap of the best matches
+	private final Comparator<Match> _worstFirst = new Comparator<Match>() {
+		public int compare(Match a, Match b) {
+			if (a.score != b.score) {
+				return Double.compare(a.score, b.score);
+			}
+			int byName = _lnames.get(_docLName[b.doc]).compareTo(_lnames.get(_docLName[a.doc]));
+			return byName != 0 ? byName : Integer.compare(_customers.get(b.doc).id, _customers.get(a.doc).id);
+		}
+	};
+
+	/**
+	 * @param esql shop whose Customer table is indexed
+	 */
+	public CustomerIndex(MechanicShop esql) {
+		this._esql = esql;
+		this._overlap = Integer.getInteger("mechanicshop.search.overlap", 10000);
+	}
+
+	/**
+	 * Indexes the customers not indexed yet. Ids come from sequence blocks,
+	 * so customers committed out of id order are found as long as they fall
+	 * within mechanicshop.search.overlap ids of the highest one indexed.
+	 *
+	 * @return number of customers added
+	 * @throws java.sql.SQLException when Customer cannot be read
+	 */
+	public int catchUp() throws SQLException {
+		int from;
+		_lock.readLock().lock();
+		try {
+			from = _maxId < 0 ? -1 : _maxId - _overlap;
+		}finally {
+			_lock.readLock().unlock();
+		}
+		final List<Customer> found = new ArrayList<Customer>();
+		_esql.executeQueryStreaming("CustomerIndex", "SELECT " + Customer.COLUMNS + " FROM Customer WHERE id > ?;",
+			MechanicShop.REPORT_FETCH_SIZE * 10, new RowHandler() {
+				public void row(ResultSet rs) throws SQLException {
+					found.add(Customer.MAPPER.map(rs));
+				}
+			}, from);
+		int added = 0;
+		_lock.writeLock().lock();
+		try {
+			for (Customer customer : found) {
+				if (addLocked(customer)) {
+					++added;
+				}
+			}
+		}finally {
+			_lock.writeLock().unlock();
+		}
+		return added;
+	}//end catchUp
+
+	/**
+	 * Catches up with the database in a background thread, once for any
+	 * number of calls made while it is queued.
+	 */
+	public void catchUpLater() {
+		if (!_catchingUp.compareAndSet(false, true)) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				_catchingUp.set(false);
+				try {
+					catchUp();
+				}catch (SQLException e) {
+					System.err.println("Customer index update failed: " + e.getMessage());
+				}
+			}
+		}, "customer-index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Indexes a customer just inserted.
+	 */
+	public void add(Customer customer) {
+		_lock.writeLock().lock();
+		try {
+			addLocked(customer);
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	private boolean addLocked(Customer customer) {
+		if (customer.id < 0 || _ids.get(customer.id)) {
+			return false;
+		}
+		_ids.set(customer.id);
+		_maxId = Math.max(_maxId, customer.id);
+		int doc = _customers.size();
+		_customers.add(customer);
+		if (doc == _docLName.length) {
+			_docLName = Arrays.copyOf(_docLName, doc * 2);
+			_fnameGrams = Arrays.copyOf(_fnameGrams, doc * 2);
+		}
+		String fname = normalize(customer.fname);
+		_fnames.add(fname);
+		_fnameGrams[doc] = trigrams(fname).length;
+		String lname = normalize(customer.lname);
+		int name = lnameId(lname);
+		_docLName[doc] = name;
+		_lnameDocs.get(name).add(doc);
+		_byLName.put(lname + '\u0000' + String.format("%010d", customer.id), doc);
+		String digits = customer.phone == null ? "" : customer.phone.replaceAll("[^0-9]", "");
+		_phoneDigits.add(digits);
+		for (long gram : digitGrams(digits)) {
+			postings(_phoneGrams, gram).add(doc);
+		}
+		return true;
+	}//end addLocked
+
+	/**
+	 * @return the number of a normalized last name, indexing it the first time
+	 */
+	private int lnameId(String lname) {
+		Integer known = _lnameIds.get(lname);
+		if (known != null) {
+			return known;
+		}
+		int name = _lnames.size();
+		_lnameIds.put(lname, name);
+		_lnames.add(lname);
+		_lnameDocs.add(new Postings());
+		if (name == _lnameGrams.length) {
+			_lnameGrams = Arrays.copyOf(_lnameGrams, name * 2);
+		}
+		_lnameGrams[name] = trigrams(lname).length;
+		String sound = soundex(lname);
+		_lnameSounds.add(sound);
+		if (sound != null) {
+			postings(_sounds, sound).add(name);
+		}
+		if (lname.length() <= MAX_TYPO_LENGTH) {
+			for (String key : deletions(lname)) {
+				postings(_deletions, key).add(name);
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * @return number of customers indexed
+	 */
+	public int size() {
+		_lock.readLock().lock();
+		try {
+			return _customers.size();
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the customers best matching text: a last name, possibly
+	 * misspelled or only its first letters, a first and a last name, or
+	 * three digits or more of a phone number.
+	 *
+	 * @param limit maximum number of customers returned
+	 * @return matching customers, best match first
+	 */
+	public List<Customer> search(String text, int limit) {
+		long start = System.nanoTime();
+		List<Customer> found;
+		_lock.readLock().lock();
+		try {
+			String digits = text.replaceAll("[^0-9]", "");
+			found = limit < 1 ? new ArrayList<Customer>()
+				: digits.length() >= 3 ? searchPhone(digits, limit) : searchName(text, limit);
+		}finally {
+			_lock.readLock().unlock();
+		}
+		Metrics.statement("CustomerIndex.search", start, found.size());
+		return Collections.unmodifiableList(found);
+	}
+
+	private List<Customer> searchName(String text, int limit) {
+		List<String> terms = new ArrayList<String>();
+		for (String word : normalize(text).split(" ")) {
+			if (!word.isEmpty()) {
+				terms.add(word);
+			}
+		}
+		List<Customer> found = new ArrayList<Customer>();
+		if (terms.isEmpty()) {
+			return found;
+		}
+		// the last word is the last name, the first one, if any other, the first name
+		String last = terms.get(terms.size() - 1);
+		String first = terms.size() > 1 ? terms.get(0) : null;
+
+		if (first == null) {
+			// last names starting with the query, as the database lookup lists them
+			for (Integer doc : _byLName.subMap(last, last + '\uffff').values()) {
+				if (found.size() == limit) {
+					return found;
+				}
+				found.add(_customers.get(doc));
+			}
+		}
+
+		Scratch scratch = SCRATCH.get();
+		scratch.begin(_lnames.size());
+		PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1, _worstFirst);
+		long[] lastGrams = trigrams(last);
+		long[] firstGrams = first == null ? null : trigrams(first);
+		boolean[] hit = scratch.hit(Math.max(lastGrams.length, first == null ? 0 : firstGrams.length));
+		int wanted = limit - found.size();
+		for (int name : candidates(last)) {
+			if (scratch.first(name)) {
+				score(name, last, lastGrams, first, firstGrams, hit, best, wanted);
+			}
+		}
+		if (first != null) {
+			// the words may be in either order
+			for (int name : candidates(first)) {
+				if (scratch.first(name)) {
+					score(name, last, lastGrams, first, firstGrams, hit, best, wanted);
+				}
+			}
+		}
+		found.addAll(ranked(best));
+		return found;
+	}//end searchName
+
+	/**
+	 * @return the last names one typo away from word or sounding like it, possibly repeated
+	 */
+	private List<Integer> candidates(String word) {
+		List<Integer> names = new ArrayList<Integer>();
+		if (word.length() <= MAX_TYPO_LENGTH) {
+			for (String key : deletions(word)) {
+				Postings postings = _deletions.get(key);
+				for (int i = 0; postings != null && i < postings.size; ++i) {
+					names.add(postings.ids[i]);
+				}
+			}
+		}
+		String sound = soundex(word);
+		Postings postings = sound == null ? null : _sounds.get(sound);
+		for (int i = 0; postings != null && i < postings.size; ++i) {
+			names.add(postings.ids[i]);
+		}
+		return names;
+	}
+
+	/**
+	 * Offers the customers with last name number name to best, scored by
+	 * the similarity of their names to the query.
+	 */
+	private void score(int name, String last, long[] lastGrams, String first, long[] firstGrams, boolean[] hit,
+			PriorityQueue<Match> best, int limit) {
+		String lname = _lnames.get(name);
+		if (first == null && lname.startsWith(last)) {
+			return; // listed already
+		}
+		double lastInLName = similarity(lname, _lnameGrams[name], lastGrams, hit);
+		double firstInLName = first == null ? 0 : similarity(lname, _lnameGrams[name], firstGrams, hit);
+		String sound = _lnameSounds.get(name);
+		double bonus = sound != null && (sound.equals(soundex(last)) || (first != null && sound.equals(soundex(first))))
+			? SOUNDEX_BONUS : 0;
+		Postings docs = _lnameDocs.get(name);
+		for (int i = 0; i < docs.size; ++i) {
+			int doc = docs.ids[i];
+			double score;
+			if (first == null) {
+				score = lastInLName;
+			}
+			else {
+				String fname = _fnames.get(doc);
+				double inOrder = similarity(fname, _fnameGrams[doc], firstGrams, hit) + lastInLName;
+				double swapped = similarity(fname, _fnameGrams[doc], lastGrams, hit) + firstInLName;
+				score = Math.max(inOrder, swapped) / 2;
+			}
+			offer(best, new Match(doc, score + bonus), limit);
+		}
+	}//end score
+
+	private List<Customer> searchPhone(String digits, int limit) {
+		// every trigram of the digits is needed, so the rarest one gives the candidates
+		Postings rarest = null;
+		for (long gram : digitGrams(digits)) {
+			Postings postings = _phoneGrams.get(gram);
+			if (postings == null) {
+				return new ArrayList<Customer>();
+			}
+			if (rarest == null || postings.size < rarest.size) {
+				rarest = postings;
+			}
+		}
+		PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1, _worstFirst);
+		for (int i = 0; i < rarest.size; ++i) {
+			int doc = rarest.ids[i];
+			String phone = _phoneDigits.get(doc);
+			if (phone.contains(digits)) {
+				// the last digits are what people remember
+				offer(best, new Match(doc, phone.equals(digits) ? 2 : phone.endsWith(digits) ? 1 : 0), limit);
+			}
+		}
+		return ranked(best);
+	}
+
+	private void offer(PriorityQueue<Match> best, Match match, int limit) {
+		if (best.size() < limit) {
+			best.add(match);
+		}
+		else if (limit > 0 && _worstFirst.compare(match, best.peek()) > 0) {
+			best.poll();
+			best.add(match);
+		}
+	}
+
+	/**
+	 * @return the customers of best, best first
+	 */
+	private List<Customer> ranked(PriorityQueue<Match> best) {
+		Customer[] ranked = new Customer[best.size()];
+		for (int i = ranked.length - 1; i >= 0; --i) {
+			ranked[i] = _customers.get(best.poll().doc);
+		}
+		return new ArrayList<Customer>(Arrays.asList(ranked));
+	}
+
+	private static <K> Postings postings(Map<K, Postings> index, K key) {
+		Postings postings = index.get(key);
+		if (postings == null) {
+			postings = new Postings();
+			index.put(key, postings);
+		}
+		return postings;
+	}
+
+	/**
+	 * @return s in lower case with every run of other characters than letters turned into one space
+	 */
+	static String normalize(String s) {
+		return s == null ? "" : s.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}]+", " ").trim();
+	}
+
+	/**
+	 * @return word and every string made by deleting one letter of it
+	 */
+	private static List<String> deletions(String word) {
+		List<String> keys = new ArrayList<String>(word.length() + 1);
+		keys.add(word);
+		for (int i = 0; i < word.length(); ++i) {
+			// deleting either letter of a double letter gives the same key
+			if (i == 0 || word.charAt(i) != word.charAt(i - 1)) {
+				keys.add(word.substring(0, i) + word.substring(i + 1));
+			}
+		}
+		return keys;
+	}
+
+	private static long gram(char a, char b, char c) {
+		return ((long) a << 32) | ((long) b << 16) | c;
+	}
+
+	/**
+	 * @return the distinct trigrams of the words of a normalized string,
+	 * each word padded with two spaces in front and one behind, sorted
+	 */
+	static long[] trigrams(String normalized) {
+		long[] grams = new long[normalized.length() * 2 + 2];
+		int n = 0;
+		char a = ' ', b = ' ';
+		for (int i = 0; i <= normalized.length(); ++i) {
+			char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+			if (c == ' ' && b == ' ') {
+				continue; // between words
+			}
+			grams[n++] = gram(a, b, c);
+			a = c == ' ' ? ' ' : b;
+			b = c;
+		}
+		Arrays.sort(grams, 0, n);
+		int size = 0;
+		for (int i = 0; i < n; ++i) {
+			if (size == 0 || grams[size - 1] != grams[i]) {
+				grams[size++] = grams[i];
+			}
+		}
+		return Arrays.copyOf(grams, size);
+	}//end trigrams
+
+	/**
+	 * @return trigrams in common over trigrams of either, of a normalized
+	 * name with count distinct trigrams and the sorted trigrams of a query,
+	 * computed without allocating
+	 */
+	private static double similarity(String normalized, int count, long[] query, boolean[] hit) {
+		Arrays.fill(hit, 0, query.length, false);
+		int shared = 0;
+		char a = ' ', b = ' ';
+		for (int i = 0; i <= normalized.length(); ++i) {
+			char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+			if (c == ' ' && b == ' ') {
+				continue;
+			}
+			int at = Arrays.binarySearch(query, gram(a, b, c));
+			if (at >= 0 && !hit[at]) {
+				hit[at] = true;
+				++shared;
+			}
+			a = c == ' ' ? ' ' : b;
+			b = c;
+		}
+		return shared == 0 ? 0 : (double) shared / (query.length + count - shared);
+	}//end similarity
+
+	private static long[] digitGrams(String digits) {
+		long[] grams = new long[Math.max(0, digits.length() - 2)];
+		for (int i = 0; i < grams.length; ++i) {
+			grams[i] = gram(digits.charAt(i), digits.charAt(i + 1), digits.charAt(i + 2));
+		}
+		return grams;
+	}
+
+	/**
+	 * @return the American Soundex code of the first word of a normalized
+	 * string, such as S530 for smith and smyth, or null if it has no letter a-z
+	 */
+	static String soundex(String normalized) {
+		final String codes = "01230120022455012623010202";
+		StringBuilder code = new StringBuilder(4);
+		char previous = 0;
+		for (int i = 0; i < normalized.length() && code.length() < 4; ++i) {
+			char c = normalized.charAt(i);
+			if (c == ' ') {
+				break;
+			}
+			if (c < 'a' || c > 'z') {
+				continue;
+			}
+			char digit = codes.charAt(c - 'a');
+			if (code.length() == 0) {
+				code.append(Character.toUpperCase(c));
+			}
+			else if (digit != '0' && digit != previous) {
+				code.append(digit);
+			}
+			// h and w do not separate letters with the same code, vowels do
+			if (c != 'h' && c != 'w') {
+				previous = digit;
+			}
+		}
+		if (code.length() == 0) {
+			return null;
+		}
+		while (code.length() < 4) {
+			code.append('0');
+		}
+		return code.toString();
+	}//end soundex
+}
@@ -0,0 +1,396 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates a dataset shaped like code/data at any multiple of its size.
+ *
+ * Every column is resampled from the bundled CSVs, and so are the number
+ * of cars per customer and of requests per car, which keeps the skew of
+ * the original (most customers own 10 cars, a few own 20 to 50). Service
+ * requests are made by the owner of the car, and every closed request
+ * refers to an existing request and mechanic.
+ *
+ * Customers are split into shards that are written in parallel, one file
+ * per table and shard. All randomness of a customer comes from generators
+ * seeded with the customer id, so a first pass can count the cars and
+ * requests of each shard without writing anything; the counts give every
+ * shard its own contiguous id range. Memory use does not depend on the
+ * scale, and the same seed always produces the same files.
+ *
+ * Usage: DataGenerator <baseDir> <outDir> <scale> [shards] [seed]
+ *
+ */
+public class DataGenerator {
+	private final int _customers;
+	private final int _mechanics;
+	private final int _shards;
+	private final long _seed;
+
+	//column values of the bundled data, sampled uniformly
+	private final String[] _fnames;
+	private final String[] _lnames;
+	private final String[] _addresses;
+	private final String[] _mechanicFnames;
+	private final String[] _mechanicLnames;
+	private final String[] _experience;
+	//"make,model" pairs, so makes keep their own models
+	private final String[] _makeModels;
+	private final String[] _years;
+	private final String[] _requestDates;
+	private final String[] _odometers;
+	private final String[] _complaints;
+	private final String[] _closedDates;
+	private final String[] _comments;
+	private final String[] _bills;
+	//number of cars of each bundled customer, and of requests of each bundled car
+	private final int[] _carsPerCustomer;
+	private final int[] _requestsPerCar;
+	//fraction of requests that are closed
+	private final double _closedRatio;
+
+	/**
+	 * Reads the bundled data the new rows are sampled from.
+	 *
+	 * @param baseDir directory holding the bundled CSV files
+	 * @param scale multiple of the bundled number of customers and mechanics
+	 * @param shards number of files written per table
+	 * @param seed seed of every random choice
+	 * @throws java.io.IOException when a bundled file cannot be read
+	 */
+	public DataGenerator(String baseDir, int scale, int shards, long seed) throws IOException {
+		if (scale < 1 || shards < 1) {
+			throw new IllegalArgumentException("Scale and number of shards must be positive");
+		}
+		List<String[]> customers = read(baseDir, "customer.csv", 5);
+		List<String[]> mechanics = read(baseDir, "mechanic.csv", 4);
+		List<String[]> cars = read(baseDir, "car.csv", 4);
+		List<String[]> owns = read(baseDir, "owns.csv", 3);
+		List<String[]> requests = read(baseDir, "service_request.csv", 6);
+		List<String[]> closed = read(baseDir, "closed_request.csv", 5);
+
+		this._customers = customers.size() * scale;
+		this._mechanics = mechanics.size() * scale;
+		this._shards = Math.min(shards, _customers);
+		this._seed = seed;
+
+		_fnames = column(customers, 1);
+		_lnames = column(customers, 2);
+		_addresses = column(customers, 4);
+		_mechanicFnames = column(mechanics, 1);
+		_mechanicLnames = column(mechanics, 2);
+		_experience = column(mechanics, 3);
+		_makeModels = new String[cars.size()];
+		for (int i = 0; i < cars.size(); ++i) {
+			_makeModels[i] = cars.get(i)[1] + "," + cars.get(i)[2];
+		}
+		_years = column(cars, 3);
+		_requestDates = column(requests, 3);
+		_odometers = column(requests, 4);
+		_complaints = column(requests, 5);
+		_closedDates = column(closed, 3);
+		// the comment is the only column that may contain commas
+		_comments = new String[closed.size()];
+		_bills = new String[closed.size()];
+		for (int i = 0; i < closed.size(); ++i) {
+			String rest = closed.get(i)[4];
+			int comma = rest.lastIndexOf(',');
+			_comments[i] = rest.substring(0, comma);
+			_bills[i] = rest.substring(comma + 1);
+		}
+
+		Map<String, Integer> carsOf = new HashMap<String, Integer>();
+		for (String[] c : customers) carsOf.put(c[0].trim(), 0);
+		for (String[] o : owns) increment(carsOf, o[1].trim());
+		_carsPerCustomer = values(carsOf);
+		Map<String, Integer> requestsOf = new HashMap<String, Integer>();
+		for (String[] c : cars) requestsOf.put(c[0].trim(), 0);
+		for (String[] r : requests) increment(requestsOf, r[2].trim());
+		_requestsPerCar = values(requestsOf);
+		_closedRatio = requests.isEmpty() ? 0 : Math.min(1.0, closed.size() / (double) requests.size());
+	}
+
+	/**
+	 * Number of rows of each table written by one shard, and the first id
+	 * of its owns, service request and closed request ranges.
+	 */
+	private static class ShardCounts {
+		long cars;
+		long requests;
+		long closed;
+		long firstCar;
+		long firstRid;
+		long firstWid;
+	}
+
+	/**
+	 * Writes the generated tables into outDir, one file per table when there
+	 * is a single shard (the names create.sql loads), otherwise
+	 * table-NNN.csv per shard.
+	 *
+	 * @param outDir directory the files are written to; created if missing
+	 * @param threads number of shards generated at the same time
+	 * @throws java.io.IOException when a file cannot be written
+	 * @throws java.lang.InterruptedException when interrupted while waiting for the shards
+	 */
+	public void generate(final String outDir, int threads) throws IOException, InterruptedException {
+		new File(outDir).mkdirs();
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, _shards)));
+		try {
+			// first pass: count the rows of every shard to give it its id ranges
+			List<Future<ShardCounts>> counting = new ArrayList<Future<ShardCounts>>();
+			for (int s = 0; s < _shards; ++s) {
+				final int shard = s;
+				counting.add(executor.submit(new Callable<ShardCounts>() {
+					public ShardCounts call() {
+						return count(shard);
+					}
+				}));
+			}
+			final ShardCounts[] counts = new ShardCounts[_shards];
+			long cars = 0, rids = 0, wids = 0;
+			for (int s = 0; s < _shards; ++s) {
+				counts[s] = get(counting.get(s));
+				counts[s].firstCar = cars;
+				counts[s].firstRid = rids;
+				counts[s].firstWid = wids;
+				cars += counts[s].cars;
+				rids += counts[s].requests;
+				wids += counts[s].closed;
+			}
+			if (cars > Integer.MAX_VALUE || rids > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Scale too large: ids would not fit the INTEGER columns");
+			}
+
+			// second pass: write the shards
+			List<Future<Void>> writing = new ArrayList<Future<Void>>();
+			for (int s = 0; s < _shards; ++s) {
+				final int shard = s;
+				writing.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						write(outDir, shard, counts[shard]);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : writing) {
+				get(f);
+			}
+			long ms = (System.nanoTime() - start) / 1000000;
+			System.out.println("Generated " + _customers + " customers, " + _mechanics + " mechanics, " + cars
+				+ " cars, " + rids + " service requests and " + wids + " closed requests in " + _shards
+				+ " shards in " + ms + " ms");
+		}finally {
+			executor.shutdownNow();
+		}
+	}//end generate
+
+	/**
+	 * Replays the count decisions of every customer of shard.
+	 */
+	private ShardCounts count(int shard) {
+		ShardCounts counts = new ShardCounts();
+		for (int cid = firstOf(shard, _customers); cid < firstOf(shard + 1, _customers); ++cid) {
+			SplittableRandom shape = new SplittableRandom(mix(_seed, 2L * cid));
+			int cars = _carsPerCustomer[shape.nextInt(_carsPerCustomer.length)];
+			counts.cars += cars;
+			for (int c = 0; c < cars; ++c) {
+				int requests = _requestsPerCar[shape.nextInt(_requestsPerCar.length)];
+				counts.requests += requests;
+				for (int r = 0; r < requests; ++r) {
+					if (shape.nextDouble() < _closedRatio) {
+						++counts.closed;
+					}
+				}
+			}
+		}
+		return counts;
+	}//end count
+
+	/**
+	 * Writes the rows of shard. The shape generator makes exactly the
+	 * draws of count, in the same order; every other column is drawn from
+	 * a second generator so the two passes agree.
+	 */
+	private void write(String outDir, int shard, ShardCounts counts) throws IOException {
+		BufferedWriter customer = writer(outDir, "customer", shard);
+		BufferedWriter mechanic = writer(outDir, "mechanic", shard);
+		BufferedWriter car = writer(outDir, "car", shard);
+		BufferedWriter owns = writer(outDir, "owns", shard);
+		BufferedWriter request = writer(outDir, "service_request", shard);
+		BufferedWriter closed = writer(outDir, "closed_request", shard);
+		try {
+			for (int mid = firstOf(shard, _mechanics); mid < firstOf(shard + 1, _mechanics); ++mid) {
+				SplittableRandom rnd = new SplittableRandom(mix(_seed, -1L - mid));
+				mechanic.write(mid + "," + pick(_mechanicFnames, rnd) + "," + pick(_mechanicLnames, rnd) + ","
+					+ pick(_experience, rnd) + "\n");
+			}
+
+			long carId = counts.firstCar;
+			long rid = counts.firstRid;
+			long wid = counts.firstWid;
+			for (int cid = firstOf(shard, _customers); cid < firstOf(shard + 1, _customers); ++cid) {
+				SplittableRandom shape = new SplittableRandom(mix(_seed, 2L * cid));
+				SplittableRandom rnd = new SplittableRandom(mix(_seed, 2L * cid + 1));
+				customer.write(cid + "," + pick(_fnames, rnd) + "," + pick(_lnames, rnd) + "," + phone(rnd) + ","
+					+ pick(_addresses, rnd) + "\n");
+				int cars = _carsPerCustomer[shape.nextInt(_carsPerCustomer.length)];
+				for (int c = 0; c < cars; ++c, ++carId) {
+					String vin = vin(carId, rnd);
+					car.write(vin + "," + pick(_makeModels, rnd) + "," + pick(_years, rnd) + "\n");
+					owns.write(carId + "," + cid + "," + vin + "\n");
+					int requests = _requestsPerCar[shape.nextInt(_requestsPerCar.length)];
+					for (int r = 0; r < requests; ++r, ++rid) {
+						request.write(rid + "," + cid + "," + vin + "," + pick(_requestDates, rnd) + ","
+							+ pick(_odometers, rnd) + "," + pick(_complaints, rnd) + "\n");
+						if (shape.nextDouble() < _closedRatio) {
+							int comment = rnd.nextInt(_comments.length);
+							closed.write(wid + "," + rid + "," + rnd.nextInt(_mechanics) + "," + pick(_closedDates, rnd)
+								+ "," + _comments[comment] + "," + _bills[rnd.nextInt(_bills.length)] + "\n");
+							++wid;
+						}
+					}
+				}
+			}//end for
+		}finally {
+			customer.close();
+			mechanic.close();
+			car.close();
+			owns.close();
+			request.close();
+			closed.close();
+		}
+	}//end write
+
+	/**
+	 * First id of shard when count ids are split into equal ranges.
+	 */
+	private int firstOf(int shard, int count) {
+		return (int) ((long) count * shard / _shards);
+	}
+
+	private BufferedWriter writer(String outDir, String table, int shard) throws IOException {
+		String name = _shards == 1 ? table + ".csv" : String.format("%s-%03d.csv", table, shard);
+		return new BufferedWriter(new FileWriter(new File(outDir, name)), 1 << 16);
+	}
+
+	/**
+	 * VIN of the index-th car: six letters that differ for every index below
+	 * 26^6, followed by ten random digits, like the bundled VINs.
+	 */
+	private static String vin(long index, SplittableRandom rnd) {
+		final long space = 308915776L; // 26^6
+		// multiplying by a number coprime with 26 permutes [0, 26^6)
+		long code = (index * 16777619L + 7654321L) % space;
+		char[] vin = new char[16];
+		for (int i = 5; i >= 0; --i) {
+			vin[i] = (char) ('A' + code % 26);
+			code /= 26;
+		}
+		for (int i = 6; i < 16; ++i) {
+			vin[i] = (char) ('0' + rnd.nextInt(10));
+		}
+		return new String(vin);
+	}
+
+	private static String phone(SplittableRandom rnd) {
+		return String.format("(%03d)%03d-%04d", 200 + rnd.nextInt(800), rnd.nextInt(1000), rnd.nextInt(10000));
+	}
+
+	private static String pick(String[] values, SplittableRandom rnd) {
+		return values[rnd.nextInt(values.length)];
+	}
+
+	/**
+	 * Seed for one entity, scrambled so neighbouring ids get unrelated streams.
+	 */
+	private static long mix(long seed, long id) {
+		long z = seed + id * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static <T> T get(Future<T> f) throws IOException, InterruptedException {
+		try {
+			return f.get();
+		}catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Reads a bundled file, splitting each line into at most fields columns
+	 * so a free-text last column keeps its commas.
+	 */
+	private static List<String[]> read(String baseDir, String file, int fields) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(new File(baseDir, file)));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					rows.add(line.split(",", fields));
+				}
+			}
+		}finally {
+			reader.close();
+		}
+		if (rows.isEmpty()) {
+			throw new IOException(file + " in " + baseDir + " is empty");
+		}
+		return rows;
+	}
+
+	private static String[] column(List<String[]> rows, int index) {
+		String[] values = new String[rows.size()];
+		for (int i = 0; i < rows.size(); ++i) {
+			values[i] = rows.get(i)[index];
+		}
+		return values;
+	}
+
+	private static void increment(Map<String, Integer> counts, String key) {
+		Integer n = counts.get(key);
+		if (n != null) {
+			counts.put(key, n + 1);
+		}
+	}
+
+	private static int[] values(Map<String, Integer> counts) {
+		int[] values = new int[counts.size()];
+		int i = 0;
+		for (int n : counts.values()) {
+			values[i++] = n;
+		}
+		return values;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java DataGenerator <baseDir> <outDir> <scale> [shards] [seed]");
+			return;
+		}
+		int scale = Integer.parseInt(args[2]);
+		int shards = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		long seed = args.length > 4 ? Long.parseLong(args[4]) : 166L;
+		DataGenerator generator = new DataGenerator(args[0], scale, shards, seed);
+		generator.generate(args[1], Runtime.getRuntime().availableProcessors());
+	}//end main
+}
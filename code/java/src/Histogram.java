@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of non-negative longs (latencies in nanoseconds),
+ * in the manner of HdrHistogram: every power of two is split into 32
+ * equal buckets, so a recorded value is known to within about 3% over
+ * the whole range of a long. Recording is one array increment without
+ * locks; reading while other threads record gives a close but not
+ * exactly consistent view.
+ *
+ */
+public class Histogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	//values below 2 * SUB_COUNT have a bucket of their own; each further power of two has SUB_COUNT buckets
+	private static final int BUCKETS = (62 - SUB_BITS) * SUB_COUNT + 2 * SUB_COUNT;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+	private volatile long _max = 0;
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		_counts.incrementAndGet(index(value));
+		_count.increment();
+		_sum.add(value);
+		if (value > _max) {
+			synchronized (this) {
+				if (value > _max) {
+					_max = value;
+				}
+			}
+		}
+	}
+
+	private static int index(long value) {
+		if (value < 2 * SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB_COUNT + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	private static long highestValue(int index) {
+		if (index < 2 * SUB_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_COUNT - 1;
+		long sub = index - shift * SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return _count.sum();
+	}
+
+	public long getSum() {
+		return _sum.sum();
+	}
+
+	public long getMax() {
+		return _max;
+	}
+
+	/**
+	 * @param q quantile between 0 and 1, e.g. 0.99
+	 * @return a value at least as large as the fraction q of the recorded
+	 * values, or 0 when nothing was recorded
+	 */
+	public long quantile(double q) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i) {
+			counts[i] = _counts.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), _max);
+			}
+		}
+		return _max;
+	}//end quantile
+}
@@ -0,0 +1,123 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out ids for the shop sequences from blocks reserved in memory.
+ * The sequences are created with INCREMENT BY the block size, so a single
+ * nextval reserves a whole block [value, value + increment) for this
+ * process. Other processes reserve their own blocks from the same sequence,
+ * which keeps ids unique across processes; ids left in a block when the
+ * process exits are simply never used.
+ *
+ */
+public class IdAllocator {
+	private final ConnectionPool _pool;
+	//reserved range per lower-cased sequence name
+	private final Map<String, Range> _ranges = new HashMap<String, Range>();
+
+	private static class Range {
+		long next;
+		long end;
+		//INCREMENT BY of the sequence, read once
+		long increment = 0;
+	}
+
+	public IdAllocator(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Returns the next id of sequence, reserving a new block from the
+	 * database only when the current block is used up.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return an id no other caller or process will receive
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int next(String sequence) throws SQLException {
+		String key = sequence.toLowerCase();
+		Range range;
+		synchronized (this) {
+			range = _ranges.get(key);
+			if (range == null) {
+				range = new Range();
+				_ranges.put(key, range);
+			}
+		}
+		synchronized (range) {
+			if (range.next >= range.end) {
+				reserve(sequence, range);
+			}
+			return (int) range.next++;
+		}
+	}//end next
+
+	/**
+	 * @return INCREMENT BY of sequence, the size of the blocks nextval reserves
+	 * @throws java.sql.SQLException when no connection can be borrowed
+	 */
+	public long increment(String sequence) throws SQLException {
+		ConnectionPool.ShopConnection conn = _pool.borrow();
+		try {
+			return readIncrement(conn, sequence);
+		}finally {
+			_pool.release(conn);
+		}
+	}
+
+	/**
+	 * Reserves the next block of sequence into range.
+	 */
+	private void reserve(String sequence, Range range) throws SQLException {
+		ConnectionPool.ShopConnection conn = _pool.borrow();
+		try {
+			if (range.increment == 0) {
+				range.increment = readIncrement(conn, sequence);
+			}
+			PreparedStatement stmt = conn.statements().prepare("nextval", "Select nextval(?)");
+			stmt.setString(1, sequence);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) {
+				rs.close();
+				throw new SQLException("nextval returned no row for " + sequence);
+			}
+			range.next = rs.getLong(1);
+			range.end = range.next + range.increment;
+			rs.close();
+		}catch (SQLException e) {
+			conn.failed(e);
+			throw e;
+		}finally {
+			_pool.release(conn);
+		}
+	}//end reserve
+
+	/**
+	 * Looks up INCREMENT BY of sequence. A negative or unknown increment is
+	 * treated as 1, which reserves a single id per nextval and is always safe.
+	 */
+	private static long readIncrement(ConnectionPool.ShopConnection conn, String sequence) {
+		try {
+			PreparedStatement stmt = conn.statements().prepare("sequenceIncrement",
+				"SELECT seqincrement FROM pg_sequence WHERE seqrelid = CAST(? AS regclass)");
+			stmt.setString(1, sequence);
+			ResultSet rs = stmt.executeQuery();
+			long increment = rs.next() ? rs.getLong(1) : 1;
+			rs.close();
+			return Math.max(1, increment);
+		}catch (SQLException e) {
+			// pg_sequence only exists from Postgres 10 on
+			return 1;
+		}
+	}
+
+	/**
+	 * Drops every reserved block, e.g. after the sequences were recreated.
+	 */
+	public synchronized void reset() {
+		_ranges.clear();
+	}
+}
@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keys ranked by a count, highest first, with constant time increments
+ * and pages. The keys are kept in one array sorted by count, and for every
+ * count the index where its block of keys starts: an increment swaps the
+ * key with the first key of its block and moves the block boundary, so
+ * the array stays sorted without searching. A page is a slice of the
+ * array, so reading ranks 1000 to 1010 costs the same as ranks 1 to 10.
+ *
+ * Keys with the same count are in no particular order.
+ *
+ */
+public class Leaderboard {
+	/**
+	 * A key with its rank, starting at 1, and count.
+	 */
+	public static class Entry {
+		public final int rank;
+		public final String key;
+		public final int count;
+
+		Entry(int rank, String key, int count) {
+			this.rank = rank;
+			this.key = key;
+			this.count = count;
+		}
+	}
+
+	private String[] _keys = new String[1024];
+	private int[] _counts = new int[1024];
+	private int _size = 0;
+	private final HashMap<String, Integer> _positions = new HashMap<String, Integer>();
+	//count -> index of the first key with that count
+	private final HashMap<Integer, Integer> _blockStart = new HashMap<Integer, Integer>();
+
+	/**
+	 * Appends a key while loading; keys must be added highest count first.
+	 *
+	 * @throws IllegalArgumentException when count is higher than the previous one or key is already ranked
+	 */
+	public synchronized void add(String key, int count) {
+		if (count < 0 || (_size > 0 && count > _counts[_size - 1])) {
+			throw new IllegalArgumentException("Keys must be added highest count first: " + key + " " + count);
+		}
+		if (_positions.containsKey(key)) {
+			throw new IllegalArgumentException("Already ranked: " + key);
+		}
+		append(key, count);
+	}
+
+	private int append(String key, int count) {
+		if (_size == _keys.length) {
+			_keys = Arrays.copyOf(_keys, _size * 2);
+			_counts = Arrays.copyOf(_counts, _size * 2);
+		}
+		if (!_blockStart.containsKey(count)) {
+			_blockStart.put(count, _size);
+		}
+		_keys[_size] = key;
+		_counts[_size] = count;
+		_positions.put(key, _size);
+		return _size++;
+	}
+
+	/**
+	 * Adds one to the count of key, ranking it with a count of 1 if it is new.
+	 *
+	 * @return the new count of key
+	 */
+	public synchronized int increment(String key) {
+		Integer at = _positions.get(key);
+		// new keys start at the tail with a count of 0, which never comes before another count
+		int i = at == null ? append(key, 0) : at;
+		int count = _counts[i];
+		int first = _blockStart.get(count);
+		// move the key to the front of its block, which becomes the tail of the next block up
+		String other = _keys[first];
+		_keys[first] = key;
+		_keys[i] = other;
+		_positions.put(key, first);
+		_positions.put(other, i);
+		_counts[first] = count + 1;
+		if (first + 1 < _size && _counts[first + 1] == count) {
+			_blockStart.put(count, first + 1);
+		}
+		else {
+			_blockStart.remove(count);
+		}
+		if (!_blockStart.containsKey(count + 1)) {
+			_blockStart.put(count + 1, first);
+		}
+		return count + 1;
+	}//end increment
+
+	/**
+	 * @return the count of key, 0 if it is not ranked
+	 */
+	public synchronized int count(String key) {
+		Integer at = _positions.get(key);
+		return at == null ? 0 : _counts[at];
+	}
+
+	/**
+	 * @return number of keys with a count above 0
+	 */
+	public synchronized int size() {
+		Integer zeros = _blockStart.get(0);
+		return zeros == null ? _size : zeros;
+	}
+
+	/**
+	 * @param offset number of ranks to skip, e.g. 0 for the top
+	 * @param limit maximum number of entries returned
+	 * @return the keys ranked offset + 1 to offset + limit, leaving out keys with a count of 0
+	 */
+	public synchronized List<Entry> page(int offset, int limit) {
+		int end = (int) Math.min((long) offset + limit, size());
+		List<Entry> page = new ArrayList<Entry>(Math.max(0, end - offset));
+		for (int i = Math.max(0, offset); i < end; ++i) {
+			page.add(new Entry(i + 1, _keys[i], _counts[i]));
+		}
+		return page;
+	}
+}
@@ -0,0 +1,167 @@
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded read-through cache for reference lookups. Entries are evicted
+ * least recently used first once the cache is full, and expire after a
+ * time to live so rows changed behind the cache's back are eventually
+ * read again. A size of 0 turns the cache off.
+ *
+ */
+public class LookupCache<K, V> {
+	/**
+	 * Reads a value from the database on a cache miss.
+	 */
+	public interface Loader<K, V> {
+		/**
+		 * @return the value of key, or null when there is none
+		 * @throws java.sql.SQLException when the lookup fails
+		 */
+		V load(K key) throws SQLException;
+	}
+
+	/**
+	 * Selects the keys dropped by invalidateMatching.
+	 */
+	public interface KeyFilter<K> {
+		boolean matches(K key);
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final String _name;
+	private final int _maxSize;
+	private final long _ttlMs;
+	//access-ordered, so the eldest entry is the least recently used one
+	private final LinkedHashMap<K, Entry<V>> _entries;
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+	//bumped by every invalidation, so loads that started before it are not cached
+	private long _generation = 0;
+
+	/**
+	 * @param name name used in the statistics
+	 * @param maxSize maximum number of entries, 0 to disable caching
+	 * @param ttlMs time an entry stays valid after it was loaded
+	 */
+	public LookupCache(String name, final int maxSize, long ttlMs) {
+		this._name = name;
+		this._maxSize = maxSize;
+		this._ttlMs = ttlMs;
+		this._entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				if (size() > maxSize) {
+					++_evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value of key, loading it on a miss. Null values
+	 * are not cached: a row that does not exist yet may be added by
+	 * another process at any time.
+	 *
+	 * @param key key to look up
+	 * @param loader reads the value on a miss
+	 * @return the value, or null if the loader found none
+	 * @throws java.sql.SQLException when the loader fails
+	 */
+	public V get(K key, Loader<K, V> loader) throws SQLException {
+		if (_maxSize <= 0) {
+			return loader.load(key);
+		}
+		long generation;
+		synchronized (this) {
+			generation = _generation;
+			Entry<V> entry = _entries.get(key);
+			if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+				++_hits;
+				return entry.value;
+			}
+			if (entry != null) {
+				_entries.remove(key);
+			}
+			++_misses;
+		}
+		// two threads missing the same key both load it; the last one wins
+		V value = loader.load(key);
+		if (value != null) {
+			synchronized (this) {
+				// a value read before an invalidation may be stale: serve it once, do not keep it
+				if (generation == _generation) {
+					_entries.put(key, new Entry<V>(value, System.currentTimeMillis() + _ttlMs));
+				}
+			}
+		}
+		return value;
+	}//end get
+
+	/**
+	 * @param key key to drop; a key of another type matches nothing
+	 */
+	public synchronized void invalidate(Object key) {
+		++_generation;
+		_entries.remove(key);
+	}
+
+	/**
+	 * Drops every key filter matches, scanning the whole cache.
+	 */
+	public synchronized void invalidateMatching(KeyFilter<K> filter) {
+		++_generation;
+		Iterator<K> keys = _entries.keySet().iterator();
+		while (keys.hasNext()) {
+			if (filter.matches(keys.next())) {
+				keys.remove();
+			}
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		++_generation;
+		_entries.clear();
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * @return e.g. "mechanic: 812 hits, 45 misses (94.7%), 3 evictions"
+	 */
+	public synchronized String stats() {
+		long total = _hits + _misses;
+		return String.format("%s: %d hits, %d misses (%.1f%%), %d evictions", _name, _hits, _misses,
+			total == 0 ? 0.0 : 100.0 * _hits / total, _evictions);
+	}
+}
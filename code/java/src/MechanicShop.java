@@ -11,19 +11,25 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
 
 import java.util.ArrayList;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.ConcurrentHashMap;
 // import 
 
 /**
@@ -33,23 +39,103 @@ import java.util.ArrayList;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//pool of physical database connections shared by every operation
+	private ConnectionPool _pool = null;
+	//ids handed out from blocks reserved on the sequences
+	private IdAllocator _ids = null;
+	//reference lookups of the menu, dropped by the writes that change them
+	private final LookupCache<String, List<Customer>> _customersByLName = newLookupCache("customersByLName");
+	//first unfiltered page of each customer's cars
+	private final LookupCache<Integer, List<Car>> _carsOwned = newLookupCache("carsOwned");
+	private final LookupCache<Integer, Boolean> _mechanics = newLookupCache("mechanic");
+	//opening date of service requests
+	private final LookupCache<Integer, java.sql.Date> _serviceRequests = newLookupCache("serviceRequest");
+	//non-null when invalidations are shared with other processes over LISTEN/NOTIFY
+	private CacheListener _cacheListener = null;
+	//non-null when statements slower than mechanicshop.slowQuery.ms are logged
+	private SlowQueryLog _slowLog = null;
+	//non-null when Service_Request and Closed_Request are partitioned by date
+	private Partitioning _partitioning = null;
+	//non-null when the reports are answered from an in-memory copy of the tables
+	private AnalyticsSnapshot _analytics = null;
+	//non-null when the reports run as one statement per key range, mechanicshop.report.parallel at once
+	private ParallelReports _parallelReports = null;
+	//non-null when service requests are journaled locally and inserted in batches behind the clerk
+	private WriteBehindJournal _writeBehind = null;
+	//non-null when customers are looked up in memory, with typos, sounds and phones
+	private volatile CustomerIndex _customerIndex = null;
+	//cars ranked by number of service requests, loaded from Car_Service_Count on first use
+	private final Object _rankingLock = new Object();
+	private Leaderboard _serviceRanking = null;
+	private long _serviceRankingLoadedAt = 0;
+	//while the ranking is reloaded, the cars whose count went up meanwhile
+	private List<String> _rankingIncrements = null;
+	//make, model and year of the ranked cars
+	private final ConcurrentHashMap<String, Car> _rankedCars = new ConcurrentHashMap<String, Car>();
 	
+	/**
+	 * @return output of the terminal of the calling thread
+	 */
+	static PrintStream out() {
+		return Terminal.current().out();
+	}
+
+	/**
+	 * @return error output of the terminal of the calling thread
+	 */
+	static PrintStream err() {
+		return Terminal.current().err();
+	}
+
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
-		System.out.print("Connecting to database...");
+		out().print("Connecting to database...");
 		try{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println ("Connection URL: " + url + "\n");
+			out().println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
+			// number of executions before the driver switches a statement to a server-side prepare
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			props.setProperty("prepareThreshold", Integer.toString(Integer.getInteger("mechanicshop.prepareThreshold", 5)));
+
+			// obtain a pool of physical connections
+	        this._pool = new ConnectionPool(url, props,
+	        	Integer.getInteger("mechanicshop.pool.min", 1),
+	        	Integer.getInteger("mechanicshop.pool.max", 8),
+	        	Long.getLong("mechanicshop.pool.idleTimeout", 60000L),
+	        	Long.getLong("mechanicshop.pool.leakThreshold", 30000L),
+	        	Long.getLong("mechanicshop.pool.borrowTimeout", 10000L),
+	        	Long.getLong("mechanicshop.pool.validationInterval", 500L));
+	        this._ids = new IdAllocator(this._pool);
+	        if (Boolean.getBoolean("mechanicshop.cache.notify")) {
+	        	this._cacheListener = new CacheListener(this._pool, new CacheListener.Receiver() {
+	        		public void invalidated(String cache, String key) {
+	        			invalidateLocal(cache, key);
+	        			CustomerIndex index = _customerIndex;
+	        			if (index != null && "customersByLName".equals(cache)) {
+	        				index.catchUpLater(); // customers added by another process
+	        			}
+	        		}
+	        	});
+	        	this._cacheListener.start();
+	        }
+	        long slowMs = Long.getLong("mechanicshop.slowQuery.ms", 0L);
+	        if (slowMs > 0) {
+	        	this._slowLog = new SlowQueryLog(this._pool, slowMs, Boolean.getBoolean("mechanicshop.slowQuery.explain"),
+	        		new File(System.getProperty("mechanicshop.slowQuery.file", "slow-queries.log")),
+	        		Long.getLong("mechanicshop.slowQuery.maxMb", 10L) << 20,
+	        		Integer.getInteger("mechanicshop.slowQuery.keep", 5));
+	        }
+	        int reportRanges = Integer.getInteger("mechanicshop.report.parallel", 0);
+	        if (reportRanges > 1) {
+	        	this._parallelReports = new ParallelReports(this, reportRanges);
+	        }
+	        out().println("Done");
 		}catch(Exception e){
-			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
+			err().println("Error - Unable to Connect to Database: " + e.getMessage());
+	        out().println("Make sure you started postgres on this machine");
 	        System.exit(-1);
 		}
 	}
@@ -62,14 +148,25 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow ("adhoc", start);
+		try {
+			// creates a statement object
+			Statement stmt = conn.connection ().createStatement ();
+
+			// issues the update instruction
+			rows = stmt.executeUpdate (sql);
+
+			// close the instruction
+		    stmt.close ();
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished ("adhoc", sql, null, start, rows);
+		}
 	}//end executeUpdate
 
 	/**
@@ -82,37 +179,26 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow ("adhoc", start);
+		try {
+			//creates a statement object
+			Statement stmt = conn.connection ().createStatement ();
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+			int rowCount = printResult (rs);
+			stmt.close ();
+			rows = rowCount;
+			return rowCount;
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished ("adhoc", query, null, start, rows);
+		}
 	}
 	
 	/**
@@ -125,31 +211,26 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow ("adhoc", start);
+		try {
+			//creates a statement object 
+			Statement stmt = conn.connection ().createStatement (); 
+			
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (query); 
+			List<List<String>> result = collectResult (rs);
+			stmt.close (); 
+			rows = result.size ();
+			return result; 
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished ("adhoc", query, null, start, rows);
+		}
 	}//end executeQueryAndReturnResult
 	
 	/**
@@ -161,26 +242,467 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow ("adhoc", start);
+		try {
+			//creates a statement object
+			Statement stmt = conn.connection ().createStatement ();
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+			int rowCount = 0;
+
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			stmt.close ();
+			rows = rowCount;
+			return rowCount;
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished ("adhoc", query, null, start, rows);
+		}
+	}
+
+	/**
+	 * Borrows a connection for statement key, counting a failed borrow as a
+	 * failed execution of the statement.
+	 *
+	 * @param key statement the connection is borrowed for
+	 * @param start System.nanoTime() when the statement was requested
+	 * @throws java.sql.SQLException when no connection could be borrowed
+	 */
+	private ConnectionPool.ShopConnection borrow (String key, long start) throws SQLException {
+		try {
+			return this._pool.borrow ();
+		}catch (SQLException e) {
+			Metrics.statement (key, start, -1);
+			throw e;
+		}
+	}
+
+	/**
+	 * Records a statement in the metrics and, when slower than
+	 * mechanicshop.slowQuery.ms, in the slow query log.
+	 *
+	 * @param rows rows returned or changed, or -1 when the statement failed
+	 */
+	private void finished (String key, String sql, Object[] params, long start, long rows) {
+		Metrics.statement (key, start, rows);
+		if (this._slowLog != null) {
+			this._slowLog.check (key, sql, params, start, rows);
+		}
+	}
+
+	/**
+	 * Binds params, in order, to the placeholders of a prepared statement.
+	 *
+	 * @param stmt the prepared statement
+	 * @param params values for each '?' in the statement
+	 * @throws java.sql.SQLException when a value cannot be bound
+	 */
+	private static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+		stmt.clearParameters ();
+		for (int i = 0; i < params.length; ++i) {
+			if (params[i] == null)
+				stmt.setNull (i + 1, Types.NULL);
+			else
+				stmt.setObject (i + 1, params[i]);
+		}
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	//rows fetched per round trip by streamed report queries
+	static final int REPORT_FETCH_SIZE = Integer.getInteger ("mechanicshop.fetchSize", 500);
 
+	/**
+	 * Row handler that outputs rows to standard out, preceded by a header
+	 * line with the column names.
+	 */
+	private static class RowPrinter extends ReportRows {
 		int rowCount = 0;
+		private String[] _columns;
+
+		public void columns (String... names) {
+			_columns = names;
+			rowCount = 0;
+		}
+
+		public void values (String... values) {
+			StringBuilder line = new StringBuilder ();
+			if (rowCount == 0){
+				for (String name : _columns){
+					line.append (name).append ('\t');
+				}
+				line.append ('\n');
+			}
+			for (String value : values)
+				line.append (value).append ('\t');
+			out().println (line);
+			++rowCount;
+		}
+	}
+
+	/**
+	 * Outputs every row of rs to standard out, preceded by a header line
+	 * with the column names, and closes rs.
+	 *
+	 * @param rs the result set to print
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to read the result set
+	 */
+	private static int printResult (ResultSet rs) throws SQLException {
+		RowPrinter printer = new RowPrinter ();
+		//iterates through the result set and output them to standard out.
+		while (rs.next()){
+			printer.row (rs);
+		}//end while
+		rs.close ();
+		return printer.rowCount;
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
+	/**
+	 * Saves every row of rs as a list of attribute values and closes rs.
+	 *
+	 * @param rs the result set to read
+	 * @return the rows of rs as a list of records
+	 * @throws java.sql.SQLException when failed to read the result set
+	 */
+	private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
+		int numCol = rs.getMetaData ().getColumnCount ();
+		List<List<String>> result  = new ArrayList<List<String>>();
+		while (rs.next()){
+			List<String> record = new ArrayList<String>();
+			for (int i=1; i<=numCol; ++i)
+				record.add(rs.getString (i));
+			result.add(record);
 		}//end while
-		stmt.close ();
-		return rowCount;
+		rs.close ();
+		return result;
 	}
-	
+
+	/**
+	 * Method to execute a parameterized update SQL statement.  The statement
+	 * is prepared once per connection and cached under key.
+	 *
+	 * @param key name of the operation issuing the statement
+	 * @param sql the input SQL string with '?' placeholders
+	 * @param params values bound to the placeholders
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executeUpdate (String key, String sql, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow (key, start);
+		try {
+			PreparedStatement stmt = conn.statements ().prepare (key, sql);
+			bind (stmt, params);
+			rows = stmt.executeUpdate ();
+			return (int) rows;
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished (key, sql, params, start, rows);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute a parameterized query and print the results to
+	 * standard out as they arrive.  Rows are streamed with
+	 * executeQueryStreaming, so memory use does not grow with the result.
+	 *
+	 * @param key name of the operation issuing the query
+	 * @param query the input query string with '?' placeholders
+	 * @param params values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String key, String query, Object... params) throws SQLException {
+		RowPrinter printer = new RowPrinter ();
+		executeQueryStreaming (key, query, REPORT_FETCH_SIZE, printer, params);
+		return printer.rowCount;
+	}
+
+	/**
+	 * Method to execute a parameterized query and hand each row to handler
+	 * as it is read.  The query runs in a transaction so the driver can use
+	 * a server-side cursor and fetch fetchSize rows per round trip instead of
+	 * buffering the whole result.
+	 *
+	 * @param key name of the operation issuing the query
+	 * @param query the input query string with '?' placeholders
+	 * @param fetchSize number of rows fetched per round trip
+	 * @param handler callback receiving every row
+	 * @param params values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryStreaming (String key, String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow (key, start);
+		try {
+			// cursors only stay open inside a transaction
+			conn.connection ().setAutoCommit (false);
+			PreparedStatement stmt = conn.statements ().prepare (key, query);
+			stmt.setFetchSize (fetchSize);
+			bind (stmt, params);
+			ResultSet rs = stmt.executeQuery ();
+			int rowCount = 0;
+			while (rs.next()){
+				handler.row (rs);
+				++rowCount;
+			}//end while
+			rs.close ();
+			conn.connection ().commit ();
+			conn.connection ().setAutoCommit (true);
+			rows = rowCount;
+			return rowCount;
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished (key, query, params, start, rows);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and return the results as
+	 * a list of records.  The statement is prepared once per connection and
+	 * cached under key.
+	 *
+	 * @param key name of the operation issuing the query
+	 * @param query the input query string with '?' placeholders
+	 * @param params values bound to the placeholders
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String key, String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow (key, start);
+		try {
+			PreparedStatement stmt = conn.statements ().prepare (key, query);
+			bind (stmt, params);
+			List<List<String>> result = collectResult (stmt.executeQuery ());
+			rows = result.size ();
+			return result;
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished (key, query, params, start, rows);
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query and map every row to a typed
+	 * record.  Columns are read with their native getters, so no
+	 * intermediate strings are built.
+	 *
+	 * @param key name of the operation issuing the query
+	 * @param query the input query string with '?' placeholders
+	 * @param mapper maps the current row to a record
+	 * @param params values bound to the placeholders
+	 * @return one record per row, in result order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> executeQueryForList (String key, String query, RowMapper<T> mapper, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow (key, start);
+		try {
+			PreparedStatement stmt = conn.statements ().prepare (key, query);
+			bind (stmt, params);
+			ResultSet rs = stmt.executeQuery ();
+			List<T> result = new ArrayList<T>();
+			while (rs.next()){
+				result.add(mapper.map (rs));
+			}//end while
+			rs.close ();
+			rows = result.size ();
+			return result;
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished (key, query, params, start, rows);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and return the number of
+	 * results.  The statement is prepared once per connection and cached
+	 * under key.
+	 *
+	 * @param key name of the operation issuing the query
+	 * @param query the input query string with '?' placeholders
+	 * @param params values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String key, String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = borrow (key, start);
+		try {
+			PreparedStatement stmt = conn.statements ().prepare (key, query);
+			bind (stmt, params);
+			ResultSet rs = stmt.executeQuery ();
+
+			int rowCount = 0;
+			while (rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			rows = rowCount;
+			return rowCount;
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			finished (key, query, params, start, rows);
+		}
+	}
+
+	/**
+	 * Runs an insert into a table partitioned by date, creating the partition
+	 * of the row's month if there is none yet.
+	 *
+	 * @param date date of the inserted row, in format mm/dd/yyyy
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	private int executePartitionedInsert (String key, String sql, String date, Object... params) throws SQLException {
+		try {
+			return executeUpdate (key, sql, params);
+		}catch (SQLException e) {
+			if (this._partitioning == null || !Partitioning.isMissingPartition (e)) {
+				throw e;
+			}
+		}
+		try {
+			this._partitioning.ensureFor (date);
+		}catch (SQLException e) {
+			// another process may just have created it
+		}
+		return executeUpdate (key, sql, params);
+	}
+
+	/**
+	 * Adopts the date partitioning of the request tables, if the
+	 * partition_by_date schema change was applied: keeps
+	 * mechanicshop.partition.monthsAhead months of partitions ready and, with
+	 * mechanicshop.partition.keepMonths, archives older ones.
+	 *
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public void initiatePartitions () throws SQLException {
+		if (this._partitioning != null || !Partitioning.isPartitioned (this._pool)) {
+			return;
+		}
+		this._partitioning = new Partitioning (this._pool);
+		this._partitioning.start (Integer.getInteger ("mechanicshop.partition.monthsAhead", 3),
+			Integer.getInteger ("mechanicshop.partition.keepMonths", 0));
+	}
+
+	/**
+	 * With mechanicshop.analytics, loads the tables the reports read into an
+	 * in-memory snapshot that answers them from then on, refreshed in the
+	 * background (see AnalyticsSnapshot).
+	 *
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	public void initiateAnalytics () throws SQLException {
+		if (this._analytics != null || !Boolean.getBoolean ("mechanicshop.analytics")) {
+			return;
+		}
+		AnalyticsSnapshot analytics = new AnalyticsSnapshot (this,
+			Integer.getInteger ("mechanicshop.analytics.threads", Runtime.getRuntime ().availableProcessors ()));
+		analytics.start ();
+		this._analytics = analytics;
+	}
+
+	/**
+	 * With mechanicshop.writeBehind, takes service requests through a local
+	 * journal inserted into the database in the background (see
+	 * WriteBehindJournal), first replaying what a previous run left in it.
+	 *
+	 * @throws java.io.IOException when the journal directory cannot be used
+	 */
+	public void initiateWriteBehind () throws IOException {
+		if (this._writeBehind != null || !Boolean.getBoolean ("mechanicshop.writeBehind")) {
+			return;
+		}
+		WriteBehindJournal journal = new WriteBehindJournal (this,
+			new File (System.getProperty ("mechanicshop.writeBehind.dir", "journal")),
+			Integer.getInteger ("mechanicshop.writeBehind.capacity", 10000),
+			Integer.getInteger ("mechanicshop.writeBehind.batch", 500));
+		journal.start ();
+		this._writeBehind = journal;
+	}
+
+	/**
+	 * With mechanicshop.search, loads the names and phones of every
+	 * customer into an index that looks customers up from then on, also by
+	 * misspelled or similar sounding last names and by phone (see
+	 * CustomerIndex).
+	 *
+	 * @throws java.sql.SQLException when Customer cannot be read
+	 */
+	public void initiateSearch () throws SQLException {
+		if (this._customerIndex != null || !Boolean.getBoolean ("mechanicshop.search")) {
+			return;
+		}
+		CustomerIndex index = new CustomerIndex (this);
+		index.catchUp ();
+		this._customerIndex = index;
+	}
+
+	/**
+	 * @return the partition upkeep, or null when the tables are not partitioned
+	 */
+	public Partitioning getPartitioning () {
+		return this._partitioning;
+	}
+
+	/**
+	 * @return the pool every operation borrows its connection from
+	 */
+	public ConnectionPool getConnectionPool () {
+		return this._pool;
+	}
+
+	/**
+	 * @return number of statement executions served from the statement cache
+	 */
+	public long getStatementCacheHits () {
+		return this._pool.getStatementCacheHits ();
+	}
+
+	/**
+	 * @return number of statement executions that had to prepare a new statement
+	 */
+	public long getStatementCacheMisses () {
+		return this._pool.getStatementCacheMisses ();
+	}
+
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * Method to fetch the next value from sequence. Values come from a
+	 * block reserved in memory, so the DBMS is only queried when a block
+	 * of mechanicshop.idBlockSize values is used up.
 	 * 
 	 * @param sequence name of the DB sequence, one of: 
 	 * @param rid_sequence
@@ -188,64 +710,236 @@ public class MechanicShop{
 	 * @param mid_sequence
 	 * @param Ownsid_sequence 
 	 * @param wid_sequence
-	 * @return current value of a sequence
+	 * @return next unused value of a sequence
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select nextval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		long start = System.nanoTime ();
+		boolean ok = false;
+		try {
+			int id = this._ids.next (sequence);
+			ok = true;
+			return id;
+		}finally {
+			Metrics.statement ("getCurrSeqVal", start, ok ? 0 : -1);
+		}
 	}
 
 	/**
-	 * Creates and initializes sequences for rid, cid, mid, ownsid
-	 * @param ridSize number of service request ids
-	 * @param cidSize number of customer ids
-	 * @param midSize number of mechanic ids
-	 * @param OwnsSize number of Owns ids
+	 * Sequences used for autogenerated keys with the table and column each
+	 * one feeds: {sequence, table, column}
+	 */
+	private static final String[][] SEQUENCES = {
+		{"rid_sequence", "Service_Request", "rid"},
+		{"cid_sequence", "Customer", "id"},
+		{"mid_sequence", "Mechanic", "id"},
+		{"Ownsid_sequence", "Owns", "ownership_id"},
+		{"wid_sequence", "Closed_Request", "wid"}
+	};
+
+	/**
+	 * Creates the sequences for rid, cid, mid, ownsid and wid if they do not
+	 * exist yet and adopts them otherwise, then reconciles them against the
+	 * tables. New sequences step by mechanicshop.idBlockSize so one nextval
+	 * reserves a block of ids for getCurrSeqVal; existing sequences keep their
+	 * increment. Sequences are never dropped, so a second terminal starting
+	 * up does not reset ids a running one is handing out.
+	 * @return the value each sequence was reconciled to, in SEQUENCES order
 	 * @throws SQLException
 	 */
-	public void initiateSequence(int ridSize, int cidSize, int midSize, int OwnsSize, int widSize) throws SQLException {
-		//initiate sequence for sr_rid
+	public long[] initiateSequences() throws SQLException {
+		int block = Integer.getInteger("mechanicshop.idBlockSize", 50);
+		StringBuilder create = new StringBuilder();
+		for (String[] seq : SEQUENCES) {
+			create.append("CREATE SEQUENCE IF NOT EXISTS ").append(seq[0])
+				.append(" INCREMENT BY ").append(block).append(" MINVALUE 0 START WITH 0;");
+		}
+		executeUpdate(create.toString());
+		return reconcileSequences();
+	}
 
-		Statement stmtTemp = this._connection.createStatement();
-		
-		String dropIfExist = "DROP SEQUENCE IF EXISTS rid_sequence;"
-		+" DROP SEQUENCE IF EXISTS cid_sequence;"
-		+" DROP SEQUENCE IF EXISTS mid_sequence;"
-		+" DROP SEQUENCE IF EXISTS Ownsid_sequence;"
-		+" DROP SEQUENCE IF EXISTS wid_sequence";
-		stmtTemp.execute(dropIfExist);
-		
-		String initSeq = "CREATE SEQUENCE rid_sequence START WITH "+ridSize+";"
-		+" CREATE SEQUENCE cid_sequence START WITH "+cidSize+";"
-		+" CREATE SEQUENCE mid_sequence START WITH "+midSize+";"
-		+" CREATE SEQUENCE Ownsid_sequence START WITH "+OwnsSize+";"
-		+" CREATE SEQUENCE wid_sequence START WITH "+widSize;
-		stmtTemp.execute(initSeq);
+	/**
+	 * Moves every sequence past max(id) of its table in a single query, e.g.
+	 * after rows were loaded with explicit ids. A sequence is only moved when
+	 * max(id) reaches the value its next nextval would return: ids below it
+	 * may belong to a block another process reserved and is still handing
+	 * out (see IdAllocator), so moving into them would hand them out twice.
+	 * max(id) is answered from the primary key index.
+	 * @return the last value of each sequence, in SEQUENCES order
+	 * @throws SQLException
+	 */
+	public long[] reconcileSequences() throws SQLException {
+		StringBuilder query = new StringBuilder("SELECT ");
+		for (int i = 0; i < SEQUENCES.length; ++i) {
+			String[] seq = SEQUENCES[i];
+			if (i > 0) query.append(", ");
+			// the next nextval returns last_value once called, last_value + increment after
+			query.append("(SELECT CASE WHEN m.v >= s.last_value + CASE WHEN s.is_called THEN ")
+				.append(this._ids.increment(seq[0])).append(" ELSE 0 END THEN setval('").append(seq[0])
+				.append("', m.v + 1, false) ELSE s.last_value END FROM (SELECT max(").append(seq[2])
+				.append(") AS v FROM ").append(seq[1]).append(") m, ").append(seq[0]).append(" s)");
+		}
+		long[] values = executeQueryForList("reconcileSequences", query.toString(), new RowMapper<long[]>() {
+			public long[] map (ResultSet rs) throws SQLException {
+				long[] row = new long[SEQUENCES.length];
+				for (int i = 0; i < SEQUENCES.length; ++i) {
+					row[i] = rs.getLong(i + 1);
+				}
+				return row;
+			}
+		}).get(0);
+		this._ids.reset();
+		return values;
+	}
+
+	/**
+	 * Finds customers whose last name starts with prefix, ignoring case.
+	 * The range predicate matches the customer_lname_prefix_idx index, and
+	 * ordering by the same operator class lets the scan stop after limit rows,
+	 * so the cost does not grow with the number of customers.
+	 * @param prefix first letters of the last name, or the whole name
+	 * @param limit maximum number of customers returned
+	 * @return matching customers, exact and shorter names first, none for an empty prefix
+	 * @throws SQLException
+	 */
+	public List<Customer> findCustomersByLName(String prefix, final int limit) throws SQLException {
+		if (prefix.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final String lower = prefix.toLowerCase(Locale.ROOT);
+		return _customersByLName.get(limit + ":" + lower, new LookupCache.Loader<String, List<Customer>>() {
+			public List<Customer> load(String key) throws SQLException {
+				// smallest string greater than every string starting with lower
+				String upper = lower.substring(0, lower.length() - 1) + (char) (lower.charAt(lower.length() - 1) + 1);
+				String query = "SELECT " + Customer.COLUMNS + " FROM Customer"
+					+ " WHERE lower(lname) ~>=~ ? AND lower(lname) ~<~ ?"
+					+ " ORDER BY lower(lname) USING ~<~, id LIMIT ?;";
+				return Collections.unmodifiableList(
+					executeQueryForList("CustomerByLNamePrefix", query, Customer.MAPPER, lower, upper, limit));
+			}
+		});
+	}
+
+	/**
+	 * Looks customers up by last name, first and last name, or part of the
+	 * phone, tolerating typos, with the customer index (mechanicshop.search).
+	 * Without it, only last names starting with text are found, as by
+	 * findCustomersByLName.
+	 * @param limit maximum number of customers returned
+	 * @return matching customers, last names starting with text first, then best matches first
+	 * @throws SQLException
+	 */
+	public List<Customer> searchCustomers(String text, int limit) throws SQLException {
+		CustomerIndex index = _customerIndex;
+		if (index == null) {
+			return findCustomersByLName(text, limit);
+		}
+		return index.search(text, limit);
+	}
+
+	/**
+	 * Creates a lookup cache sized by mechanicshop.cache.size entries
+	 * (0 disables it) with entries valid for mechanicshop.cache.ttl ms.
+	 */
+	private static <K, V> LookupCache<K, V> newLookupCache(String name) {
+		return new LookupCache<K, V>(name, Integer.getInteger("mechanicshop.cache.size", 10000),
+			Long.getLong("mechanicshop.cache.ttl", 300000L));
+	}
+
+	/**
+	 * @return the lookup caches, for their statistics
+	 */
+	public List<LookupCache<?, ?>> getLookupCaches() {
+		List<LookupCache<?, ?>> caches = new ArrayList<LookupCache<?, ?>>();
+		caches.add(_customersByLName);
+		caches.add(_carsOwned);
+		caches.add(_mechanics);
+		caches.add(_serviceRequests);
+		return caches;
+	}
+
+	/**
+	 * Drops key from cache in this process and, with
+	 * mechanicshop.cache.notify, in every other listening process.
+	 *
+	 * @param key key to drop, or "*" for the whole cache
+	 */
+	private void invalidate(String cache, String key) throws SQLException {
+		invalidateLocal(cache, key);
+		if (_cacheListener == null) {
+			return;
+		}
+		ConnectionPool.ShopConnection conn = this._pool.borrow ();
+		try {
+			CacheListener.send(conn, cache, key);
+		}catch (SQLException e) {
+			conn.failed (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+		}
+	}
 
-		String nextVal = "SELECT nextval('rid_sequence');"
-		+" SELECT nextval('cid_sequence');"
-		+" SELECT nextval('mid_sequence');"
-		+" SELECT nextval('Ownsid_sequence');"
-		+" SELECT nextval('wid_sequence')";
-		stmtTemp.execute(nextVal);
+	/**
+	 * @param cache name of the cache, or null for every cache
+	 * @param key key to drop, or "*" for the whole cache; for
+	 *        customersByLName, the lower case last name of a new customer,
+	 *        which drops the lookups of its prefixes
+	 */
+	private void invalidateLocal(String cache, final String key) {
+		for (LookupCache<?, ?> c : getLookupCaches()) {
+			if (cache != null && !cache.equals(c.getName())) {
+				continue;
+			}
+			if (key.equals("*")) {
+				c.invalidateAll();
+			}
+			else if (c == _customersByLName) {
+				// keys are limit:prefix, see findCustomersByLName
+				_customersByLName.invalidateMatching(new LookupCache.KeyFilter<String>() {
+					public boolean matches(String cached) {
+						return key.startsWith(cached.substring(cached.indexOf(':') + 1));
+					}
+				});
+			}
+			else {
+				try {
+					c.invalidate(Integer.valueOf(key));
+				}catch (NumberFormatException e) {
+					// not a key of this cache
+				}
+			}
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close every pooled connection.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		if (this._cacheListener != null) {
+			this._cacheListener.close ();
+		}
+		if (this._partitioning != null) {
+			this._partitioning.close ();
+		}
+		if (this._analytics != null) {
+			this._analytics.close ();
+		}
+		if (this._parallelReports != null) {
+			this._parallelReports.close ();
+		}
+		if (this._writeBehind != null) {
+			// queued requests still need the pool
+			this._writeBehind.close (5000);
+		}
+		if (this._slowLog != null) {
+			// pending EXPLAINs still need the pool
+			this._slowLog.close (5000);
+		}
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -254,83 +948,72 @@ public class MechanicShop{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
-			System.err.println (
+		long startupBegin = System.nanoTime();
+		if (args.length < 3) {
+			err().println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [command]");
+			err().println ("Commands:");
+			err().println ("  ingest <service_request|closed_request> <file> [<table> <file> ...]");
+			err().println ("  load <dataDir> [create.sql]   (drops and rebuilds every table)");
+			err().println ("  server [port]   (serves the menu to many terminals over TCP)");
+			err().println ("  api [port]   (serves the tab-separated request protocol of ShopApi over TCP)");
+			err().println ("  archive <keepMonths>   (detaches older partitions of the request tables)");
 			return;
 		}//end if
 		
 		MechanicShop esql = null;
 		
 		try{
-			System.out.println("(1)");
+			out().println("(1)");
 			
 			try {
 				Class.forName("org.postgresql.Driver");
 			}catch(Exception e){
 
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+				out().println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
 				e.printStackTrace();
 				return;
 			}
 			
-			System.out.println("(2)");
+			out().println("(2)");
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
-			int ridSize = Integer.parseInt(esql.executeQueryAndReturnResult("Select count(rid) from Service_Request;").get(0).get(0));
-			int cidSize = Integer.parseInt(esql.executeQueryAndReturnResult("Select count(id) from Customer;").get(0).get(0));
-			int midSize = Integer.parseInt(esql.executeQueryAndReturnResult("Select count(id) from Mechanic;").get(0).get(0));
-			int ownsSize = Integer.parseInt(esql.executeQueryAndReturnResult("Select count(ownership_id) from Owns;").get(0).get(0));
-			int widSize = Integer.parseInt(esql.executeQueryAndReturnResult("Select count(wid) from Closed_Request;").get(0).get(0));
+			Metrics.start(); // scrape endpoint, dump on exit
+			if (args.length < 4 || !args[3].equals("load")) { // load rebuilds the schema itself
+				new SchemaMigration(esql.getConnectionPool()).migrate(); // indexes and other schema changes
+				esql.initiatePartitions();
+				esql.initiateAnalytics();
+				esql.initiateWriteBehind();
+				esql.initiateSearch();
+			}
+			if (args.length > 3) { // non-interactive command, no menu
+				runCommand(esql, args);
+				return;
+			}
+			long[] seqValues = esql.initiateSequences(); // adopt or create sequences for ids
 
-			System.out.println("Sizes (rid, cid, mid, owns) are : ("+ridSize+","+cidSize+","+midSize+","+ownsSize+","+widSize+")");
-			esql.initiateSequence(ridSize, cidSize, midSize, ownsSize, widSize); // initiate sequence for ids
+			out().println("Sequences (rid, cid, mid, owns, wid) are at : ("+seqValues[0]+","+seqValues[1]+","+seqValues[2]+","+seqValues[3]+","+seqValues[4]+")");
+			out().println("Startup took " + (System.nanoTime() - startupBegin) / 1000000 + " ms");
 
-			boolean keepon = true;
-			while(keepon){
-				System.out.println("\nMAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. AddCustomer");
-				System.out.println("2. AddMechanic");
-				System.out.println("3. AddCar");
-				System.out.println("4. InsertServiceRequest");
-				System.out.println("5. CloseServiceRequest");
-				System.out.println("6. ListCustomersWithBillLessThan100");
-				System.out.println("7. ListCustomersWithMoreThan20Cars");
-				System.out.println("8. ListCarsBefore1995With50000Milles");
-				System.out.println("9. ListKCarsWithTheMostServices");
-				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
-				
-				/*
-				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
-				 */
-				switch (readChoice()){
-					case 1: AddCustomer(esql); break;
-					case 2: AddMechanic(esql); break;
-					case 3: AddCar(esql); break;
-					case 4: InsertServiceRequest(esql); break;
-					case 5: CloseServiceRequest(esql); break;
-					case 6: ListCustomersWithBillLessThan100(esql); break;
-					case 7: ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: ListCarsBefore1995With50000Milles(esql); break;
-					case 9: ListKCarsWithTheMostServices(esql); break;
-					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
-				}
-			}
+			menu(esql);
 		}catch(Exception e){
-			System.err.println (e.getMessage ());
+			err().println (e.getMessage ());
 		}finally{
 			try{
+				Metrics.stop();
 				if(esql != null) {
-					System.out.print("Disconnecting from database...");
+					out().println("Statement cache: " + esql.getStatementCacheHits () + " hits, "
+						+ esql.getStatementCacheMisses () + " misses");
+					for (LookupCache<?, ?> cache : esql.getLookupCaches ()) {
+						out().println("Lookup cache " + cache.stats ());
+					}
+					out().print("Disconnecting from database...");
 					esql.cleanup ();
-					System.out.println("Done\n\nBye !");
+					out().println("Done\n\nBye !");
 				}//end if				
 			}catch(Exception e){
 				// ignored.
@@ -338,17 +1021,614 @@ public class MechanicShop{
 		}
 	}
 
+	//menu options 1 to 10, as named in the menu and in the metrics
+	private static final String[] MENU_OPTIONS = {"AddCustomer", "AddMechanic", "AddCar", "InsertServiceRequest",
+		"CloseServiceRequest", "ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars",
+		"ListCarsBefore1995With50000Milles", "ListKCarsWithTheMostServices", "ListCustomersInDescendingOrderOfTheirTotalBill"};
+
+	/**
+	 * Shows the main menu on the current terminal until the user exits or
+	 * the terminal is closed.
+	 *
+	 * @param esql shop the operations run against
+	 */
+	public static void menu(MechanicShop esql) {
+		try {
+			boolean keepon = true;
+			while(keepon){
+				out().println("\nMAIN MENU");
+				out().println("---------");
+				out().println("1. AddCustomer");
+				out().println("2. AddMechanic");
+				out().println("3. AddCar");
+				out().println("4. InsertServiceRequest");
+				out().println("5. CloseServiceRequest");
+				out().println("6. ListCustomersWithBillLessThan100");
+				out().println("7. ListCustomersWithMoreThan20Cars");
+				out().println("8. ListCarsBefore1995With50000Milles");
+				out().println("9. ListKCarsWithTheMostServices");
+				out().println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
+				out().println("11. < EXIT");
+				
+				/*
+				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
+				 */
+				int choice = readChoice();
+				// the time of an option is its time in the shop, not the typing
+				if (choice >= 1 && choice <= MENU_OPTIONS.length) {
+					Metrics.begin(MENU_OPTIONS[choice - 1]);
+				}
+				try {
+					switch (choice){
+						case 1: AddCustomer(esql); break;
+						case 2: AddMechanic(esql); break;
+						case 3: AddCar(esql); break;
+						case 4: InsertServiceRequest(esql); break;
+						case 5: CloseServiceRequest(esql); break;
+						case 6: ListCustomersWithBillLessThan100(esql); break;
+						case 7: ListCustomersWithMoreThan20Cars(esql); break;
+						case 8: ListCarsBefore1995With50000Milles(esql); break;
+						case 9: ListKCarsWithTheMostServices(esql); break;
+						case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
+						case 11: keepon = false; break;
+					}
+				}finally {
+					Metrics.end();
+				}
+			}
+		}catch (Terminal.Closed e) {
+			// input ended, same as choosing EXIT
+		}
+	}//end menu
+
+	/**
+	 * Runs a non-interactive command given after <dbname> <port> <user>.
+	 *
+	 * @param esql
+	 * @param args the full command line arguments
+	 * @throws Exception when the command fails
+	 */
+	public static void runCommand(MechanicShop esql, String[] args) throws Exception {
+		String command = args[3];
+		if (command.equals("ingest")) {
+			if (args.length < 6 || (args.length - 4) % 2 != 0) {
+				throw new IllegalArgumentException("Usage: ingest <service_request|closed_request> <file> [<table> <file> ...]");
+			}
+			BulkIngest ingest = new BulkIngest(esql.getConnectionPool(),
+				!"batch".equals(System.getProperty("mechanicshop.ingest.mode", "copy")),
+				Integer.getInteger("mechanicshop.ingest.batchSize", 5000),
+				Integer.getInteger("mechanicshop.ingest.commitBatches", 10));
+			for (int i = 4; i < args.length; i += 2) {
+				ingest.ingest(BulkIngest.Table.parse(args[i]), args[i + 1]);
+			}
+			// keep new ids clear of the ingested ones
+			esql.initiateSequences();
+		}
+		else if (command.equals("server") || command.equals("api")) {
+			esql.initiateSequences();
+			boolean api = command.equals("api");
+			new ShopServer(esql, args.length > 4 ? Integer.parseInt(args[4])
+				: Integer.getInteger("mechanicshop.server.port", api ? 5167 : 5166), api).serve();
+		}
+		else if (command.equals("load")) {
+			if (args.length < 5) {
+				throw new IllegalArgumentException("Usage: load <dataDir> [create.sql]");
+			}
+			ParallelLoader loader = new ParallelLoader(esql.getConnectionPool(),
+				Integer.getInteger("mechanicshop.load.threads", Integer.getInteger("mechanicshop.pool.max", 8)),
+				Long.getLong("mechanicshop.load.chunkMb", 64L) << 20);
+			loader.load(args.length > 5 ? args[5] : "../sql/create.sql", args[4]);
+			// indexes and derived tables are built over the loaded rows
+			new SchemaMigration(esql.getConnectionPool()).migrate();
+			esql.initiateSequences();
+		}
+		else if (command.equals("archive")) {
+			if (args.length < 5 || esql.getPartitioning() == null) {
+				throw new IllegalArgumentException("Usage: archive <keepMonths>, with partitioned tables (-Dmechanicshop.partition=true)");
+			}
+			out().println(esql.getPartitioning().archive(Integer.parseInt(args[4])) + " partitions moved to the archive schema");
+		}
+		else {
+			throw new IllegalArgumentException("Unknown command: " + command);
+		}
+	}//end runCommand
+
+	// -----------------SHOP OPERATIONS---------------------
+	// Non-interactive versions of the menu operations. The menu functions
+	// below read and check user input, then call these.
+
+	/**
+	 * Adds a customer with the next id of cid_sequence
+	 * @param phone phone number in format (###)###-####
+	 * @return id of the new customer
+	 * @throws SQLException
+	 */
+	public int addCustomer(String fname, String lname, String phone, String address) throws SQLException {
+		int id = getCurrSeqVal("cid_sequence");
+		executeUpdate("AddCustomer", "INSERT INTO Customer VALUES (?,?,?,?,?);", id, fname, lname, phone, address);
+		CustomerIndex index = _customerIndex;
+		if (index != null) {
+			index.add(new Customer(id, Customer.trim(fname), Customer.trim(lname), Customer.trim(phone), Customer.trim(address)));
+		}
+		// drops the cached prefixes of the new last name
+		invalidate("customersByLName", Customer.trim(lname).toLowerCase(Locale.ROOT));
+		return id;
+	}
+
+	/**
+	 * Adds a mechanic with the next id of mid_sequence
+	 * @return id of the new mechanic
+	 * @throws SQLException
+	 */
+	public int addMechanic(String fname, String lname, int experience) throws SQLException {
+		int id = getCurrSeqVal("mid_sequence");
+		executeUpdate("AddMechanic", "INSERT INTO Mechanic VALUES (?,?,?,?);", id, fname, lname, experience);
+		invalidate("mechanic", Integer.toString(id));
+		return id;
+	}
+
+	/**
+	 * Adds a car to Car and records in Owns that customerId owns it. Both
+	 * rows are inserted by one statement, so either both exist afterwards
+	 * or neither does.
+	 * @throws SQLException
+	 */
+	public void addCar(int customerId, String vin, String make, String model, int year) throws SQLException {
+		int ownsId = getCurrSeqVal("Ownsid_sequence");
+		executeUpdate("AddCar", "WITH car AS (INSERT INTO Car VALUES (?, ?, ?, ?) RETURNING vin)"
+			+ " INSERT INTO Owns SELECT ?, ?, vin FROM car;",
+			vin, make, model, year, ownsId, customerId);
+		invalidate("carsOwned", Integer.toString(customerId));
+	}
+
+	/**
+	 * Adds a fleet of cars owned by customerId with a single statement:
+	 * the cars travel as arrays, so the whole fleet costs one round trip
+	 * and is added entirely or not at all.
+	 * @return number of cars added
+	 * @throws SQLException
+	 */
+	public int addCars(int customerId, List<Car> cars) throws SQLException {
+		if (cars.isEmpty()) {
+			return 0;
+		}
+		List<Integer> ownsIds = new ArrayList<Integer>();
+		List<String> vins = new ArrayList<String>();
+		List<String> makes = new ArrayList<String>();
+		List<String> models = new ArrayList<String>();
+		List<Integer> years = new ArrayList<Integer>();
+		for (Car car : cars) {
+			ownsIds.add(getCurrSeqVal("Ownsid_sequence"));
+			vins.add(car.vin);
+			makes.add(car.make);
+			models.add(car.model);
+			years.add(car.year);
+		}
+		int added = executeUpdate("AddCars", "WITH input AS ("
+			+ "SELECT * FROM unnest(CAST(? AS INTEGER[]), CAST(? AS VARCHAR[]), CAST(? AS VARCHAR[]), CAST(? AS VARCHAR[]),"
+			+ " CAST(? AS INTEGER[])) AS t(ownership_id, vin, make, model, year)),"
+			+ " car AS (INSERT INTO Car SELECT vin, make, model, year FROM input RETURNING vin)"
+			+ " INSERT INTO Owns SELECT input.ownership_id, ?, car.vin FROM car JOIN input ON input.vin = car.vin;",
+			arrayLiteral(ownsIds), arrayLiteral(vins), arrayLiteral(makes), arrayLiteral(models), arrayLiteral(years),
+			customerId);
+		invalidate("carsOwned", Integer.toString(customerId));
+		return added;
+	}
+
+	/**
+	 * Text form of a Postgres array, e.g. {"a","b \"c\""}, bound as a
+	 * string and cast to the array type in the statement.
+	 */
+	static String arrayLiteral(List<?> values) {
+		StringBuilder sb = new StringBuilder("{");
+		for (Object v : values) {
+			if (sb.length() > 1) sb.append(',');
+			sb.append('"').append(String.valueOf(v).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	//cars shown per page when picking one of a customer's cars
+	static final int CAR_PAGE_SIZE = Integer.getInteger("mechanicshop.carPageSize", 20);
+
+	/**
+	 * Returns one page of the cars owned by customerId in VIN order.
+	 * The page is read from owns_customer_vin_c_idx starting after afterVin,
+	 * so its cost depends on the page size and not on the size of the fleet.
+	 * @param vinPrefix only cars whose VIN starts with it, or null
+	 * @param makeOrModel only cars whose make or model starts with it, ignoring case, or null
+	 * @param afterVin last VIN of the previous page, or null for the first page
+	 * @param limit maximum number of cars returned
+	 * @return the cars of the page
+	 * @throws SQLException
+	 */
+	public List<Car> findCarsOwned(final int customerId, final String vinPrefix, final String makeOrModel,
+			final String afterVin, final int limit) throws SQLException {
+		final boolean hasPrefix = vinPrefix != null && !vinPrefix.isEmpty();
+		final boolean hasFilter = makeOrModel != null && !makeOrModel.isEmpty();
+		LookupCache.Loader<Integer, List<Car>> loader = new LookupCache.Loader<Integer, List<Car>>() {
+			public List<Car> load(Integer id) throws SQLException {
+				List<Object> params = new ArrayList<Object>();
+				StringBuilder query = new StringBuilder("SELECT C.vin, C.make, C.model, C.year"
+					+ " FROM Owns O, Car C WHERE C.vin = O.car_vin AND O.customer_id = ?");
+				params.add(id);
+				if (afterVin != null) {
+					query.append(" AND O.car_vin COLLATE \"C\" > ?");
+					params.add(afterVin);
+				}
+				if (hasPrefix) {
+					// smallest string greater than every string starting with vinPrefix
+					String upper = vinPrefix.substring(0, vinPrefix.length() - 1)
+						+ (char) (vinPrefix.charAt(vinPrefix.length() - 1) + 1);
+					query.append(" AND O.car_vin COLLATE \"C\" >= ? AND O.car_vin COLLATE \"C\" < ?");
+					params.add(vinPrefix);
+					params.add(upper);
+				}
+				if (hasFilter) {
+					query.append(" AND (lower(trim(C.make)) LIKE ? OR lower(trim(C.model)) LIKE ?)");
+					String like = likePrefix(makeOrModel.trim().toLowerCase(Locale.ROOT));
+					params.add(like);
+					params.add(like);
+				}
+				query.append(" ORDER BY O.car_vin COLLATE \"C\" LIMIT ?;");
+				params.add(limit);
+				String statement = "CarsOwned" + (afterVin != null ? ".after" : "") + (hasPrefix ? ".vin" : "") + (hasFilter ? ".makeModel" : "");
+				return Collections.unmodifiableList(executeQueryForList(statement, query.toString(), Car.MAPPER, params.toArray()));
+			}
+		};
+		if (afterVin == null && !hasPrefix && !hasFilter && limit == CAR_PAGE_SIZE) {
+			return _carsOwned.get(customerId, loader);
+		}
+		return loader.load(customerId);
+	}
+
+	/**
+	 * LIKE pattern matching strings that start with s, with the wildcards of s escaped.
+	 */
+	private static String likePrefix(String s) {
+		return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+	}
+
+	/**
+	 * Opens a service request with the next id of rid_sequence; with the
+	 * write-behind journal it is inserted shortly after this returns.
+	 * @param date request date in format mm/dd/yyyy
+	 * @param complain complaint text, may be null
+	 * @return rid of the new request
+	 * @throws SQLException
+	 */
+	public int insertServiceRequest(int customerId, String vin, String date, int odometer, String complain) throws SQLException {
+		int rid = getCurrSeqVal("rid_sequence");
+		if (this._writeBehind != null) {
+			parseDate(date); // refused now rather than by the database later
+			this._writeBehind.append(rid, customerId, vin, date, odometer, complain);
+		}
+		else {
+			executePartitionedInsert("InsertServiceRequest", "INSERT INTO Service_Request VALUES (?,?,?,CAST(? AS DATE),?,?);",
+				date, rid, customerId, vin, date, odometer, complain);
+			rankService(vin); // journaled requests are ranked once committed
+		}
+		return rid;
+	}
+
+	/**
+	 * @return true if a mechanic with this id (EID) exists
+	 * @throws SQLException
+	 */
+	public boolean mechanicExists(int id) throws SQLException {
+		return _mechanics.get(id, new LookupCache.Loader<Integer, Boolean>() {
+			public Boolean load(Integer key) throws SQLException {
+				return executeQuery("MechanicById", "SELECT id FROM Mechanic WHERE Mechanic.id = ?;", key) > 0 ? Boolean.TRUE : null;
+			}
+		}) != null;
+	}
+
+	/**
+	 * A request can only be closed on or after the day it was opened, so the
+	 * lookup is bounded by the closing date; with partitioned tables it only
+	 * reads the partitions up to that date.
+	 * @param date closing date in format mm/dd/yyyy
+	 * @return true if service request rid exists and was opened on or before date
+	 * @throws SQLException
+	 */
+	public boolean serviceRequestOpenedBy(int rid, final String date) throws SQLException {
+		if (this._writeBehind != null) {
+			this._writeBehind.awaitCommitted(rid);
+		}
+		java.sql.Date opened = _serviceRequests.get(rid, new LookupCache.Loader<Integer, java.sql.Date>() {
+			public java.sql.Date load(Integer key) throws SQLException {
+				List<java.sql.Date> found = executeQueryForList("ServiceRequestOpenedBy",
+					"SELECT date FROM Service_Request WHERE Service_Request.rid = ? AND date <= CAST(? AS DATE);",
+					new RowMapper<java.sql.Date>() {
+						public java.sql.Date map(ResultSet rs) throws SQLException {
+							return rs.getDate(1);
+						}
+					}, key, date);
+				return found.isEmpty() ? null : found.get(0);
+			}
+		});
+		// a cached date may have been read with a later closing date
+		return opened != null && !opened.after(parseDate(date));
+	}
+
+	/**
+	 * @param date date in format mm/dd/yyyy
+	 */
+	private static java.sql.Date parseDate(String date) {
+		SimpleDateFormat format = new SimpleDateFormat("M/d/yyyy", Locale.ROOT);
+		format.setLenient(false);
+		try {
+			return new java.sql.Date(format.parse(date.trim()).getTime());
+		}catch (ParseException e) {
+			throw new IllegalArgumentException("Invalid date! Accepted format is mm/dd/yyyy");
+		}
+	}
+
+	/**
+	 * Closes service request rid with the next id of wid_sequence
+	 * @param mid id of the mechanic closing the request
+	 * @param date closing date in format mm/dd/yyyy
+	 * @return wid of the new closed request
+	 * @throws SQLException
+	 */
+	public int closeServiceRequest(int rid, int mid, String date, String comment, int bill) throws SQLException {
+		int wid = getCurrSeqVal("wid_sequence");
+		executePartitionedInsert("CloseServiceRequest", "INSERT INTO Closed_Request VALUES (?, ?, ?, CAST(? AS DATE), ?, ?);",
+			date, wid, rid, mid, date, comment, bill);
+		return wid;
+	}
+
+	//reports over request history only read the last mechanicshop.report.months
+	//months, 0 for the whole history; with partitioned tables older partitions are skipped
+	static final int REPORT_MONTHS = Integer.getInteger("mechanicshop.report.months", 0);
+	static final String REPORT_SINCE = "CAST(current_date - make_interval(months => ?) AS DATE)";
+
+	/**
+	 * @return first day read by the reports over request history, as an epoch day
+	 */
+	private static int reportSinceDay() {
+		return REPORT_MONTHS > 0 ? (int) java.time.LocalDate.now().minusMonths(REPORT_MONTHS).toEpochDay() : AnalyticsSnapshot.ALL_DAYS;
+	}
+
+	/**
+	 * Streams date, comment and bill of closed requests with a bill under 100
+	 * @return number of rows
+	 * @throws SQLException
+	 */
+	public int listCustomersWithBillLessThan100(ReportRows handler) throws SQLException {
+		if (this._analytics != null) {
+			return this._analytics.listCustomersWithBillLessThan100(handler, reportSinceDay());
+		}
+		if (this._parallelReports != null) {
+			return this._parallelReports.listCustomersWithBillLessThan100(handler);
+		}
+		if (REPORT_MONTHS > 0) {
+			String query = "SELECT date, comment, bill FROM Closed_Request WHERE bill < 100 AND date >= " + REPORT_SINCE + ";";
+			return executeQueryStreaming("ListCustomersWithBillLessThan100.recent", query, REPORT_FETCH_SIZE, handler, REPORT_MONTHS);
+		}
+		String query = "SELECT date, comment, bill FROM Closed_Request WHERE bill < 100;";
+		return executeQueryStreaming("ListCustomersWithBillLessThan100", query, REPORT_FETCH_SIZE, handler);
+	}
+
+	/**
+	 * Streams first and last name of customers owning more than 20 cars
+	 * @return number of rows
+	 * @throws SQLException
+	 */
+	public int listCustomersWithMoreThan20Cars(ReportRows handler) throws SQLException {
+		if (this._analytics != null) {
+			return this._analytics.listCustomersWithMoreThan20Cars(handler);
+		}
+		if (this._parallelReports != null) {
+			return this._parallelReports.listCustomersWithMoreThan20Cars(handler);
+		}
+		String query = "SELECT C.fname, C.lname"
+		+" FROM Customer C, ("
+		+" SELECT customer_id"
+		+" FROM Owns"
+		+" GROUP BY customer_id"
+		+" HAVING COUNT(customer_id)>20) AS temp"
+		+" WHERE C.id=temp.customer_id;";
+		return executeQueryStreaming("ListCustomersWithMoreThan20Cars", query, REPORT_FETCH_SIZE, handler);
+	}
+
+	/**
+	 * Streams make, model and year of cars built before 1995 serviced under 50000 miles
+	 * @return number of rows
+	 * @throws SQLException
+	 */
+	public int listCarsBefore1995With50000Milles(ReportRows handler) throws SQLException {
+		if (this._analytics != null) {
+			return this._analytics.listCarsBefore1995With50000Milles(handler, reportSinceDay());
+		}
+		if (this._parallelReports != null) {
+			return this._parallelReports.listCarsBefore1995With50000Milles(handler);
+		}
+		if (REPORT_MONTHS > 0) {
+			String query = "SELECT DISTINCT make,model,year"
+			+ " FROM Car C, Service_Request S_R"
+			+ " WHERE year < 1995 AND S_R.car_vin = C.vin AND S_R.odometer<50000 AND S_R.date >= " + REPORT_SINCE + ";";
+			return executeQueryStreaming("ListCarsBefore1995With50000Milles.recent", query, REPORT_FETCH_SIZE, handler, REPORT_MONTHS);
+		}
+		String query = "SELECT DISTINCT make,model,year"
+		+ " FROM Car C, Service_Request S_R"
+		+ " WHERE year < 1995 AND S_R.car_vin = C.vin AND S_R.odometer<50000;";
+		return executeQueryStreaming("ListCarsBefore1995With50000Milles", query, REPORT_FETCH_SIZE, handler);
+	}
+
+	/**
+	 * Streams make, model and number of requests of the k most serviced cars
+	 * @return number of rows
+	 * @throws SQLException
+	 */
+	public int listKCarsWithTheMostServices(int k, ReportRows handler) throws SQLException {
+		if (this._analytics != null) {
+			return this._analytics.listKCarsWithTheMostServices(k, handler);
+		}
+		if (this._parallelReports != null) {
+			return this._parallelReports.listKCarsWithTheMostServices(k, handler);
+		}
+		// Car_Service_Count is maintained by a trigger on Service_Request
+		String query = "SELECT C.make, C.model, T.num_requests AS numRequests"
+		+" FROM Car_Service_Count T, Car C"
+		+" WHERE C.vin=T.car_vin AND T.num_requests > 0"
+		+" ORDER BY T.num_requests DESC LIMIT ?;";
+		return executeQueryStreaming("ListKCarsWithTheMostServices", query, REPORT_FETCH_SIZE, handler, k);
+	}
+
+	/**
+	 * @return true if the reports are answered by the analytics snapshot or
+	 *         as parallel range statements instead of one query
+	 */
+	public boolean reportsDispatched() {
+		return this._analytics != null || this._parallelReports != null;
+	}
+
+	//ms after which the ranking is read again, picking up requests inserted by other processes
+	static final long RANKING_REFRESH_MS = Long.getLong("mechanicshop.ranking.refresh", 60000L);
+
+	/**
+	 * Returns one page of the cars with the most service requests. The
+	 * ranking is kept in memory and moved up by every insertServiceRequest,
+	 * so a page costs the same whatever its offset and nothing is
+	 * aggregated again. It does not go through the analytics snapshot or the
+	 * parallel reports (see listKCarsWithTheMostServices).
+	 * @param offset number of cars to skip, 0 for the top
+	 * @param limit maximum number of cars returned
+	 * @return the cars ranked offset + 1 to offset + limit
+	 * @throws SQLException
+	 */
+	public List<RankedCar> topCarsByServices(int offset, int limit) throws SQLException {
+		List<Leaderboard.Entry> page = serviceRanking().page(offset, limit);
+		// cars ranked since the load are read in one round trip
+		List<String> unknown = new ArrayList<String>();
+		for (Leaderboard.Entry e : page) {
+			if (!_rankedCars.containsKey(e.key)) {
+				unknown.add(e.key);
+			}
+		}
+		if (!unknown.isEmpty()) {
+			for (Car car : executeQueryForList("RankedCars", "SELECT " + Car.COLUMNS + " FROM Car WHERE vin = ANY (CAST(? AS VARCHAR[]));",
+					Car.MAPPER, arrayLiteral(unknown))) {
+				_rankedCars.put(car.vin, car);
+			}
+		}
+		List<RankedCar> cars = new ArrayList<RankedCar>(page.size());
+		for (Leaderboard.Entry e : page) {
+			Car car = _rankedCars.get(e.key);
+			cars.add(new RankedCar(e.rank, car != null ? car : new Car(e.key, null, null, 0), e.count));
+		}
+		return cars;
+	}
+
+	/**
+	 * Returns the ranking, loading it on first use and reloading it once it
+	 * is older than mechanicshop.ranking.refresh ms. Pages are served from
+	 * the old ranking while it reloads.
+	 */
+	private Leaderboard serviceRanking() throws SQLException {
+		synchronized (_rankingLock) {
+			while (true) {
+				if (_serviceRanking != null && (RANKING_REFRESH_MS <= 0
+						|| System.currentTimeMillis() - _serviceRankingLoadedAt < RANKING_REFRESH_MS)) {
+					return _serviceRanking;
+				}
+				if (_rankingIncrements == null) {
+					break; // this thread loads it
+				}
+				if (_serviceRanking != null) {
+					return _serviceRanking;
+				}
+				try { // the first load is running in another thread
+					_rankingLock.wait();
+				}catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while the ranking was loading");
+				}
+			}
+			_rankingIncrements = new ArrayList<String>();
+		}
+		final Leaderboard ranking = new Leaderboard();
+		boolean loaded = false;
+		try {
+			// Car_Service_Count is maintained by a trigger on Service_Request
+			executeQueryStreaming("ServiceRanking", "SELECT C.vin, C.make, C.model, C.year, T.num_requests"
+				+ " FROM Car_Service_Count T, Car C"
+				+ " WHERE C.vin=T.car_vin AND T.num_requests > 0"
+				+ " ORDER BY T.num_requests DESC;", REPORT_FETCH_SIZE, new RowHandler() {
+					public void row(ResultSet rs) throws SQLException {
+						Car car = Car.MAPPER.map(rs);
+						_rankedCars.put(car.vin, car);
+						ranking.add(car.vin, rs.getInt(5));
+					}
+				});
+			loaded = true;
+		}finally {
+			synchronized (_rankingLock) {
+				if (loaded) {
+					// requests inserted after the load began may be counted twice until the next reload
+					for (String vin : _rankingIncrements) {
+						ranking.increment(vin);
+					}
+					_serviceRanking = ranking;
+					_serviceRankingLoadedAt = System.currentTimeMillis();
+				}
+				_rankingIncrements = null;
+				_rankingLock.notifyAll();
+			}
+		}
+		return ranking;
+	}//end serviceRanking
+
+	/**
+	 * Moves car vin up the ranking after one of its service requests was inserted.
+	 */
+	void rankService(String vin) {
+		synchronized (_rankingLock) {
+			if (_serviceRanking != null) {
+				_serviceRanking.increment(vin);
+			}
+			if (_rankingIncrements != null) {
+				_rankingIncrements.add(vin);
+			}
+		}
+	}
+
+	/**
+	 * Streams first name, last name and total bill of customers, highest total first
+	 * @return number of rows
+	 * @throws SQLException
+	 */
+	public int listCustomersInDescendingOrderOfTheirTotalBill(ReportRows handler) throws SQLException {
+		if (this._analytics != null) {
+			return this._analytics.listCustomersInDescendingOrderOfTheirTotalBill(handler);
+		}
+		if (this._parallelReports != null) {
+			return this._parallelReports.listCustomersInDescendingOrderOfTheirTotalBill(handler);
+		}
+		// Customer_Bill_Total is maintained by triggers on Closed_Request and Service_Request
+		String query = "SELECT C.fname, C.lname, T.total_bill AS totalBill"
+		+" FROM Customer_Bill_Total T, Customer C"
+		+" WHERE C.id=T.customer_id AND T.total_bill > 0"
+		+" ORDER BY T.total_bill DESC;";
+		return executeQueryStreaming("ListCustomersInDescendingOrderOfTheirTotalBill", query, REPORT_FETCH_SIZE, handler);
+	}
+
+	// -----------------END OF SHOP OPERATIONS---------------------
+
 	// -----------------INPUT VERIFICATION FUNCTIONS---------------------
-	public static int readChoice() {
+	public static int readChoice() throws Terminal.Closed {
 		int input;
 		// returns only if a correct value is given.
 		do {
-			System.out.print("Please make your choice: ");
+			out().print("Please make your choice: ");
 			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
+				input = Integer.parseInt(Terminal.current().readLine());
 				break;
+			}catch (Terminal.Closed e) {
+				throw e;
 			}catch (Exception e) {
-				System.out.println("Your input is invalid!");
+				out().println("Your input is invalid!");
 				continue;
 			}//end try
 		}while (true);
@@ -360,23 +1640,25 @@ public class MechanicShop{
 	 * @param maxVal
 	 * @return integer within range (1-maxVal)
 	 */
-	public static int readChoice(int maxVal) {
+	public static int readChoice(int maxVal) throws Terminal.Closed {
 		int input;
 		// returns only if a correct value is given.
 		do {
 			
 			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
+				input = Integer.parseInt(Terminal.current().readLine());
 				if(input > maxVal || input < 1)
 					throw new Exception();
 				break;
+			}catch (Terminal.Closed e) {
+				throw e;
 			}catch (Exception e) {
-				System.out.println("Your input is invalid!");
-				System.out.print("Please choose a number between 1 and "+ maxVal +": ");
+				out().println("Your input is invalid!");
+				out().print("Please choose a number between 1 and "+ maxVal +": ");
 				continue;
 			}//end try
 		}while (true);
-		System.out.println();
+		out().println();
 		return input;
 	}
 
@@ -385,11 +1667,11 @@ public class MechanicShop{
 	 * 
 	 * @return "y" or "n" (as strings not char)
 	 */
-	public static String readBinaryChoice() {
+	public static String readBinaryChoice() throws Terminal.Closed {
 		String input;
 		do {
 			try { 
-				input = in.readLine();
+				input = Terminal.current().readLine();
 				input = input.toLowerCase();
 				if( !(input.equals("y") || input.equals("n")) ) {
 					throw new Exception();
@@ -397,8 +1679,10 @@ public class MechanicShop{
 				else {
 					break;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			}catch (Exception e) {
-				System.out.print("Please enter 'y' or 'n': ");
+				out().print("Please enter 'y' or 'n': ");
 				continue;
 			}
 		}while(true);
@@ -409,12 +1693,12 @@ public class MechanicShop{
 	 * Reads input from user and checks that user entered a positive integer
 	 * @return inputInt - postive integer defined by user
 	 */
-	public static int readUserInteger() {
+	public static int readUserInteger() throws Terminal.Closed {
 		String input;
 		int inputInt;
 		do {
 			try {
-				input = in.readLine();
+				input = Terminal.current().readLine();
 				inputInt = Integer.parseInt(input);
 				if(inputInt < 0) {
 					throw new Exception();
@@ -422,8 +1706,10 @@ public class MechanicShop{
 				else {
 					break;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			} catch (Exception e) {
-				System.out.print("Invalid Input!\nPlease enter a positive integer: ");
+				out().print("Invalid Input!\nPlease enter a positive integer: ");
 				continue;
 			}
 		}while(true);
@@ -454,11 +1740,11 @@ public class MechanicShop{
 	 * 
 	 * @return valid name as string
 	 */
-	public static String readName() {
+	public static String readName() throws Terminal.Closed {
 		String input;
 		do {
 			try { 
-				input = in.readLine();
+				input = Terminal.current().readLine();
 				input = input.trim();
 				if( input.isEmpty() || input.contains(" ") || input.length() > 32) {
 					throw new Exception();
@@ -466,9 +1752,11 @@ public class MechanicShop{
 				else {
 					break;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			}catch (Exception e) {
-				System.out.println("\nInvalid name! Names should be at most 32 characters and contain no spaces (use '-' if needed).");
-				System.out.print("Please enter a valid name: ");
+				out().println("\nInvalid name! Names should be at most 32 characters and contain no spaces (use '-' if needed).");
+				out().print("Please enter a valid name: ");
 				continue;
 			}
 		}while(true);
@@ -479,11 +1767,11 @@ public class MechanicShop{
 	 * Used to read phone number from user. Only accepts numbers in form ###-###-####
 	 * @return string containing phone number; string has form ###-###-####
 	 */
-	public static String readPhoneNum() {
+	public static String readPhoneNum() throws Terminal.Closed {
 		String input;
 		do {
 			try {
-				input = in.readLine();
+				input = Terminal.current().readLine();
 				input = input.trim();
 				if(!input.matches("^\\d{3}-\\d{3}-\\d{4}$")) {
 					throw new Exception();
@@ -491,9 +1779,11 @@ public class MechanicShop{
 				else {
 					break;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			} catch (Exception e) {
-				System.out.println("\nInvalid phone #! Format is \"###-###-####\"");
-				System.out.print("Please enter a valid phone #: ");
+				out().println("\nInvalid phone #! Format is \"###-###-####\"");
+				out().print("Please enter a valid phone #: ");
 				continue;
 			}
 		}while(true);
@@ -506,20 +1796,22 @@ public class MechanicShop{
 	 * @param maxSize maximum size for stringType
 	 * @return valid string for this stringType
 	 */
-	public static String readUserString(String stringType,int maxSize) {
+	public static String readUserString(String stringType,int maxSize) throws Terminal.Closed {
 		String input;
 		do {
 			try {
-				input = in.readLine().trim();
+				input = Terminal.current().readLine().trim();
 				if(input.length() > maxSize) {
 					throw new Exception();
 				}
 				else {
 					break;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			} catch (Exception e) {
-				System.out.print("\nInvalid "+stringType+"! Max size is " + maxSize + " characters.");
-				System.out.print("Please enter a valid "+stringType+": ");
+				out().print("\nInvalid "+stringType+"! Max size is " + maxSize + " characters.");
+				out().print("Please enter a valid "+stringType+": ");
 			}
 		}while(true);
 		return input;
@@ -529,12 +1821,12 @@ public class MechanicShop{
 	 * Used to read a year from the user following database domain constraint. Only years satisfying database domain are accepted
 	 * @return int containing valid year
 	 */
-	public static int readYEAR_Domain() {
+	public static int readYEAR_Domain() throws Terminal.Closed {
 		String input;
 		int inputInt;
 		do {
 			try {
-				input = in.readLine();
+				input = Terminal.current().readLine();
 				inputInt = Integer.parseInt(input);
 				if(inputInt < 1970) {
 					throw new Exception();
@@ -542,8 +1834,10 @@ public class MechanicShop{
 				else {
 					break;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			} catch (Exception e) {
-				System.out.print("Invalid Input!\nPlease enter a year after 1969: ");
+				out().print("Invalid Input!\nPlease enter a year after 1969: ");
 				continue;
 			}
 		}while(true);
@@ -554,12 +1848,12 @@ public class MechanicShop{
 	 * Used to read # years (of experience) from user. Only #years satisfying database domain are accepted
 	 * @return int of valid number of years
 	 */
-	public static int readYEARS_Domain() {
+	public static int readYEARS_Domain() throws Terminal.Closed {
 		String input;
 		int inputInt;
 		do {
 			try {
-				input = in.readLine();
+				input = Terminal.current().readLine();
 				inputInt = Integer.parseInt(input);
 				if(inputInt < 0 || inputInt >= 100) {
 					throw new Exception();
@@ -567,8 +1861,10 @@ public class MechanicShop{
 				else {
 					break;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			} catch (Exception e) {
-				System.out.print("Invalid Input!\nPlease enter an integer between (0-100): ");
+				out().print("Invalid Input!\nPlease enter an integer between (0-100): ");
 				continue;
 			}
 		}while(true);
@@ -580,11 +1876,11 @@ public class MechanicShop{
 	 * Month/day numbers must match (no day 31 of feb) 
 	 * @return string date of form ##/##/####
 	 */
-	public static String readDate() {
+	public static String readDate() throws Terminal.Closed {
 		String input, userChoice;
 		do {
 			try {
-				input = in.readLine();
+				input = Terminal.current().readLine();
 				input = input.trim();
 				if(!input.matches("^\\d{1}/\\d{1}/\\d{4}|\\d{1}/\\d{2}/\\d{4}|\\d{2}/\\d{2}/\\d{4}|\\d{2}/\\d{1}/\\d{4}$")) {
 					throw new Exception();
@@ -606,7 +1902,7 @@ public class MechanicShop{
 						if(monthsInt % 2 == 0) { // even # months (feb, april, etc)
 							if(monthsInt == 2) {
 								if(daysInt == 29) {
-									System.out.print("Possible date error! Is this year a leap year?\n(y/n): ");
+									out().print("Possible date error! Is this year a leap year?\n(y/n): ");
 									userChoice = readBinaryChoice();
 									if(userChoice.equals("y")) {
 										break; // valid
@@ -633,9 +1929,11 @@ public class MechanicShop{
 					}
 					break;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			} catch (Exception e) {
-				System.out.println("\nInvalid date! Accepted format is mm/dd/yyyy");
-				System.out.print("Please enter a valid date: ");
+				out().println("\nInvalid date! Accepted format is mm/dd/yyyy");
+				out().print("Please enter a valid date: ");
 				continue;
 			}
 		}while(true);
@@ -648,21 +1946,18 @@ public class MechanicShop{
 	 * Adds customer to Customer table using input from user.
 	 * Uses verification helper functions to sanitize input
 	 */
-	public static void AddCustomer(MechanicShop esql){//1
+	public static void AddCustomer(MechanicShop esql) throws Terminal.Closed {//1
 		int c_ID;
 		String c_fname, c_lname, c_address, c_phone;
 
 		try {
-			String query = "";
-			System.out.println("\n----Adding Customer----");
+			out().println("\n----Adding Customer----");
 
-			c_ID = esql.getCurrSeqVal("cid_sequence"); // c_ID gets val from sequence
-
-			System.out.print("\nEnter first name: ");
+			out().print("\nEnter first name: ");
 			c_fname = readName();
-			System.out.print("\nEnter last name: ");
+			out().print("\nEnter last name: ");
 			c_lname = readName();
-			System.out.print("\nEnter a phone number in format ###-###-####: ");
+			out().print("\nEnter a phone number in format ###-###-####: ");
 			c_phone = readPhoneNum();
 
 			// put phone number in format (###)###-####
@@ -671,15 +1966,16 @@ public class MechanicShop{
 			c_phone = String.valueOf(c_phoneArr);
 			c_phone = "(" + c_phone;
 
-			System.out.print("\nEnter address: ");
+			out().print("\nEnter address: ");
 			c_address = readUserString("address", 256);
 			
-			query = "INSERT INTO Customer VALUES ("+c_ID+",'"+c_fname+"','"+c_lname+"','"+c_phone+"','"+c_address+"');";
-			System.out.println("\nQuery is:\n"+query);
-			esql.executeUpdate(query);
+			c_ID = esql.addCustomer(c_fname, c_lname, c_phone, c_address); // c_ID gets val from sequence
+			out().println("\nAdded customer " + c_ID);
 
+		}catch (Terminal.Closed e) {
+			throw e;
 		}catch(Exception e) {
-			System.err.println(e.getMessage());
+			err().println(e.getMessage());
 		}
 	}
 
@@ -689,21 +1985,18 @@ public class MechanicShop{
 	 * @param esql
 	 * @return id of new customer
 	 */
-	public static String AddCustomer_ReturnID(MechanicShop esql){//1
+	public static int AddCustomer_ReturnID(MechanicShop esql) throws Terminal.Closed {//1
 		int c_ID;
 		String c_fname, c_lname, c_address, c_phone;
 		do {
 			try {
-				String query = "";
-				System.out.println("\n----Adding Customer----");
-
-				c_ID = esql.getCurrSeqVal("cid_sequence"); // c_ID gets val from sequence
+				out().println("\n----Adding Customer----");
 
-				System.out.print("\nEnter first name: ");
+				out().print("\nEnter first name: ");
 				c_fname = readName();
-				System.out.print("\nEnter last name: ");
+				out().print("\nEnter last name: ");
 				c_lname = readName();
-				System.out.print("\nEnter a phone number in format ###-###-####: ");
+				out().print("\nEnter a phone number in format ###-###-####: ");
 				c_phone = readPhoneNum();
 
 				// put phone number in format (###)###-####
@@ -712,19 +2005,20 @@ public class MechanicShop{
 				c_phone = String.valueOf(c_phoneArr);
 				c_phone = "(" + c_phone;
 
-				System.out.print("\nEnter address: ");
+				out().print("\nEnter address: ");
 				c_address = readUserString("address", 256);
 				
-				query = "INSERT INTO Customer VALUES ("+c_ID+",'"+c_fname+"','"+c_lname+"','"+c_phone+"','"+c_address+"');";
-				System.out.println("\nQuery is:\n"+query);
-				esql.executeUpdate(query);
+				c_ID = esql.addCustomer(c_fname, c_lname, c_phone, c_address); // c_ID gets val from sequence
+				out().println("\nAdded customer " + c_ID);
 				break;
+			}catch (Terminal.Closed e) {
+				throw e;
 			}catch(Exception e) {
-				System.err.println(e.getMessage());
+				err().println(e.getMessage());
 				continue;
 			}
 		}while(true);
-		return Integer.toString(c_ID);
+		return c_ID;
 	}
 	
 	/**
@@ -732,7 +2026,7 @@ public class MechanicShop{
 	 * Uses verification helper functions to sanitize input
 	 * @param esql
 	 */
-	public static void AddMechanic(MechanicShop esql){//2
+	public static void AddMechanic(MechanicShop esql) throws Terminal.Closed {//2
 		/*
 		Mechanic:
 			id INTEGER NOT NULL,
@@ -743,185 +2037,212 @@ public class MechanicShop{
 		String m_fname, m_lname;
 		int m_ID, m_yearsExp;
 		try {
-			String query = "";
-			System.out.println("\n----Add Mechanic----");
-			
-			// System.out.print("\nEnter mechanic id: ");
-			// String m_ID = in.readLine();
-			m_ID = esql.getCurrSeqVal("mid_sequence");
+			out().println("\n----Add Mechanic----");
 
-			System.out.print("\nEnter first name: ");
+			out().print("\nEnter first name: ");
 			m_fname = readName();
-			System.out.print("\nEnter last name: ");
+			out().print("\nEnter last name: ");
 			m_lname = readName();
-			System.out.print("\nEnter years of experience: ");
+			out().print("\nEnter years of experience: ");
 			m_yearsExp = readYEARS_Domain();
 
-			query = "INSERT INTO Mechanic VALUES ("+m_ID+",'"+m_fname+"','"+m_lname+"',"+m_yearsExp+");";
-			System.out.println("\nQuery is:\n"+query);
-			esql.executeUpdate(query);
+			m_ID = esql.addMechanic(m_fname, m_lname, m_yearsExp);
+			out().println("\nAdded mechanic " + m_ID);
+		}catch (Terminal.Closed e) {
+			throw e;
 		}catch(Exception e) {
-			System.err.println(e.getMessage());
+			err().println(e.getMessage());
+		}
+	}
+
+	//most customers listed by a last name lookup
+	static final int CUSTOMER_LOOKUP_LIMIT = Integer.getInteger("mechanicshop.lookupLimit", 20);
+
+	/**
+	 * Tells the user when a last name lookup was cut off at CUSTOMER_LOOKUP_LIMIT
+	 * @param found number of customers returned by the lookup
+	 */
+	static void printLookupLimitNotice(int found) {
+		if (found >= CUSTOMER_LOOKUP_LIMIT) {
+			out().println("Showing the first " + CUSTOMER_LOOKUP_LIMIT + " matches, type more letters to narrow the search.");
 		}
 	}
 
 	/**
-	 * Given a customer lname, find customer ID 
+	 * Given a customer lname or the first letters of it, find customer ID 
 	 * @param esql
 	 * @return c_ID for customer with lname
 	 */
-	public static int getcIdFromLName(MechanicShop esql) {
-		String c_ID, c_lname;
-		String query,userChoice;
+	public static int getcIdFromLName(MechanicShop esql) throws Terminal.Closed {
+		int c_ID;
+		String c_lname;
+		String userChoice;
 		int userChoiceInt;
 		do {
 			try {
-				System.out.print("Enter the customer's last name: ");
+				out().print("Enter the customer's last name (or its first letters): ");
 				c_lname = readName();
 
-				query = "select * from customer where customer.lname='"+c_lname+"';";
-				// System.out.println(query);
-
 				// search database for customer(s) and save result
-				List<List<String>> listOfCustomers = esql.executeQueryAndReturnResult(query);
+				List<Customer> listOfCustomers = esql.searchCustomers(c_lname, CUSTOMER_LOOKUP_LIMIT);
+				printLookupLimitNotice(listOfCustomers.size());
 
 				if(listOfCustomers.size() > 1) { // more than one customer found for this lname
-					System.out.println("(" + listOfCustomers.size() + ") Customers found!:");
+					out().println("(" + listOfCustomers.size() + ") Customers found!:");
 
 					// print list of customers
 					for (int curCustomer = 0; curCustomer < listOfCustomers.size(); ++curCustomer) { // iterate over customers
-						System.out.print(curCustomer+1 + ". ");
-						listOfCustomers.get(curCustomer).set(4, listOfCustomers.get(curCustomer).get(4).trim()); // trim trailing whitespace on address
-						for(int curCol = 0; curCol < listOfCustomers.get(curCustomer).size(); ++curCol) { // iterate over customer columns
-							System.out.print(listOfCustomers.get(curCustomer).get(curCol) + " ");
-						}
-						System.out.println();
+						out().println((curCustomer+1) + ". " + listOfCustomers.get(curCustomer));
 					}
 
 					//prompt user to select from list of customers
-					System.out.print("\nSelect customer (1-" + listOfCustomers.size() + "): ");
+					out().print("\nSelect customer (1-" + listOfCustomers.size() + "): ");
 					userChoiceInt = readChoice(listOfCustomers.size());
 
 					// get car for this customer's SR; need to query DB for car
-					c_ID = listOfCustomers.get(userChoiceInt-1).get(0); // get customer id
+					c_ID = listOfCustomers.get(userChoiceInt-1).id; // get customer id
 					break;
 				}
 				else { // 1 or no customers with lname found
 					if(listOfCustomers.size() == 1) {
-						listOfCustomers.get(0).set(4, listOfCustomers.get(0).get(4).trim()); // trim trailing whitespace on address
-							for (int colIter = 0; colIter < listOfCustomers.get(0).size(); ++colIter) {
-								System.out.print(listOfCustomers.get(0).get(colIter) + " ");
-							}
-							System.out.println();
-							System.out.print("\nAdd car for this customer?\n(y/n): ");
+							out().println(listOfCustomers.get(0));
+							out().print("\nAdd car for this customer?\n(y/n): ");
 							userChoice = readBinaryChoice();
 							if(userChoice.equals("y")) {
-								c_ID = listOfCustomers.get(0).get(0);
+								c_ID = listOfCustomers.get(0).id;
 								break;
 							}
 							else {
-								System.out.println();
+								out().println();
 								continue;
 							}
 					}
-					System.out.println("No customer found with last name: "+c_lname);
+					out().println("No customer found with last name starting with: "+c_lname);
 					continue;
 				}
+			}catch (Terminal.Closed e) {
+				throw e;
 			}catch(Exception e) {
-				System.err.println(e.getMessage());
+				err().println(e.getMessage());
 				continue;
 			}
 		}while(true);
-		return Integer.parseInt(c_ID);
+		return c_ID;
 	}
 	
 	/**
 	 * Adds car to Car table and inserts item in Owns for the car and the customer
 	 * @param esql
 	 */
-	public static void AddCar(MechanicShop esql){//3	
-		String vin, make, model;
-		int year, c_ID, owns_ID;
-		do {
-			try {
-				String query = "";
-				System.out.println("\n----Add Car----");
-				c_ID = getcIdFromLName(esql);
-				System.out.print("Enter VIN: "); 
-				vin = readUserString("vin", 16);
-				System.out.print("\nEnter make: ");
-				make = readUserString("make", 32);
-				System.out.print("\nEnter model: ");
-				model = readUserString("model", 32);
-				System.out.print("\nEnter year: ");
-				year = readYEAR_Domain(); 
-
-				// insert car into Car
-				query = "INSERT INTO Car VALUES ('"+vin+"', '"+make+"', '"+model+"', "+year+");";
-				System.out.println("\nQuery is:\n"+query);
-				esql.executeUpdate(query);
-
-				// insert car, customer into Owns
-				owns_ID = esql.getCurrSeqVal("Ownsid_sequence");
-				query = "INSERT INTO Owns VALUES("+owns_ID+","+c_ID+",'"+vin+"');";
-				System.out.println("\nQuery is:\n"+query);
-				esql.executeUpdate(query);
-				break;
-			}catch(Exception e) {
-				System.err.println(e.getMessage());
-				continue;
-			}
-		}while(true);
-		return;
+	public static void AddCar(MechanicShop esql) throws Terminal.Closed {//3	
+		out().println("\n----Add Car----");
+		int c_ID = getcIdFromLName(esql);
+		AddCar_ReturnVIN(esql, c_ID);
 	}
 
 	/**
-	 * Adds car to Car table and inserts item in Owns for the car and the customer
-	 * AND returns vin for newly added car
+	 * Adds car to Car table and inserts item in Owns for the car and the given customer
+	 * AND returns vin for newly added car. If the insert fails, only the car is asked again.
 	 * @param esql
+	 * @param c_ID id of the customer owning the car
 	 * @return vin for newly added car
 	 */
-	public static String AddCar_ReturnVIN(MechanicShop esql){//3
+	public static String AddCar_ReturnVIN(MechanicShop esql, int c_ID) throws Terminal.Closed {//3
 		String vin, make, model;
-		int year, c_ID, owns_ID;
+		int year;
 		do {
 			try {
-				String query = "";
-				System.out.println("\n----Add Car----");
-				c_ID = getcIdFromLName(esql);
-				System.out.print("Enter VIN: "); 
+				out().print("Enter VIN: "); 
 				vin = readUserString("vin", 16);
-				System.out.print("\nEnter make: ");
+				out().print("\nEnter make: ");
 				make = readUserString("make", 32);
-				System.out.print("\nEnter model: ");
+				out().print("\nEnter model: ");
 				model = readUserString("model", 32);
-				System.out.print("\nEnter year: ");
+				out().print("\nEnter year: ");
 				year = readYEAR_Domain(); 
 
-				// insert car into Car
-				query = "INSERT INTO Car VALUES ('"+vin+"', '"+make+"', '"+model+"', "+year+");";
-				System.out.println("\nQuery is:\n"+query);
-				esql.executeUpdate(query);
-
-				// insert car, customer into Owns
-				owns_ID = esql.getCurrSeqVal("Ownsid_sequence");
-				query = "INSERT INTO Owns VALUES("+owns_ID+","+c_ID+",'"+vin+"');";
-				System.out.println("\nQuery is:\n"+query);
-				esql.executeUpdate(query);
+				// insert car into Car, car and customer into Owns
+				esql.addCar(c_ID, vin, make, model, year);
+				out().println("\nAdded car " + vin + " for customer " + c_ID);
 				break;
+			}catch (Terminal.Closed e) {
+				throw e;
 			}catch(Exception e) {
-				System.err.println(e.getMessage());
+				err().println(e.getMessage());
 				continue;
 			}
 		}while(true);
 		return vin;
 	}
 	
+	/**
+	 * Lets the user pick one of the customer's cars a page at a time, so a fleet
+	 * of hundreds of cars is never listed at once. Besides a number, the user can
+	 * enter n for the next page, v followed by the beginning of a VIN, m followed
+	 * by the beginning of a make or model, or c to clear the filters.
+	 * If the customer owns no car, one is added.
+	 * @param esql
+	 * @param c_ID id of the customer owning the car
+	 * @return vin of the selected car
+	 * @throws Exception
+	 */
+	public static String SelectCar_ReturnVIN(MechanicShop esql, int c_ID) throws Exception {
+		String vinPrefix = null, makeOrModel = null, afterVin = null;
+		List<Car> page = esql.findCarsOwned(c_ID, null, null, null, CAR_PAGE_SIZE);
+		if(page.isEmpty()) { // customer owns no cars
+			out().println("\n----Add Car----");
+			return AddCar_ReturnVIN(esql, c_ID);
+		}
+		do {
+			if(page.isEmpty()) {
+				out().println("No cars found");
+			}
+			for(int curCar = 0; curCar < page.size(); ++curCar) {
+				out().println(curCar+1 + ". " + page.get(curCar));
+			}
+			out().print("\nSelect car (1-" + page.size() + ")"
+				+ (page.size() == CAR_PAGE_SIZE ? ", n: next page" : "")
+				+ ", v <vin>, m <make/model>, c: clear filters: ");
+			String input = Terminal.current().readLine().trim();
+			String command = input.isEmpty() ? "" : input.substring(0, 1).toLowerCase(Locale.ROOT);
+			String argument = input.length() > 1 ? input.substring(1).trim() : "";
+			if(command.equals("n") && argument.isEmpty() && page.size() == CAR_PAGE_SIZE) {
+				afterVin = page.get(page.size()-1).vin;
+			}
+			else if(command.equals("v") && !argument.isEmpty()) {
+				vinPrefix = argument;
+				afterVin = null;
+			}
+			else if(command.equals("m") && !argument.isEmpty()) {
+				makeOrModel = argument;
+				afterVin = null;
+			}
+			else if(command.equals("c") && argument.isEmpty()) {
+				vinPrefix = makeOrModel = afterVin = null;
+			}
+			else {
+				try {
+					int choice = Integer.parseInt(input);
+					if(choice >= 1 && choice <= page.size()) {
+						out().println();
+						return page.get(choice-1).vin;
+					}
+				}catch (NumberFormatException e) {
+					// fall through
+				}
+				out().println("Your input is invalid!");
+				continue;
+			}
+			out().println();
+			page = esql.findCarsOwned(c_ID, vinPrefix, makeOrModel, afterVin, CAR_PAGE_SIZE);
+		}while(true);
+	}
+
 	/**
 	 * Inserts a service request for customer, car
 	 * @param esql
 	 */
-	public static void InsertServiceRequest(MechanicShop esql){//4
+	public static void InsertServiceRequest(MechanicShop esql) throws Terminal.Closed {//4
 		/*
 		Service_Request:
 			rid INTEGER NOT NULL,
@@ -932,58 +2253,45 @@ public class MechanicShop{
 			complain TEXT
 		*/
 		try {
-			String query ="";
-			String sr_cid, sr_vin, sr_date, sr_complain;
-			int sr_rid, sr_odometer;
+			String sr_vin, sr_date, sr_complain;
+			int sr_rid, sr_cid, sr_odometer;
 			String c_lname; // used to query db for cars owned by c_lname
 			int userChoiceInt = -1;
-			System.out.println("\n----Insert Service Request----");
-			System.out.print("Create service request for an existing customer?\n(y/n): ");
+			out().println("\n----Insert Service Request----");
+			out().print("Create service request for an existing customer?\n(y/n): ");
 			String userChoice = readBinaryChoice();
 			if(userChoice.equals("y")) { // user will create service request for existing customer
-				System.out.print("Enter the customer's last name: ");
+				out().print("Enter the customer's last name (or its first letters): ");
 				c_lname = readName();
 
-				query = "select * from customer where customer.lname='"+c_lname+"';";
-				System.out.println(query);
-
 				// search database for customer(s) and save result
-				List<List<String>> listOfCustomers = esql.executeQueryAndReturnResult(query);
+				List<Customer> listOfCustomers = esql.searchCustomers(c_lname, CUSTOMER_LOOKUP_LIMIT);
+				printLookupLimitNotice(listOfCustomers.size());
 
 				if(listOfCustomers.size() > 1) { // more than one customer found for this lname
-					System.out.println("(" + listOfCustomers.size() + ") Customers found!:");
+					out().println("(" + listOfCustomers.size() + ") Customers found!:");
 
 					// print list of customers
 					for (int curCustomer = 0; curCustomer < listOfCustomers.size(); ++curCustomer) { // iterate over customers
-						System.out.print(curCustomer+1 + ". ");
-						listOfCustomers.get(curCustomer).set(4, listOfCustomers.get(curCustomer).get(4).trim()); // trim trailing whitespace on address
-						for(int curCol = 0; curCol < listOfCustomers.get(curCustomer).size(); ++curCol) { // iterate over customer columns
-							// listOfCustomers.get(curCustomer).set( curCol, listOfCustomers.get(curCustomer).get(curCol).trim() );
-							System.out.print(listOfCustomers.get(curCustomer).get(curCol) + " ");
-						}
-						System.out.println();
+						out().println((curCustomer+1) + ". " + listOfCustomers.get(curCustomer));
 					}
 
 					//prompt user to select from list of customers
-					System.out.print("\nSelect customer (1-" + listOfCustomers.size() + "): ");
+					out().print("\nSelect customer (1-" + listOfCustomers.size() + "): ");
 					userChoiceInt = readChoice(listOfCustomers.size());
 
 					// get car for this customer's SR; need to query DB for car
-					sr_cid = listOfCustomers.get(userChoiceInt-1).get(0); // get customer id
+					sr_cid = listOfCustomers.get(userChoiceInt-1).id; // get customer id
 
 				}
 				else { // 1 or no customers with lname found
 					if(listOfCustomers.size() == 1) { // if one customer, confirm customer choice and add SR
-						listOfCustomers.get(0).set(4, listOfCustomers.get(0).get(4).trim()); // trim trailing whitespace on address
-						for (int colIter = 0; colIter < listOfCustomers.get(0).size(); ++colIter) {
-							System.out.print(listOfCustomers.get(0).get(colIter) + " ");
-						}
-						System.out.println();
-						System.out.print("\nInitiate request for this customer?\n(y/n): ");
+						out().println(listOfCustomers.get(0));
+						out().print("\nInitiate request for this customer?\n(y/n): ");
 						userChoice = readBinaryChoice();
 						if(userChoice.equals("y")) { 
-							System.out.print("Adding request for this customer");
-							sr_cid = listOfCustomers.get(0).get(0);
+							out().print("Adding request for this customer");
+							sr_cid = listOfCustomers.get(0).id;
 							// break;
 						}
 						else { // user does not want to add request for found customer; reprompt insert service request
@@ -992,73 +2300,47 @@ public class MechanicShop{
 						}
 					}
 					else { // customer not found
-						System.out.println("Customer does not exist!");
+						out().println("Customer does not exist!");
 						InsertServiceRequest(esql);
 						return;
 					}
 				}
 
-				// use sr_cid to fetch cars owned by customer
-				query = "SELECT Owns.car_vin FROM Owns WHERE Owns.customer_id="+sr_cid+";";
-				List<List<String>> carsOwned = esql.executeQueryAndReturnResult(query);
-
-				// if customer owns many cars, prompt user to select which car
-				if(carsOwned.size() >= 1) {
-					System.out.println("("+carsOwned.size() + ") cars owned by this customer");
-
-					// print list of cars owned by this customer
-					for(int curCar = 0; curCar < carsOwned.size(); ++curCar) {
-						System.out.print(curCar+1 + ". ");
-						System.out.print(carsOwned.get(curCar).get(0) + " ");
-						System.out.println();
-					}
-					
-					// prompt user to select from list of cars
-					System.out.print("\nSelect car (1-" + carsOwned.size() + "): ");
-					userChoiceInt = readChoice(carsOwned.size());
-					
-					// get vin for sr_vin from userChoice
-					sr_vin = carsOwned.get(userChoiceInt-1).get(0);
-				}
-				else { // customer owns no cars
-					sr_vin = AddCar_ReturnVIN(esql);
-				}
+				// pick one of the customer's cars, or add the first one
+				sr_vin = SelectCar_ReturnVIN(esql, sr_cid);
 			}
 			else {
 				// create new customer
-				System.out.print("\n------Insert Service Request------");
+				out().print("\n------Insert Service Request------");
 				sr_cid = AddCustomer_ReturnID(esql);
-				System.out.print("\n------Insert Service Request------");
-				sr_vin = AddCar_ReturnVIN(esql);
-				System.out.println();
+				out().print("\n------Insert Service Request------");
+				out().println("\n----Add Car----");
+				sr_vin = AddCar_ReturnVIN(esql, sr_cid);
+				out().println();
 			}
 			// at this point we have sr_rid, sr_cid, sr_vin
 			// get sr_date, sr_odometer, sr_complain
-			System.out.print("Enter service request date: ");
+			out().print("Enter service request date: ");
 			sr_date = readDate();
-			System.out.print("\nEnter odometer reading: ");
+			out().print("\nEnter odometer reading: ");
 			sr_odometer = readUserInteger();
-			System.out.print("\nEnter complaint (optional): ");
-			sr_complain = in.readLine();
+			out().print("\nEnter complaint (optional): ");
+			sr_complain = Terminal.current().readLine();
 			
-			String rid_sequence = "rid_sequence";
-			sr_rid = esql.getCurrSeqVal(rid_sequence);
-			query = "INSERT INTO Service_Request VALUES ("+sr_rid+","+sr_cid+",'"+sr_vin
-			+"','"+sr_date+"',"+sr_odometer+",'"+sr_complain+"');";
-			
-			System.out.println("\nQuery is:\n"+query);
-			esql.executeUpdate(query);
+			sr_rid = esql.insertServiceRequest(sr_cid, sr_vin, sr_date, sr_odometer, sr_complain);
+			out().println("\nCreated service request " + sr_rid);
+		}catch (Terminal.Closed e) {
+			throw e;
 		}catch(Exception e) {
-			System.err.println(e.getMessage());
+			err().println(e.getMessage());
 		}
 	}
 	
-	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
+	public static void CloseServiceRequest(MechanicShop esql) throws Terminal.Closed {//5
 
 		try {
 
-			String query = "";
-			int wid;
+			int eid;
 			String rid = "";
 			String mid = "";
 			String date = "";
@@ -1068,87 +2350,69 @@ public class MechanicShop{
 
 			//we do not delete service requests to maintain a history of when the request was intially opened
 
-			System.out.println("\n----Close Service Request----");
+			out().println("\n----Close Service Request----");
 
 			do {
 
-				System.out.print("Enter valid EID to close a service request: ");
-				wid = readUserInteger();
-				// if (isInt(wid) == false) {
-				// 	System.out.println("Invalid characters!");
+				out().print("Enter valid EID to close a service request: ");
+				eid = readUserInteger();
+				// if (isInt(eid) == false) {
+				// 	out().println("Invalid characters!");
 				// 	continue;
 				// }
 
-				query = "SELECT id FROM Mechanic WHERE Mechanic.id = '"+wid+"';";
-				System.out.println(query);
-				List<List<String>> listofMechanics = esql.executeQueryAndReturnResult(query);
-
-				if (listofMechanics.isEmpty()) {
-					System.out.println("No matching EID found!");
+				if (!esql.mechanicExists(eid)) {
+					out().println("No matching EID found!");
 					continue;
 				}
-				else { //else valid wid
+				else { //else valid eid
 
 					do {
 
-						System.out.println("Enter valid Service Request Number: ");
-						rid = in.readLine();
+						out().println("Enter valid Service Request Number: ");
+						rid = Terminal.current().readLine();
 
 						if (isInt(rid) == false) {
-							System.out.println("Please use valid characters! Service Request Number must be a number!");
+							out().println("Please use valid characters! Service Request Number must be a number!");
 							continue;
 						}
 
-						query = "SELECT rid FROM Service_Request WHERE Service_Request.rid = '"+rid+"';";
-						System.out.println(query);
-						List<List<String>> listofRIDS = esql.executeQueryAndReturnResult(query);
+						// get closing date
+						out().println("Enter Closing Date: ");
+						date = readDate();
 
-						if (listofRIDS.isEmpty()) {
-							System.out.println("No matching RID found!");
+						// the request must have been opened by the closing date
+						if (!esql.serviceRequestOpenedBy(Integer.parseInt(rid), date)) {
+							out().println("No matching RID opened on or before " + date + "!");
 							continue;
 						}
 						
-						break; // break if input for rid correct
-					} while (true);
-
-					// get closing date
-					do {
-
-						System.out.println("Enter Closing Date: ");
-						date = readDate();
-						// if (isInt(date) == false || (Integer.parseInt(date) < 0) || (date.length() != 8))  {
-						// 	System.out.println("Please enter valid date. Dates must be in format!"); //FIXME: date format
-						// 	continue;
-						// }
-						
-						break;
-
+						break; // break if input for rid and date correct
 					} while (true);
 
 					//valid rid
 					do {
-						wid = esql.getCurrSeqVal("wid_sequence");
-						System.out.print("Enter final bill: ");
-						bill = in.readLine();
+						out().print("Enter final bill: ");
+						bill = Terminal.current().readLine();
 						if (isInt(bill) == false || Integer.parseInt(bill) < 0) {
-							System.out.println("Invalid bill!");
+							out().println("Invalid bill!");
 							continue;
 						}
-						System.out.print("Enter final comments: ");
-						comment = in.readLine();
+						out().print("Enter final comments: ");
+						comment = Terminal.current().readLine();
 		
 
 
-						query = "INSERT INTO Closed_Request VALUES ("+wid+", '"+rid+"', 1, '"+date+"', '"+comment+"', "+bill+" );";
-						System.out.println("\nQuery is:\n"+query);
-						System.out.println(query);
-						esql.executeUpdate(query);
+						int wid = esql.closeServiceRequest(Integer.parseInt(rid), eid, date, comment, Integer.parseInt(bill));
+						out().println("\nClosed service request " + rid + " (closing id " + wid + ")");
 						return;
 					} while(true);	
 				}
 			} while (true);
+		}catch (Terminal.Closed e) {
+			throw e;
 		} catch (Exception e) {
-			System.out.print(e.getMessage());
+			out().print(e.getMessage());
 		}
 
 		
@@ -1220,7 +2484,7 @@ public class MechanicShop{
 
 		//fixme finish this
 		if ((s.substring(index1 + 1, index2)).length() != 1 && ((s.substring(index1 + 1, index2)).length() != 2)) {
-			System.out.print(s.substring(index1, index2));
+			out().print(s.substring(index1, index2));
 			return false;
 		}
 
@@ -1231,7 +2495,7 @@ public class MechanicShop{
 		}
 
 		if ((s.substring(index2 + 1, s.length()).length() != 4)) {
-			System.out.print(s.substring(index2 + 1, s.length()));
+			out().print(s.substring(index2 + 1, s.length()));
 			return false;
 		}
 
@@ -1295,96 +2559,90 @@ public class MechanicShop{
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		// 
 		try{
-			String query = "SELECT date, comment, bill FROM Closed_Request WHERE bill < 100;";
-			// System.out.println("Query is:\n"+query);
-			System.out.println("\nPrinting date, comment, and bill for all closed requests with bill lower than 100:");
-			esql.executeQueryAndPrintResult(query);
+			out().println("\nPrinting date, comment, and bill for all closed requests with bill lower than 100"
+				+ (REPORT_MONTHS > 0 ? " in the last " + REPORT_MONTHS + " months:" : ":"));
+			esql.listCustomersWithBillLessThan100(new RowPrinter());
 		}catch(Exception e) {
-			System.err.println(e.getMessage());
+			err().println(e.getMessage());
 		} 
 	}
 	
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		try {
-			String query = "SELECT C.fname, C.lname"
-			+" FROM Customer C, ("
-			+" SELECT customer_id"
-			+" FROM Owns"
-			+" GROUP BY customer_id"
-			+" HAVING COUNT(customer_id)>20) AS temp"
-			+" WHERE C.id=temp.customer_id;";
-			// System.out.println("Query is:\n"+query);
-			System.out.println("\nPrinting first and last name of customers having more than 20 different cars:");
-			esql.executeQueryAndPrintResult(query); //FIXME: Fix whitespace issues in output?
+			out().println("\nPrinting first and last name of customers having more than 20 different cars:");
+			esql.listCustomersWithMoreThan20Cars(new RowPrinter()); //FIXME: Fix whitespace issues in output?
 		} catch (Exception e) {
-			System.err.println(e.getMessage());	
+			err().println(e.getMessage());	
 		}
 	}
 	
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try{
-			String query = "SELECT DISTINCT make,model,year"
-			+ " FROM Car C, Service_Request S_R"
-			+ " WHERE year < 1995 AND S_R.car_vin = C.vin AND S_R.odometer<50000;";
-			// System.out.println("Query is:\n"+query);
-			System.out.println("\nPrinting make, model, and year of all cars built before 1995 having less than 50,000 miles:");
-			esql.executeQueryAndPrintResult(query); //FIXME: Fix whitespace issues in output?
+			out().println("\nPrinting make, model, and year of all cars built before 1995 having less than 50,000 miles"
+				+ (REPORT_MONTHS > 0 ? " in a request of the last " + REPORT_MONTHS + " months:" : ":"));
+			esql.listCarsBefore1995With50000Milles(new RowPrinter()); //FIXME: Fix whitespace issues in output?
 		}catch(Exception e){
-			System.err.println(e.getMessage());	
+			err().println(e.getMessage());	
 		}
 	}
 	
-	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
+	public static void ListKCarsWithTheMostServices(MechanicShop esql) throws Terminal.Closed {//9
 		//
 		try {
 			int userk;
 			// returns only if a correct value is given.
 			do {
-				System.out.print("Please enter a k: ");
+				out().print("Please enter a k: ");
 				try { // read the integer, parse it and break.
-					userk = Integer.parseInt(in.readLine());
+					userk = Integer.parseInt(Terminal.current().readLine());
 					if(userk < 1) {
 						throw new Exception();
 					}
 					break;
+				}catch (Terminal.Closed e) {
+					throw e;
 				}catch (Exception e) {
-					System.out.println("Your input is invalid!");
+					out().println("Your input is invalid!");
 					continue;
 				}//end try
 			}while (true);
-			
-			String query = "SELECT C.make, C.model, temp.numRequests"
-			+" FROM Car C, ("
-			+" SELECT car_vin, COUNT(rid) AS numRequests"
-			+" FROM Service_Request"
-			+" GROUP BY car_vin ) AS temp"
-			+" WHERE C.vin=temp.car_vin"
-			+" ORDER BY temp.numRequests DESC LIMIT "+userk+";";
-
-			// System.out.println("Query is:\n"+query);
-			System.out.println("\nPrinting the make, model and number of service requests for the first <"+ userk + "> cars with the highest number of service orders:");
-			esql.executeQueryAndPrintResult(query);
+
+			out().println("\nPrinting the make, model and number of service requests for the first <"+ userk + "> cars with the highest number of service orders:");
+			if (esql.reportsDispatched()) {
+				// answered like the other reports, by the snapshot or the range statements
+				esql.listKCarsWithTheMostServices(userk, new RowPrinter());
+				return;
+			}
+			// pages come from the in-memory ranking; any k and any page cost the same
+			int offset = 0;
+			do {
+				List<RankedCar> page = esql.topCarsByServices(offset, userk);
+				for (RankedCar car : page) {
+					out().println(car);
+				}
+				if (page.size() < userk) {
+					break;
+				}
+				out().print("\nn: next " + userk + " cars, anything else: back to the menu: ");
+				if (!Terminal.current().readLine().trim().equalsIgnoreCase("n")) {
+					break;
+				}
+				offset += userk;
+			}while (true);
+		}catch (Terminal.Closed e) {
+			throw e;
 		} catch (Exception e) {
-			System.err.println(e.getMessage());		
+			err().println(e.getMessage());		
 		}
 	}
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//9
 		//
 		try {
-			String query = "SELECT C.fname, C.lname, totalBill"
-			+" FROM Customer C, ("
-			+" SELECT SR.customer_id, SUM(CR.bill) AS totalBill"
-			+" FROM Closed_Request CR, Service_Request SR"
-			+" WHERE CR.rid=SR.rid"
-			+" GROUP BY SR.customer_id) AS temp"
-			+" WHERE C.id=temp.customer_id"
-			+" ORDER BY temp.totalBill DESC;";
-			// System.out.println("Query is:\n"+query);
-			System.out.println("\nPrinting the first name, last name and total bill of customers in descending order of their total bill for all cars brought to the mechanic:");
-			esql.executeQueryAndPrintResult(query);
+			out().println("\nPrinting the first name, last name and total bill of customers in descending order of their total bill for all cars brought to the mechanic:");
+			esql.listCustomersInDescendingOrderOfTheirTotalBill(new RowPrinter());
 		}catch(Exception e) {
-			System.err.println(e.getMessage());
+			err().println(e.getMessage());
 		}
 	}
-}
\ No newline at end of file
+}
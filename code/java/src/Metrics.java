@@ -0,0 +1,286 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Latency timers and row and error counters of the shop, per SQL
+ * statement (by statement cache key) and per operation (menu option or
+ * api request). The time of an operation is the time its thread spent in
+ * statements, pool waits included, so the p99 of a menu option is what
+ * the front desk waits on the shop and not on the person typing.
+ *
+ * The metrics can be scraped in Prometheus text format from
+ * http://127.0.0.1:&lt;mechanicshop.metrics.port&gt;/metrics. With
+ * mechanicshop.metrics.dump they are dumped when the process exits: to
+ * that file in the same format, or as a table on standard out for "-".
+ * -Dmechanicshop.metrics=false turns recording off.
+ *
+ */
+public class Metrics {
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mechanicshop.metrics", "true"));
+
+	/**
+	 * Latency histogram together with the rows and errors of one statement
+	 * or operation.
+	 */
+	public static class Timer {
+		private final Histogram _nanos = new Histogram();
+		private final LongAdder _rows = new LongAdder();
+		private final LongAdder _errors = new LongAdder();
+
+		/**
+		 * @param nanos time taken
+		 * @param rows rows returned or changed, or a negative number when it failed
+		 */
+		public void record(long nanos, long rows) {
+			_nanos.record(nanos);
+			if (rows < 0) {
+				_errors.increment();
+			}
+			else {
+				_rows.add(rows);
+			}
+		}
+
+		public Histogram getHistogram() {
+			return _nanos;
+		}
+
+		public long getRows() {
+			return _rows.sum();
+		}
+
+		public long getErrors() {
+			return _errors.sum();
+		}
+	}
+
+	/**
+	 * Statement time, rows and errors gathered for the operation running on a thread.
+	 */
+	private static class Operation {
+		final String name;
+		long nanos = 0;
+		long rows = 0;
+		boolean failed = false;
+
+		Operation(String name) {
+			this.name = name;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Timer> STATEMENTS = new ConcurrentHashMap<String, Timer>();
+	private static final ConcurrentHashMap<String, Timer> OPERATIONS = new ConcurrentHashMap<String, Timer>();
+	private static final ThreadLocal<Operation> CURRENT = new ThreadLocal<Operation>();
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	private static HttpServer _server;
+
+	private static Timer timer(ConcurrentHashMap<String, Timer> timers, String name) {
+		Timer timer = timers.get(name);
+		if (timer == null) {
+			Timer created = new Timer();
+			timer = timers.putIfAbsent(name, created);
+			if (timer == null) {
+				timer = created;
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * Records one execution of a statement, and adds it to the operation
+	 * running on this thread.
+	 *
+	 * @param key statement cache key
+	 * @param start System.nanoTime() before the connection was borrowed
+	 * @param rows rows returned or changed, or a negative number when it failed
+	 */
+	public static void statement(String key, long start, long rows) {
+		if (!ENABLED) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		timer(STATEMENTS, key).record(nanos, rows);
+		Operation op = CURRENT.get();
+		if (op != null) {
+			op.nanos += nanos;
+			if (rows < 0) {
+				op.failed = true;
+			}
+			else {
+				op.rows += rows;
+			}
+		}
+	}
+
+	/**
+	 * Starts gathering the statements run by this thread for operation name.
+	 */
+	public static void begin(String name) {
+		if (ENABLED) {
+			CURRENT.set(new Operation(name));
+		}
+	}
+
+	/**
+	 * Records the operation started by begin on this thread.
+	 */
+	public static void end() {
+		Operation op = CURRENT.get();
+		if (op == null) {
+			return;
+		}
+		CURRENT.remove();
+		timer(OPERATIONS, op.name).record(op.nanos, op.failed ? -1 : op.rows);
+	}
+
+	public static Map<String, Timer> getStatements() {
+		return new TreeMap<String, Timer>(STATEMENTS);
+	}
+
+	public static Map<String, Timer> getOperations() {
+		return new TreeMap<String, Timer>(OPERATIONS);
+	}
+
+	/**
+	 * Writes every timer and counter in Prometheus text exposition format.
+	 */
+	public static String prometheus() {
+		StringBuilder text = new StringBuilder();
+		family(text, "operation", "Time the shop spent on each menu option or api request.", getOperations());
+		family(text, "statement", "Time spent on each SQL statement, waiting for a connection included.", getStatements());
+		return text.toString();
+	}
+
+	private static void family(StringBuilder text, String label, String help, Map<String, Timer> timers) {
+		String name = "mechanicshop_" + label;
+		text.append("# HELP ").append(name).append("_seconds ").append(help).append('\n');
+		text.append("# TYPE ").append(name).append("_seconds summary\n");
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			String labels = label + "=\"" + escape(e.getKey()) + "\"";
+			Histogram h = e.getValue().getHistogram();
+			for (double q : QUANTILES) {
+				text.append(name).append("_seconds{").append(labels).append(",quantile=\"").append(q).append("\"} ")
+					.append(h.quantile(q) / 1e9).append('\n');
+			}
+			text.append(name).append("_seconds_sum{").append(labels).append("} ").append(h.getSum() / 1e9).append('\n');
+			text.append(name).append("_seconds_count{").append(labels).append("} ").append(h.getCount()).append('\n');
+		}
+		text.append("# HELP ").append(name).append("_rows_total Rows returned or changed.\n");
+		text.append("# TYPE ").append(name).append("_rows_total counter\n");
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			text.append(name).append("_rows_total{").append(label).append("=\"").append(escape(e.getKey())).append("\"} ")
+				.append(e.getValue().getRows()).append('\n');
+		}
+		text.append("# HELP ").append(name).append("_errors_total Executions that failed.\n");
+		text.append("# TYPE ").append(name).append("_errors_total counter\n");
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			text.append(name).append("_errors_total{").append(label).append("=\"").append(escape(e.getKey())).append("\"} ")
+				.append(e.getValue().getErrors()).append('\n');
+		}
+	}//end family
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Prints one line per timer: count, p50, p99 and max in milliseconds, rows and errors.
+	 */
+	public static void printTable(PrintStream out) {
+		out.println(String.format("%-48s %9s %9s %9s %9s %10s %7s", "operation / statement", "count", "p50(ms)",
+			"p99(ms)", "max(ms)", "rows", "errors"));
+		printRows(out, "", getOperations());
+		printRows(out, "  sql ", getStatements());
+	}
+
+	private static void printRows(PrintStream out, String prefix, Map<String, Timer> timers) {
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			Histogram h = e.getValue().getHistogram();
+			out.println(String.format("%-48s %9d %9.3f %9.3f %9.3f %10d %7d", prefix + e.getKey(), h.getCount(),
+				h.quantile(0.5) / 1e6, h.quantile(0.99) / 1e6, h.getMax() / 1e6, e.getValue().getRows(),
+				e.getValue().getErrors()));
+		}
+	}
+
+	/**
+	 * Serves the metrics on the loopback interface when mechanicshop.metrics.port
+	 * is set, and dumps them when the JVM exits if mechanicshop.metrics.dump is.
+	 *
+	 * @throws java.io.IOException when the port cannot be opened
+	 */
+	public static synchronized void start() throws IOException {
+		if (!ENABLED) {
+			return;
+		}
+		int port = Integer.getInteger("mechanicshop.metrics.port", 0);
+		if (port > 0 && _server == null) {
+			_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			_server.createContext("/metrics", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+			});
+			_server.start();
+			System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+		}
+		final String dump = System.getProperty("mechanicshop.metrics.dump");
+		if (dump != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					dump(dump);
+				}
+			}, "metrics-dump"));
+		}
+	}//end start
+
+	/**
+	 * Stops serving the metrics; the HTTP server would keep the JVM alive.
+	 */
+	public static synchronized void stop() {
+		if (_server != null) {
+			_server.stop(0);
+			_server = null;
+		}
+	}
+
+	/**
+	 * @param file file to write the metrics to, or "-" for a table on standard out
+	 */
+	private static void dump(String file) {
+		if (STATEMENTS.isEmpty() && OPERATIONS.isEmpty()) {
+			return;
+		}
+		if (file.equals("-")) {
+			printTable(System.out);
+			return;
+		}
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(prometheus().getBytes(StandardCharsets.UTF_8));
+			}finally {
+				out.close();
+			}
+		}catch (IOException e) {
+			System.err.println("Could not write metrics to " + file + ": " + e.getMessage());
+		}
+	}
+}
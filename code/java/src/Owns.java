@@ -0,0 +1,32 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Row of the Owns table.
+ *
+ */
+public final class Owns {
+	//column list matching MAPPER, for SELECT clauses
+	public static final String COLUMNS = "ownership_id, customer_id, car_vin";
+
+	public static final RowMapper<Owns> MAPPER = new RowMapper<Owns>() {
+		public Owns map (ResultSet rs) throws SQLException {
+			return new Owns(rs.getInt(1), rs.getInt(2), rs.getString(3));
+		}
+	};
+
+	public final int ownershipId;
+	public final int customerId;
+	public final String carVin;
+
+	public Owns(int ownershipId, int customerId, String carVin) {
+		this.ownershipId = ownershipId;
+		this.customerId = customerId;
+		this.carVin = carVin;
+	}
+
+	@Override
+	public String toString() {
+		return ownershipId + " " + customerId + " " + carVin;
+	}
+}
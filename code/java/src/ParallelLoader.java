@@ -0,0 +1,403 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Rebuilds the shop database from create.sql and a directory of CSV files,
+ * loading the data over several connections at once.
+ *
+ * create.sql is split into its titled sections. The sections before
+ * INSERT DATA STATEMENTS (drops, domains, tables) run first, one statement
+ * after the other. Each COPY of the data section names a table and a file;
+ * instead of running it, the loader splits that file, and any shards of it
+ * written by DataGenerator (customer-000.csv, ...), into chunks at line
+ * boundaries and streams the chunks with COPY FROM STDIN in parallel. The
+ * sections after the data (keys) then run in order, the statements of one
+ * section in parallel.
+ *
+ */
+public class ParallelLoader {
+	private static final String DATA_SECTION = "INSERT DATA STATEMENTS";
+	//a title line such as ---DOMAINS--- or -- INSERT DATA STATEMENTS --
+	private static final Pattern TITLE = Pattern.compile("^-+\\s*([A-Z][A-Z ]*[A-Z])\\s*-+$");
+	private static final Pattern COPY = Pattern.compile(
+		"(?is)COPY\\s+(\\w+)\\s*(\\([^)]*\\))?\\s*FROM\\s+'([^']+)'\\s*(.*)");
+
+	private final ConnectionPool _pool;
+	private final int _threads;
+	private final long _chunkBytes;
+
+	/**
+	 * One COPY of create.sql: the table, the statement streaming into it and
+	 * the file name it loads.
+	 */
+	private static class TableCopy {
+		final String table;
+		final String copySql;
+		final String file;
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		//nanoTime of the first chunk start and of the last chunk end
+		final AtomicLong started = new AtomicLong(Long.MAX_VALUE);
+		final AtomicLong finished = new AtomicLong();
+
+		TableCopy(String table, String copySql, String file) {
+			this.table = table;
+			this.copySql = copySql;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * @param pool pool to borrow the loading connections from
+	 * @param threads number of chunks and statements run at the same time
+	 * @param chunkBytes approximate size of the chunk sent by one COPY
+	 */
+	public ParallelLoader(ConnectionPool pool, int threads, long chunkBytes) {
+		if (threads < 1 || chunkBytes < 1) {
+			throw new IllegalArgumentException("Number of threads and chunk size must be positive");
+		}
+		this._pool = pool;
+		this._threads = threads;
+		this._chunkBytes = chunkBytes;
+	}
+
+	/**
+	 * Drops and recreates every table of createSql and loads it from dataDir.
+	 *
+	 * @param createSql path of create.sql
+	 * @param dataDir directory holding the CSV files named by its COPY statements
+	 * @throws java.sql.SQLException when a statement or a chunk fails; the database is then half built
+	 * @throws java.io.IOException when a file cannot be read
+	 * @throws java.lang.InterruptedException when interrupted while waiting for the workers
+	 */
+	public void load(String createSql, String dataDir) throws SQLException, IOException, InterruptedException {
+		Map<String, List<String>> sections = readSections(createSql);
+		if (!sections.containsKey(DATA_SECTION)) {
+			throw new IllegalArgumentException(createSql + " has no " + DATA_SECTION + " section");
+		}
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(_threads);
+		try {
+			boolean afterData = false;
+			for (Map.Entry<String, List<String>> section : sections.entrySet()) {
+				if (section.getKey().equals(DATA_SECTION)) {
+					copyData(executor, section.getValue(), dataDir);
+					afterData = true;
+				}
+				else if (!afterData) {
+					for (String sql : section.getValue()) {
+						execute(sql);
+					}
+				}
+				else {
+					long sectionStart = System.nanoTime();
+					runParallel(executor, section.getValue());
+					System.out.println(section.getKey() + ": " + section.getValue().size() + " statements in "
+						+ (System.nanoTime() - sectionStart) / 1000000 + " ms");
+				}
+			}//end for
+		}finally {
+			executor.shutdownNow();
+		}
+		execute("ANALYZE");
+		System.out.println("Database rebuilt in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}//end load
+
+	/**
+	 * Splits the files of every COPY into chunks, loads all chunks of all
+	 * tables in parallel and prints rows/sec per table.
+	 */
+	private void copyData(ExecutorService executor, List<String> statements, String dataDir)
+			throws SQLException, IOException, InterruptedException {
+		List<Future<Void>> chunks = new ArrayList<Future<Void>>();
+		List<TableCopy> copies = new ArrayList<TableCopy>();
+		long start = System.nanoTime();
+		for (String sql : statements) {
+			Matcher m = COPY.matcher(sql.trim());
+			if (!m.matches()) {
+				// not a file COPY, run it as it is
+				execute(sql);
+				continue;
+			}
+			String columns = m.group(2) == null ? "" : " " + m.group(2);
+			final TableCopy copy = new TableCopy(m.group(1), "COPY " + m.group(1) + columns + " FROM STDIN " + m.group(4),
+				new File(m.group(3)).getName());
+			copies.add(copy);
+			File[] files = filesOf(dataDir, copy.file);
+			if (files.length == 0) {
+				throw new IOException("No " + copy.file + " in " + dataDir);
+			}
+			for (final File file : files) {
+				long[] bounds = chunkBounds(file);
+				for (int i = 0; i + 1 < bounds.length; ++i) {
+					final long from = bounds[i];
+					final long to = bounds[i + 1];
+					chunks.add(executor.submit(new Callable<Void>() {
+						public Void call() throws SQLException, IOException {
+							copyChunk(copy, file, from, to);
+							return null;
+						}
+					}));
+				}
+			}
+		}//end for
+		awaitAll(chunks);
+		long elapsed = System.nanoTime() - start;
+
+		long rows = 0;
+		for (TableCopy copy : copies) {
+			long nanos = copy.finished.get() - copy.started.get();
+			System.out.println(String.format("%-16s %10d rows %8d MB %8d ms %10d rows/sec", copy.table, copy.rows.get(),
+				copy.bytes.get() >> 20, Math.max(0, nanos) / 1000000, rowsPerSecond(copy.rows.get(), nanos)));
+			rows += copy.rows.get();
+		}
+		System.out.println(String.format("%-16s %10d rows %8s    %8d ms %10d rows/sec", "all tables", rows, "",
+			elapsed / 1000000, rowsPerSecond(rows, elapsed)));
+	}//end copyData
+
+	/**
+	 * Streams bytes [from, to) of file into the table of copy on its own
+	 * connection and transaction.
+	 */
+	private void copyChunk(TableCopy copy, File file, long from, long to) throws SQLException, IOException {
+		long begin = System.nanoTime();
+		copy.started.accumulateAndGet(begin, Math::min);
+		ConnectionPool.ShopConnection conn = _pool.borrow();
+		InputStream in = new FileInputStream(file);
+		try {
+			Connection connection = conn.connection();
+			Statement stmt = connection.createStatement();
+			// the whole load is redone if the machine fails halfway
+			stmt.execute("SET synchronous_commit = off");
+			stmt.close();
+			skipFully(in, from);
+			long rows = ((PGConnection) connection).getCopyAPI().copyIn(copy.copySql, new RangeInputStream(in, to - from));
+			stmt = connection.createStatement();
+			stmt.execute("RESET synchronous_commit");
+			stmt.close();
+			copy.rows.addAndGet(rows);
+			copy.bytes.addAndGet(to - from);
+		}catch (SQLException e) {
+			conn.failed(e);
+			throw new SQLException("Loading " + file + " bytes " + from + "-" + to + " failed: " + e.getMessage(),
+				e.getSQLState(), e);
+		}finally {
+			in.close();
+			_pool.release(conn);
+		}
+		copy.finished.accumulateAndGet(System.nanoTime(), Math::max);
+	}//end copyChunk
+
+	/**
+	 * Offsets splitting file into chunks of about _chunkBytes, each moved
+	 * forward to just after the next line break.
+	 */
+	private long[] chunkBounds(File file) throws IOException {
+		long size = file.length();
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			long pos = 0;
+			while (size - bounds.get(bounds.size() - 1) > _chunkBytes) {
+				long target = bounds.get(bounds.size() - 1) + _chunkBytes;
+				skipFully(in, target - pos);
+				pos = target;
+				int c;
+				while ((c = in.read()) != -1) {
+					++pos;
+					if (c == '\n') break;
+				}
+				if (pos >= size) break;
+				bounds.add(pos);
+			}
+		}finally {
+			in.close();
+		}
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}//end chunkBounds
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				throw new IOException("Unexpected end of file");
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * The file itself and its DataGenerator shards: for customer.csv,
+	 * customer.csv and customer-NNN.csv.
+	 */
+	private static File[] filesOf(String dataDir, String name) {
+		String base = name.endsWith(".csv") ? name.substring(0, name.length() - 4) : name;
+		final Pattern shard = Pattern.compile(Pattern.quote(base) + "(-\\d+)?\\.csv");
+		File[] files = new File(dataDir).listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		List<File> matching = new ArrayList<File>();
+		for (File f : files) {
+			if (f.isFile() && shard.matcher(f.getName()).matches()) {
+				matching.add(f);
+			}
+		}
+		File[] result = matching.toArray(new File[matching.size()]);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private void runParallel(ExecutorService executor, List<String> statements) throws SQLException, InterruptedException {
+		List<Future<Void>> running = new ArrayList<Future<Void>>();
+		for (final String sql : statements) {
+			running.add(executor.submit(new Callable<Void>() {
+				public Void call() throws SQLException {
+					execute(sql);
+					return null;
+				}
+			}));
+		}
+		try {
+			awaitAll(running);
+		}catch (IOException e) {
+			throw new SQLException(e);
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		ConnectionPool.ShopConnection conn = _pool.borrow();
+		try {
+			Statement stmt = conn.connection().createStatement();
+			stmt.execute("SET maintenance_work_mem = '" + System.getProperty("mechanicshop.load.maintenanceWorkMem", "256MB") + "'");
+			stmt.execute(sql);
+			stmt.execute("RESET maintenance_work_mem");
+			stmt.close();
+		}catch (SQLException e) {
+			conn.failed(e);
+			throw e;
+		}finally {
+			_pool.release(conn);
+		}
+	}
+
+	/**
+	 * Waits for every task, cancelling the rest when one fails.
+	 */
+	private static void awaitAll(List<Future<Void>> tasks) throws SQLException, IOException, InterruptedException {
+		try {
+			for (Future<Void> task : tasks) {
+				task.get();
+			}
+		}catch (ExecutionException e) {
+			for (Future<Void> task : tasks) {
+				task.cancel(true);
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new SQLException(cause);
+		}
+	}
+
+	/**
+	 * Reads createSql into its statements grouped by section title, in file
+	 * order. Statements before the first title go into an untitled section.
+	 */
+	static Map<String, List<String>> readSections(String createSql) throws IOException {
+		Map<String, List<String>> sections = new LinkedHashMap<String, List<String>>();
+		List<String> current = new ArrayList<String>();
+		sections.put("", current);
+		StringBuilder statement = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(createSql));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Matcher title = TITLE.matcher(line.trim());
+				if (title.matches()) {
+					current = new ArrayList<String>();
+					sections.put(title.group(1), current);
+					continue;
+				}
+				int comment = line.indexOf("--");
+				if (comment >= 0) {
+					line = line.substring(0, comment);
+				}
+				int end;
+				while ((end = line.indexOf(';')) >= 0) {
+					statement.append(line, 0, end);
+					if (statement.toString().trim().length() > 0) {
+						current.add(statement.toString().trim());
+					}
+					statement.setLength(0);
+					line = line.substring(end + 1);
+				}
+				statement.append(line).append('\n');
+			}
+		}finally {
+			reader.close();
+		}
+		return sections;
+	}//end readSections
+
+	private static long rowsPerSecond(long rows, long nanos) {
+		return nanos <= 0 ? rows : rows * 1000000000L / nanos;
+	}
+
+	/**
+	 * Stream over the next length bytes of another stream.
+	 */
+	private static class RangeInputStream extends InputStream {
+		private final InputStream _in;
+		private long _remaining;
+
+		RangeInputStream(InputStream in, long length) {
+			this._in = in;
+			this._remaining = length;
+		}
+
+		public int read() throws IOException {
+			if (_remaining <= 0) return -1;
+			int c = _in.read();
+			if (c >= 0) --_remaining;
+			return c;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (_remaining <= 0) return -1;
+			int n = _in.read(b, off, (int) Math.min(len, _remaining));
+			if (n > 0) _remaining -= n;
+			return n;
+		}
+	}
+}
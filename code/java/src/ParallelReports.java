@@ -0,0 +1,387 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs each report as several statements at once, one per range of the
+ * customer ids, VINs or closed request ids, each on its own pooled
+ * connection and so on its own backend, and merges their results: ordered
+ * reports by a k-way merge of the ordered ranges, DISTINCT ones by
+ * dropping rows an earlier range already returned.
+ *
+ * Range bounds are taken from the tables (min and max of the ids,
+ * percentiles of the VINs) and reused for mechanicshop.report.parallel.boundsMs
+ * ms. The first and last ranges are open, so rows added since are still
+ * read; stale bounds only make the ranges uneven. The ranges are held in
+ * memory until all of them are read, unlike the single statement reports
+ * which are streamed.
+ *
+ */
+public class ParallelReports {
+	//a key space split into ranges: the split points, in order
+	private static class Bounds {
+		final Object[] splits;
+		final long readAt = System.currentTimeMillis();
+
+		Bounds(Object[] splits) {
+			this.splits = splits;
+		}
+	}
+
+	/**
+	 * The rows of one range, kept for the merge.
+	 */
+	private static class Partial extends ReportRows {
+		String[] names;
+		final List<String[]> rows = new ArrayList<String[]>();
+
+		public void columns(String... names) {
+			this.names = names;
+		}
+
+		public void values(String... values) {
+			rows.add(values);
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final int _ranges;
+	private final long _boundsMs;
+	private final ExecutorService _executor;
+	private Bounds _customerBounds;
+	private Bounds _vinBounds;
+	private Bounds _widBounds;
+
+	/**
+	 * @param esql shop whose connections run the ranges
+	 * @param ranges number of ranges, and of statements run at once, per report
+	 */
+	public ParallelReports(MechanicShop esql, int ranges) {
+		if (ranges < 2) {
+			throw new IllegalArgumentException("At least two ranges are needed, got " + ranges);
+		}
+		this._esql = esql;
+		this._ranges = ranges;
+		this._boundsMs = Long.getLong("mechanicshop.report.parallel.boundsMs", 600000L);
+		this._executor = Executors.newFixedThreadPool(ranges, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "parallel-report");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void close() {
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Date, comment and bill of closed requests with a bill under 100, by wid range.
+	 */
+	public int listCustomersWithBillLessThan100(ReportRows handler) throws SQLException {
+		long start = System.nanoTime();
+		List<Partial> partials;
+		if (MechanicShop.REPORT_MONTHS > 0) {
+			partials = run("ParallelBillLessThan100.recent", "SELECT date, comment, bill FROM Closed_Request"
+				+ " WHERE %s AND bill < 100 AND date >= " + MechanicShop.REPORT_SINCE + ";", "wid", widBounds(),
+				MechanicShop.REPORT_MONTHS);
+		}
+		else {
+			partials = run("ParallelBillLessThan100", "SELECT date, comment, bill FROM Closed_Request WHERE %s AND bill < 100;",
+				"wid", widBounds());
+		}
+		return finish("Parallel.ListCustomersWithBillLessThan100", start, concat(partials, handler));
+	}
+
+	/**
+	 * First and last name of customers owning more than 20 cars, by customer range.
+	 */
+	public int listCustomersWithMoreThan20Cars(ReportRows handler) throws SQLException {
+		long start = System.nanoTime();
+		List<Partial> partials = run("ParallelMoreThan20Cars", "SELECT C.fname, C.lname"
+			+ " FROM Customer C, (SELECT customer_id FROM Owns WHERE %s GROUP BY customer_id HAVING COUNT(customer_id)>20) AS temp"
+			+ " WHERE C.id=temp.customer_id;", "customer_id", customerBounds());
+		return finish("Parallel.ListCustomersWithMoreThan20Cars", start, concat(partials, handler));
+	}
+
+	/**
+	 * Make, model and year of cars built before 1995 serviced under 50000
+	 * miles, by VIN range; a make, model and year found in several ranges
+	 * is returned once.
+	 */
+	public int listCarsBefore1995With50000Milles(ReportRows handler) throws SQLException {
+		long start = System.nanoTime();
+		List<Partial> partials;
+		if (MechanicShop.REPORT_MONTHS > 0) {
+			partials = run("ParallelBefore1995.recent", "SELECT DISTINCT make, model, year FROM Car C, Service_Request S_R"
+				+ " WHERE %s AND year < 1995 AND S_R.car_vin = C.vin AND S_R.odometer<50000 AND S_R.date >= "
+				+ MechanicShop.REPORT_SINCE + ";", "C.vin", vinBounds(), MechanicShop.REPORT_MONTHS);
+		}
+		else {
+			partials = run("ParallelBefore1995", "SELECT DISTINCT make, model, year FROM Car C, Service_Request S_R"
+				+ " WHERE %s AND year < 1995 AND S_R.car_vin = C.vin AND S_R.odometer<50000;", "C.vin", vinBounds());
+		}
+		return finish("Parallel.ListCarsBefore1995With50000Milles", start, distinct(partials, handler));
+	}
+
+	/**
+	 * Make, model and number of requests of the k most serviced cars: the
+	 * k most serviced of every VIN range, merged.
+	 */
+	public int listKCarsWithTheMostServices(int k, ReportRows handler) throws SQLException {
+		long start = System.nanoTime();
+		List<Partial> partials = run("ParallelKCarsWithTheMostServices", "SELECT C.make, C.model, T.num_requests AS numRequests"
+			+ " FROM Car_Service_Count T, Car C WHERE %s AND C.vin=T.car_vin AND T.num_requests > 0"
+			+ " ORDER BY T.num_requests DESC LIMIT ?;", "T.car_vin", vinBounds(), k);
+		return finish("Parallel.ListKCarsWithTheMostServices", start, merge(partials, 2, k, handler));
+	}
+
+	/**
+	 * First name, last name and total bill of customers, highest total
+	 * first, by customer range.
+	 */
+	public int listCustomersInDescendingOrderOfTheirTotalBill(ReportRows handler) throws SQLException {
+		long start = System.nanoTime();
+		List<Partial> partials = run("ParallelTotalBill", "SELECT C.fname, C.lname, T.total_bill AS totalBill"
+			+ " FROM Customer_Bill_Total T, Customer C WHERE %s AND C.id=T.customer_id AND T.total_bill > 0"
+			+ " ORDER BY T.total_bill DESC;", "T.customer_id", customerBounds());
+		return finish("Parallel.ListCustomersInDescendingOrderOfTheirTotalBill", start,
+			merge(partials, 2, Integer.MAX_VALUE, handler));
+	}
+
+	private static int finish(String key, long start, int rows) {
+		Metrics.statement(key, start, rows);
+		return rows;
+	}
+
+	private synchronized Bounds customerBounds() throws SQLException {
+		if (_customerBounds == null || System.currentTimeMillis() - _customerBounds.readAt > _boundsMs) {
+			_customerBounds = idBounds("ParallelCustomerBounds", "SELECT min(id), max(id) FROM Customer;");
+		}
+		return _customerBounds;
+	}
+
+	private synchronized Bounds widBounds() throws SQLException {
+		if (_widBounds == null || System.currentTimeMillis() - _widBounds.readAt > _boundsMs) {
+			_widBounds = idBounds("ParallelWidBounds", "SELECT min(wid), max(wid) FROM Closed_Request;");
+		}
+		return _widBounds;
+	}
+
+	/**
+	 * Splits the ids between the min and max returned by query into ranges of equal width.
+	 */
+	private Bounds idBounds(String key, String query) throws SQLException {
+		List<List<String>> result = _esql.executeQueryAndReturnResult(key, query);
+		if (result.isEmpty() || result.get(0).get(0) == null) {
+			return new Bounds(new Object[0]);
+		}
+		long min = Long.parseLong(result.get(0).get(0).trim());
+		long max = Long.parseLong(result.get(0).get(1).trim());
+		Object[] splits = new Object[_ranges - 1];
+		for (int i = 1; i < _ranges; ++i) {
+			splits[i - 1] = (int) (min + (max - min + 1) * i / _ranges);
+		}
+		return new Bounds(splits);
+	}
+
+	/**
+	 * Splits the VINs at percentiles, so each range holds about as many cars.
+	 */
+	private synchronized Bounds vinBounds() throws SQLException {
+		if (_vinBounds == null || System.currentTimeMillis() - _vinBounds.readAt > _boundsMs) {
+			List<Double> fractions = new ArrayList<Double>();
+			for (int i = 1; i < _ranges; ++i) {
+				fractions.add((double) i / _ranges);
+			}
+			List<List<String>> result = _esql.executeQueryAndReturnResult("ParallelVinBounds",
+				"SELECT unnest(percentile_disc(CAST(? AS FLOAT8[])) WITHIN GROUP (ORDER BY vin)) FROM Car;",
+				MechanicShop.arrayLiteral(fractions));
+			List<Object> splits = new ArrayList<Object>();
+			for (List<String> row : result) {
+				// an empty Car table has no percentiles
+				if (row.get(0) != null) {
+					splits.add(row.get(0).trim());
+				}
+			}
+			_vinBounds = new Bounds(splits.toArray());
+		}
+		return _vinBounds;
+	}
+
+	/**
+	 * Runs query once per range of bounds at the same time and waits for all
+	 * of them. The %s of query is replaced by the condition on column
+	 * selecting a range; its parameters come before params.
+	 *
+	 * @return the rows of every range, in range order
+	 */
+	private List<Partial> run(String key, String query, String column, Bounds bounds, Object... params) throws SQLException {
+		Object[] splits = bounds.splits;
+		List<Future<Partial>> tasks = new ArrayList<Future<Partial>>();
+		for (int i = 0; i <= splits.length; ++i) {
+			final Object from = i > 0 ? splits[i - 1] : null;
+			final Object to = i < splits.length ? splits[i] : null;
+			List<Object> bound = new ArrayList<Object>();
+			String range;
+			if (from != null && to != null) {
+				range = column + " >= ? AND " + column + " < ?";
+				bound.add(from);
+				bound.add(to);
+			}
+			else if (from != null) {
+				range = column + " >= ?";
+				bound.add(from);
+			}
+			else if (to != null) {
+				range = column + " < ?";
+				bound.add(to);
+			}
+			else {
+				range = "TRUE";
+			}
+			bound.addAll(Arrays.asList(params));
+			// the four shapes of range are four statements
+			final String rangeKey = key + (from == null ? "" : ".from") + (to == null ? "" : ".to");
+			final String rangeQuery = String.format(query, range);
+			final Object[] rangeParams = bound.toArray();
+			tasks.add(_executor.submit(new Callable<Partial>() {
+				public Partial call() throws SQLException {
+					Partial partial = new Partial();
+					_esql.executeQueryStreaming(rangeKey, rangeQuery, MechanicShop.REPORT_FETCH_SIZE, partial, rangeParams);
+					return partial;
+				}
+			}));
+		}//end for
+
+		List<Partial> partials = new ArrayList<Partial>();
+		try {
+			for (Future<Partial> task : tasks) {
+				partials.add(task.get());
+			}
+		}catch (ExecutionException e) {
+			for (Future<Partial> task : tasks) {
+				task.cancel(true);
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new SQLException(cause);
+		}catch (InterruptedException e) {
+			for (Future<Partial> task : tasks) {
+				task.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the report ranges", e);
+		}
+		return partials;
+	}//end run
+
+	/**
+	 * Hands the column names of the first range returning rows to handler.
+	 *
+	 * @return false if no range returned rows
+	 */
+	private static boolean columns(List<Partial> partials, ReportRows handler) {
+		for (Partial partial : partials) {
+			if (partial.names != null) {
+				handler.columns(partial.names);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands the rows of every range to handler, range after range.
+	 */
+	private static int concat(List<Partial> partials, ReportRows handler) {
+		if (!columns(partials, handler)) {
+			return 0;
+		}
+		int rows = 0;
+		for (Partial partial : partials) {
+			for (String[] row : partial.rows) {
+				handler.values(row);
+				++rows;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Hands every distinct row of the ranges to handler once.
+	 */
+	private static int distinct(List<Partial> partials, ReportRows handler) {
+		if (!columns(partials, handler)) {
+			return 0;
+		}
+		LinkedHashSet<List<String>> seen = new LinkedHashSet<List<String>>();
+		for (Partial partial : partials) {
+			for (String[] row : partial.rows) {
+				if (seen.add(Arrays.asList(row))) {
+					handler.values(row);
+				}
+			}
+		}
+		return seen.size();
+	}
+
+	/**
+	 * The position of a k-way merge in one range.
+	 */
+	private static class Cursor {
+		final Partial partial;
+		int next = 0;
+		long key;
+
+		Cursor(Partial partial) {
+			this.partial = partial;
+		}
+	}
+
+	/**
+	 * Merges ranges ordered by the integer column, highest first, into one
+	 * ordered result of at most limit rows, holding one row per range in a
+	 * heap.
+	 */
+	private static int merge(List<Partial> partials, final int column, int limit, ReportRows handler) {
+		if (!columns(partials, handler)) {
+			return 0;
+		}
+		PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(partials.size(), new Comparator<Cursor>() {
+			public int compare(Cursor a, Cursor b) {
+				return Long.compare(b.key, a.key);
+			}
+		});
+		for (Partial partial : partials) {
+			if (!partial.rows.isEmpty()) {
+				Cursor cursor = new Cursor(partial);
+				cursor.key = Long.parseLong(partial.rows.get(0)[column].trim());
+				heads.add(cursor);
+			}
+		}
+		int rows = 0;
+		while (rows < limit && !heads.isEmpty()) {
+			Cursor cursor = heads.poll();
+			handler.values(cursor.partial.rows.get(cursor.next++));
+			++rows;
+			if (cursor.next < cursor.partial.rows.size()) {
+				cursor.key = Long.parseLong(cursor.partial.rows.get(cursor.next)[column].trim());
+				heads.add(cursor);
+			}
+		}
+		return rows;
+	}//end merge
+}
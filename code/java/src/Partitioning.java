@@ -0,0 +1,163 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Upkeep of the monthly partitions of Service_Request and Closed_Request
+ * created by the partition_by_date schema change. Partitions are created
+ * some months ahead so inserts never wait for one, and partitions older
+ * than a retention period can be detached into the archive schema, where
+ * they stay as plain tables that no report scans. A request dated in a
+ * month without a partition gets one on the spot.
+ *
+ * Car_Service_Count and Customer_Bill_Total keep counting archived requests.
+ *
+ */
+public class Partitioning {
+	private static final String[] TABLES = {"Service_Request", "Closed_Request"};
+
+	private final ConnectionPool _pool;
+	private volatile boolean _closed = false;
+
+	public Partitioning(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Servers before PostgreSQL 10 have no pg_partitioned_table and so no
+	 * partitioned table: the catalog is only read once it is found.
+	 *
+	 * @return true if Service_Request is partitioned
+	 * @throws java.sql.SQLException when the catalog cannot be read
+	 */
+	public static boolean isPartitioned(ConnectionPool pool) throws SQLException {
+		ConnectionPool.ShopConnection conn = pool.borrow();
+		try {
+			ResultSet rs = conn.statements().prepare("hasPartitionCatalog",
+				"SELECT to_regclass('pg_catalog.pg_partitioned_table') IS NOT NULL").executeQuery();
+			rs.next();
+			boolean partitioned = rs.getBoolean(1);
+			rs.close();
+			if (partitioned) {
+				PreparedStatement stmt = conn.statements().prepare("isPartitioned",
+					"SELECT 1 FROM pg_partitioned_table WHERE partrelid = to_regclass('service_request')");
+				rs = stmt.executeQuery();
+				partitioned = rs.next();
+				rs.close();
+			}
+			return partitioned;
+		}catch (SQLException e) {
+			conn.failed(e);
+			throw e;
+		}finally {
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * @return true if e reports a row whose date has no partition
+	 */
+	public static boolean isMissingPartition(SQLException e) {
+		return "23514".equals(e.getSQLState()) && e.getMessage() != null && e.getMessage().contains("no partition");
+	}
+
+	/**
+	 * Creates the partitions of both tables from the current month to
+	 * monthsAhead months ahead.
+	 *
+	 * @return number of partitions created
+	 * @throws java.sql.SQLException when a partition cannot be created
+	 */
+	public int ensureAhead(int monthsAhead) throws SQLException {
+		return call("ensurePartitions", "SELECT shop_ensure_partitions(?, current_date,"
+			+ " CAST(current_date + make_interval(months => ?) AS DATE))", monthsAhead);
+	}
+
+	/**
+	 * Creates the partitions of both tables for the month of date.
+	 *
+	 * @param date a date in the format accepted by the shop, mm/dd/yyyy
+	 * @return number of partitions created
+	 * @throws java.sql.SQLException when a partition cannot be created
+	 */
+	public int ensureFor(String date) throws SQLException {
+		return call("ensurePartitionsFor", "SELECT shop_ensure_partitions(?, CAST(? AS DATE), CAST(? AS DATE))", date, date);
+	}
+
+	/**
+	 * Detaches the partitions of both tables holding only months that ended
+	 * more than keepMonths months ago and moves them to the archive schema.
+	 *
+	 * @return number of partitions archived
+	 * @throws java.sql.SQLException when a partition cannot be detached
+	 */
+	public int archive(int keepMonths) throws SQLException {
+		if (keepMonths < 1) {
+			throw new IllegalArgumentException("At least one month must be kept");
+		}
+		return call("archivePartitions", "SELECT shop_archive_partitions(?,"
+			+ " CAST(date_trunc('month', current_date) - make_interval(months => ?) AS DATE))", keepMonths - 1);
+	}
+
+	/**
+	 * Runs a maintenance function once for each table, each in its own
+	 * transaction, and adds up the partitions it reports.
+	 */
+	private int call(String key, String sql, Object... params) throws SQLException {
+		int total = 0;
+		for (String table : TABLES) {
+			ConnectionPool.ShopConnection conn = _pool.borrow();
+			try {
+				PreparedStatement stmt = conn.statements().prepare(key, sql);
+				stmt.setString(1, table);
+				for (int i = 0; i < params.length; ++i) {
+					stmt.setObject(i + 2, params[i]);
+				}
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				total += rs.getInt(1);
+				rs.close();
+			}catch (SQLException e) {
+				conn.failed(e);
+				throw e;
+			}finally {
+				_pool.release(conn);
+			}
+		}
+		return total;
+	}//end call
+
+	/**
+	 * Keeps monthsAhead months of partitions ready, and with keepMonths
+	 * above 0 archives older ones, now and then once a day in a background
+	 * thread.
+	 */
+	public void start(final int monthsAhead, final int keepMonths) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				while (!_closed) {
+					try {
+						int created = ensureAhead(monthsAhead);
+						int archived = keepMonths > 0 ? archive(keepMonths) : 0;
+						if (created + archived > 0) {
+							System.out.println("Partitions: " + created + " created, " + archived + " archived");
+						}
+					}catch (SQLException e) {
+						System.err.println("Partition maintenance failed: " + e.getMessage());
+					}
+					try {
+						Thread.sleep(24L * 3600 * 1000);
+					}catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "partition-maintenance");
+		thread.setDaemon(true);
+		thread.start();
+	}//end start
+
+	public void close() {
+		_closed = true;
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ * A car with its place in the ranking of cars by number of service requests.
+ *
+ */
+public final class RankedCar {
+	//1 for the car with the most requests
+	public final int rank;
+	public final Car car;
+	public final int numRequests;
+
+	public RankedCar(int rank, Car car, int numRequests) {
+		this.rank = rank;
+		this.car = car;
+		this.numRequests = numRequests;
+	}
+
+	@Override
+	public String toString() {
+		return rank + ". " + car.make + " " + car.model + " " + numRequests;
+	}
+}
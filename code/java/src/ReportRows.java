@@ -0,0 +1,46 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a report as strings, whether they are read from a
+ * query or computed in memory by the analytics snapshot. Before the rows
+ * of each result, columns is called with the column names.
+ *
+ */
+public abstract class ReportRows implements RowHandler {
+	//result set the column count was read from
+	private ResultSet _current;
+	private int _columnCount;
+
+	/**
+	 * Called before the first row of a result.
+	 *
+	 * @param names names of the columns of every following row
+	 */
+	public void columns(String... names) {
+	}
+
+	/**
+	 * Called once per row, in result order.
+	 */
+	public abstract void values(String... values);
+
+	public void row(ResultSet rs) throws SQLException {
+		if (rs != _current) {
+			ResultSetMetaData rsmd = rs.getMetaData();
+			_current = rs;
+			_columnCount = rsmd.getColumnCount();
+			String[] names = new String[_columnCount];
+			for (int i = 0; i < _columnCount; ++i) {
+				names[i] = rsmd.getColumnName(i + 1);
+			}
+			columns(names);
+		}
+		String[] values = new String[_columnCount];
+		for (int i = 0; i < _columnCount; ++i) {
+			values[i] = rs.getString(i + 1);
+		}
+		values(values);
+	}
+}
@@ -0,0 +1,18 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback receiving the rows of a streamed query one at a time. The
+ * result set is positioned on the current row; handlers read the columns
+ * they need and must not call next() or close() themselves.
+ *
+ */
+public interface RowHandler {
+	/**
+	 * Called once per row, in result order.
+	 *
+	 * @param rs result set positioned on the row
+	 * @throws java.sql.SQLException when a column cannot be read
+	 */
+	void row (ResultSet rs) throws SQLException;
+}
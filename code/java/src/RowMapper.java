@@ -0,0 +1,16 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to a typed record, reading each
+ * column with its native getter instead of going through strings.
+ *
+ */
+public interface RowMapper<T> {
+	/**
+	 * @param rs result set positioned on the row to map
+	 * @return the record for the row
+	 * @throws java.sql.SQLException when a column cannot be read
+	 */
+	T map (ResultSet rs) throws SQLException;
+}
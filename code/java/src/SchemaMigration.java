@@ -0,0 +1,296 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered list of schema changes applied on top of create.sql. Each step
+ * runs once per database, in its own transaction, and is recorded in the
+ * Schema_Migration table. An advisory lock keeps two terminals starting at
+ * the same time from applying the same step twice.
+ *
+ */
+public class SchemaMigration {
+	//arbitrary key for pg_advisory_xact_lock shared by every shop process
+	private static final long LOCK_KEY = 166166L;
+
+	private static class Step {
+		final String name;
+		final String sql;
+
+		Step(String name, String sql) {
+			this.name = name;
+			this.sql = sql;
+		}
+	}
+
+	/**
+	 * Partitions Service_Request and Closed_Request by month of their date
+	 * (PostgreSQL 11 or later), see Partitioning. Only months holding rows
+	 * get a partition here. A unique key of a partitioned table must contain
+	 * the date, so the primary keys become (rid, date) and (wid, date), and
+	 * the foreign key from Closed_Request to Service_Request becomes a
+	 * trigger, which also checks the request was opened by the closing date.
+	 * Triggers keep every rid and wid in the unpartitioned Service_Request_Id
+	 * and Closed_Request_Id, whose primary keys refuse an id already used on
+	 * another date with a unique violation, as the old primary keys did.
+	 * Ids of archived partitions stay there, so they are never reused.
+	 */
+	private static final String PARTITION_BY_DATE =
+		"CREATE OR REPLACE FUNCTION shop_ensure_partitions(parent TEXT, first_day DATE, last_day DATE) RETURNS INTEGER AS $$"
+		+ " DECLARE"
+		+ "  m DATE := date_trunc('month', first_day)::date;"
+		+ "  part TEXT;"
+		+ "  created INTEGER := 0;"
+		+ " BEGIN"
+		+ "  WHILE m <= last_day LOOP"
+		+ "   part := lower(parent) || '_' || to_char(m, 'YYYY_MM');"
+		+ "   IF to_regclass(part) IS NULL THEN"
+		+ "    EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)',"
+		+ "     part, lower(parent), m, (m + interval '1 month')::date);"
+		+ "    created := created + 1;"
+		+ "   END IF;"
+		+ "   m := (m + interval '1 month')::date;"
+		+ "  END LOOP;"
+		+ "  RETURN created;"
+		+ " END $$ LANGUAGE plpgsql;"
+		+ " CREATE SCHEMA IF NOT EXISTS archive;"
+		+ " CREATE OR REPLACE FUNCTION shop_archive_partitions(parent TEXT, before DATE) RETURNS INTEGER AS $$"
+		+ " DECLARE"
+		+ "  part RECORD;"
+		+ "  archived INTEGER := 0;"
+		+ " BEGIN"
+		+ "  FOR part IN SELECT c.relname FROM pg_inherits i, pg_class c"
+		+ "   WHERE c.oid = i.inhrelid AND i.inhparent = lower(parent)::regclass AND c.relname ~ '_[0-9]{4}_[0-9]{2}$'"
+		+ "   AND to_date(right(c.relname, 7), 'YYYY_MM') + interval '1 month' <= before LOOP"
+		+ "   EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', lower(parent), part.relname);"
+		+ "   EXECUTE format('ALTER TABLE %I SET SCHEMA archive', part.relname);"
+		+ "   archived := archived + 1;"
+		+ "  END LOOP;"
+		+ "  RETURN archived;"
+		+ " END $$ LANGUAGE plpgsql;"
+		+ " ALTER TABLE Service_Request RENAME TO service_request_heap;"
+		+ " ALTER TABLE Closed_Request RENAME TO closed_request_heap;"
+		+ " CREATE TABLE Service_Request (LIKE service_request_heap INCLUDING DEFAULTS INCLUDING CONSTRAINTS)"
+		+ "  PARTITION BY RANGE (date);"
+		+ " CREATE TABLE Closed_Request (LIKE closed_request_heap INCLUDING DEFAULTS INCLUDING CONSTRAINTS)"
+		+ "  PARTITION BY RANGE (date);"
+		+ " SELECT shop_ensure_partitions('Service_Request', m, m)"
+		+ "  FROM (SELECT DISTINCT date_trunc('month', date)::date AS m FROM service_request_heap) months;"
+		+ " SELECT shop_ensure_partitions('Closed_Request', m, m)"
+		+ "  FROM (SELECT DISTINCT date_trunc('month', date)::date AS m FROM closed_request_heap) months;"
+		// the new tables have no triggers yet, so the counts are not added twice
+		+ " INSERT INTO Service_Request SELECT * FROM service_request_heap;"
+		+ " INSERT INTO Closed_Request SELECT * FROM closed_request_heap;"
+		+ " DROP TABLE closed_request_heap, service_request_heap CASCADE;"
+		+ " ALTER TABLE Service_Request ADD PRIMARY KEY (rid, date),"
+		+ "  ADD FOREIGN KEY (customer_id) REFERENCES Customer(id),"
+		+ "  ADD FOREIGN KEY (car_vin) REFERENCES Car(vin);"
+		+ " ALTER TABLE Closed_Request ADD PRIMARY KEY (wid, date),"
+		+ "  ADD FOREIGN KEY (mid) REFERENCES Mechanic(id);"
+		+ " CREATE TABLE Service_Request_Id (rid INTEGER NOT NULL PRIMARY KEY);"
+		+ " INSERT INTO Service_Request_Id SELECT rid FROM Service_Request;"
+		+ " CREATE TABLE Closed_Request_Id (wid INTEGER NOT NULL PRIMARY KEY);"
+		+ " INSERT INTO Closed_Request_Id SELECT wid FROM Closed_Request;"
+		+ " CREATE OR REPLACE FUNCTION service_request_id_claim() RETURNS trigger AS $$"
+		+ " BEGIN"
+		+ "  IF TG_OP IN ('UPDATE', 'DELETE') THEN"
+		+ "   DELETE FROM Service_Request_Id WHERE rid = OLD.rid;"
+		+ "  END IF;"
+		+ "  IF TG_OP IN ('INSERT', 'UPDATE') THEN"
+		+ "   INSERT INTO Service_Request_Id (rid) VALUES (NEW.rid);"
+		+ "  END IF;"
+		+ "  RETURN NULL;"
+		+ " END $$ LANGUAGE plpgsql;"
+		+ " CREATE OR REPLACE FUNCTION closed_request_id_claim() RETURNS trigger AS $$"
+		+ " BEGIN"
+		+ "  IF TG_OP IN ('UPDATE', 'DELETE') THEN"
+		+ "   DELETE FROM Closed_Request_Id WHERE wid = OLD.wid;"
+		+ "  END IF;"
+		+ "  IF TG_OP IN ('INSERT', 'UPDATE') THEN"
+		+ "   INSERT INTO Closed_Request_Id (wid) VALUES (NEW.wid);"
+		+ "  END IF;"
+		+ "  RETURN NULL;"
+		+ " END $$ LANGUAGE plpgsql;"
+		// a row skipped by ON CONFLICT fires no AFTER INSERT trigger, so a
+		// replayed request does not collide with its own id
+		+ " CREATE TRIGGER service_request_id AFTER INSERT OR DELETE OR UPDATE OF rid ON Service_Request"
+		+ "  FOR EACH ROW EXECUTE PROCEDURE service_request_id_claim();"
+		+ " CREATE TRIGGER closed_request_id AFTER INSERT OR DELETE OR UPDATE OF wid ON Closed_Request"
+		+ "  FOR EACH ROW EXECUTE PROCEDURE closed_request_id_claim();"
+		+ " CREATE INDEX service_request_car_vin_idx ON Service_Request (car_vin);"
+		+ " CREATE INDEX closed_request_rid_idx ON Closed_Request (rid);"
+		+ " CREATE TRIGGER service_request_car_count AFTER INSERT OR DELETE OR UPDATE OF car_vin ON Service_Request"
+		+ "  FOR EACH ROW EXECUTE PROCEDURE car_service_count_maintain();"
+		+ " CREATE TRIGGER service_request_bill_total AFTER UPDATE OF customer_id ON Service_Request"
+		+ "  FOR EACH ROW WHEN (OLD.customer_id IS DISTINCT FROM NEW.customer_id)"
+		+ "  EXECUTE PROCEDURE customer_bill_total_moved();"
+		+ " CREATE TRIGGER closed_request_bill_total AFTER INSERT OR DELETE OR UPDATE OF rid, bill ON Closed_Request"
+		+ "  FOR EACH ROW EXECUTE PROCEDURE customer_bill_total_closed();"
+		// AFTER rather than BEFORE: partitioned tables only have BEFORE row triggers from PostgreSQL 13 on
+		+ " CREATE OR REPLACE FUNCTION closed_request_rid_check() RETURNS trigger AS $$"
+		+ " BEGIN"
+		+ "  IF NOT EXISTS (SELECT 1 FROM Service_Request WHERE rid = NEW.rid AND date <= NEW.date) THEN"
+		+ "   RAISE EXCEPTION 'No service request % opened on or before %', NEW.rid, NEW.date"
+		+ "    USING ERRCODE = 'foreign_key_violation';"
+		+ "  END IF;"
+		+ "  RETURN NULL;"
+		+ " END $$ LANGUAGE plpgsql;"
+		+ " CREATE TRIGGER closed_request_rid AFTER INSERT OR UPDATE OF rid, date ON Closed_Request"
+		+ "  FOR EACH ROW EXECUTE PROCEDURE closed_request_rid_check()";
+
+	private static final List<Step> STEPS = new ArrayList<Step>();
+	static {
+		// case-insensitive prefix search on last name; text_pattern_ops lets
+		// the ~>=~ / ~<~ range in findCustomersByLName use the index
+		STEPS.add(new Step("customer_lname_prefix_idx",
+			"CREATE INDEX IF NOT EXISTS customer_lname_prefix_idx ON Customer (lower(lname) text_pattern_ops)"));
+		// cars of a customer, read by InsertServiceRequest and the 20-cars report
+		STEPS.add(new Step("owns_customer_vin_idx",
+			"CREATE INDEX IF NOT EXISTS owns_customer_vin_idx ON Owns (customer_id, car_vin)"));
+		// join of Service_Request to Car
+		STEPS.add(new Step("service_request_car_vin_idx",
+			"CREATE INDEX IF NOT EXISTS service_request_car_vin_idx ON Service_Request (car_vin)"));
+		// join of Closed_Request to Service_Request
+		STEPS.add(new Step("closed_request_rid_idx",
+			"CREATE INDEX IF NOT EXISTS closed_request_rid_idx ON Closed_Request (rid)"));
+
+		// number of service requests per car, kept up to date by a trigger so
+		// ListKCarsWithTheMostServices reads the top k from an index. The
+		// trigger is created before the backfill: its table lock holds off
+		// concurrent inserts until the backfill has committed.
+		STEPS.add(new Step("car_service_count",
+			"CREATE TABLE Car_Service_Count ("
+			+ " car_vin VARCHAR(16) NOT NULL PRIMARY KEY,"
+			+ " num_requests INTEGER NOT NULL);"
+			+ " CREATE INDEX car_service_count_num_idx ON Car_Service_Count (num_requests DESC);"
+			+ " CREATE OR REPLACE FUNCTION car_service_count_maintain() RETURNS trigger AS $$"
+			+ " BEGIN"
+			+ "  IF TG_OP IN ('UPDATE', 'DELETE') THEN"
+			+ "   UPDATE Car_Service_Count SET num_requests = num_requests - 1 WHERE car_vin = OLD.car_vin;"
+			+ "  END IF;"
+			+ "  IF TG_OP IN ('INSERT', 'UPDATE') THEN"
+			+ "   INSERT INTO Car_Service_Count (car_vin, num_requests) VALUES (NEW.car_vin, 1)"
+			+ "   ON CONFLICT (car_vin) DO UPDATE SET num_requests = Car_Service_Count.num_requests + 1;"
+			+ "  END IF;"
+			+ "  RETURN NULL;"
+			+ " END $$ LANGUAGE plpgsql;"
+			+ " CREATE TRIGGER service_request_car_count AFTER INSERT OR DELETE OR UPDATE OF car_vin ON Service_Request"
+			+ "  FOR EACH ROW EXECUTE PROCEDURE car_service_count_maintain();"
+			+ " INSERT INTO Car_Service_Count (car_vin, num_requests)"
+			+ "  SELECT car_vin, COUNT(rid) FROM Service_Request GROUP BY car_vin"));
+
+		// total closed bill per customer, kept up to date by triggers on
+		// Closed_Request and on a request changing customer, so
+		// ListCustomersInDescendingOrderOfTheirTotalBill reads an index
+		STEPS.add(new Step("customer_bill_total",
+			"CREATE TABLE Customer_Bill_Total ("
+			+ " customer_id INTEGER NOT NULL PRIMARY KEY,"
+			+ " total_bill BIGINT NOT NULL);"
+			+ " CREATE INDEX customer_bill_total_bill_idx ON Customer_Bill_Total (total_bill DESC);"
+			+ " CREATE OR REPLACE FUNCTION customer_bill_total_add(cid INTEGER, amount BIGINT) RETURNS void AS $$"
+			+ "  INSERT INTO Customer_Bill_Total (customer_id, total_bill) VALUES (cid, amount)"
+			+ "  ON CONFLICT (customer_id) DO UPDATE SET total_bill = Customer_Bill_Total.total_bill + EXCLUDED.total_bill;"
+			+ " $$ LANGUAGE sql;"
+			+ " CREATE OR REPLACE FUNCTION customer_bill_total_closed() RETURNS trigger AS $$"
+			+ " BEGIN"
+			+ "  IF TG_OP IN ('UPDATE', 'DELETE') THEN"
+			+ "   PERFORM customer_bill_total_add(SR.customer_id, -OLD.bill) FROM Service_Request SR WHERE SR.rid = OLD.rid;"
+			+ "  END IF;"
+			+ "  IF TG_OP IN ('INSERT', 'UPDATE') THEN"
+			+ "   PERFORM customer_bill_total_add(SR.customer_id, NEW.bill) FROM Service_Request SR WHERE SR.rid = NEW.rid;"
+			+ "  END IF;"
+			+ "  RETURN NULL;"
+			+ " END $$ LANGUAGE plpgsql;"
+			+ " CREATE TRIGGER closed_request_bill_total AFTER INSERT OR DELETE OR UPDATE OF rid, bill ON Closed_Request"
+			+ "  FOR EACH ROW EXECUTE PROCEDURE customer_bill_total_closed();"
+			+ " CREATE OR REPLACE FUNCTION customer_bill_total_moved() RETURNS trigger AS $$"
+			+ " DECLARE moved BIGINT;"
+			+ " BEGIN"
+			+ "  SELECT SUM(bill) INTO moved FROM Closed_Request WHERE rid = NEW.rid;"
+			+ "  IF moved IS NOT NULL THEN"
+			+ "   PERFORM customer_bill_total_add(OLD.customer_id, -moved);"
+			+ "   PERFORM customer_bill_total_add(NEW.customer_id, moved);"
+			+ "  END IF;"
+			+ "  RETURN NULL;"
+			+ " END $$ LANGUAGE plpgsql;"
+			+ " CREATE TRIGGER service_request_bill_total AFTER UPDATE OF customer_id ON Service_Request"
+			+ "  FOR EACH ROW WHEN (OLD.customer_id IS DISTINCT FROM NEW.customer_id)"
+			+ "  EXECUTE PROCEDURE customer_bill_total_moved();"
+			+ " INSERT INTO Customer_Bill_Total (customer_id, total_bill)"
+			+ "  SELECT SR.customer_id, SUM(CR.bill) FROM Closed_Request CR, Service_Request SR"
+			+ "  WHERE CR.rid = SR.rid GROUP BY SR.customer_id"));
+
+		// cars of a customer in byte order of the VIN, so a VIN prefix is an
+		// exact index range and pages of a large fleet are read by keyset
+		STEPS.add(new Step("owns_customer_vin_c_idx",
+			"CREATE INDEX IF NOT EXISTS owns_customer_vin_c_idx ON Owns (customer_id, car_vin COLLATE \"C\");"
+			+ " DROP INDEX IF EXISTS owns_customer_vin_idx"));
+
+		// opt in with -Dmechanicshop.partition=true; cannot be undone by turning it off
+		if (Boolean.getBoolean("mechanicshop.partition")) {
+			STEPS.add(new Step("partition_by_date", PARTITION_BY_DATE));
+		}
+	}
+
+	private final ConnectionPool _pool;
+
+	public SchemaMigration(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Applies every step not yet recorded in Schema_Migration.
+	 *
+	 * @return number of steps applied by this call
+	 * @throws java.sql.SQLException when a step fails; earlier steps stay applied
+	 */
+	public int migrate() throws SQLException {
+		ConnectionPool.ShopConnection conn = _pool.borrow();
+		try {
+			Connection connection = conn.connection();
+			Statement stmt = connection.createStatement();
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS Schema_Migration ("
+				+ "name VARCHAR(64) NOT NULL PRIMARY KEY, applied_at TIMESTAMP NOT NULL DEFAULT now())");
+			stmt.close();
+
+			int applied = 0;
+			connection.setAutoCommit(false);
+			for (Step step : STEPS) {
+				PreparedStatement lock = conn.statements().prepare("migrationLock", "SELECT pg_advisory_xact_lock(?)");
+				lock.setLong(1, LOCK_KEY);
+				lock.executeQuery().close();
+
+				PreparedStatement check = conn.statements().prepare("migrationApplied",
+					"SELECT 1 FROM Schema_Migration WHERE name = ?");
+				check.setString(1, step.name);
+				ResultSet rs = check.executeQuery();
+				boolean done = rs.next();
+				rs.close();
+				if (!done) {
+					System.out.println("Applying schema change " + step.name);
+					stmt = connection.createStatement();
+					stmt.execute(step.sql);
+					stmt.close();
+					PreparedStatement record = conn.statements().prepare("migrationRecord",
+						"INSERT INTO Schema_Migration (name) VALUES (?)");
+					record.setString(1, step.name);
+					record.executeUpdate();
+					++applied;
+				}
+				connection.commit();
+			}//end for
+			connection.setAutoCommit(true);
+			return applied;
+		}catch (SQLException e) {
+			conn.failed(e);
+			throw e;
+		}finally {
+			// release rolls back a failed step
+			_pool.release(conn);
+		}
+	}//end migrate
+}
@@ -0,0 +1,578 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Non-interactive access to the menu operations for kiosks and dealer
+ * integrations. Each operation is a typed request that checks its
+ * arguments the way the menu prompts do and runs on a MechanicShop.
+ *
+ * Over the wire (ShopServer in api mode) a request is one line of
+ * tab-separated fields, the operation name first:
+ *
+ *   AddCustomer fname lname phone address
+ *   AddMechanic fname lname experience
+ *   AddCar customerId vin make model year
+ *   AddFleet customerId vin make model year [vin make model year ...]
+ *   InsertServiceRequest customerId vin date odometer [complain]
+ *   CloseServiceRequest rid mid date bill [comment]
+ *   FindCustomers lnamePrefix [limit]
+ *   SearchCustomers text [limit]
+ *   FindCars customerId [vinPrefix [makeOrModel [afterVin [limit]]]]
+ *   TopCars k [offset]
+ *   ListCustomersWithBillLessThan100
+ *   ListCustomersWithMoreThan20Cars
+ *   ListCarsBefore1995With50000Milles
+ *   ListKCarsWithTheMostServices k
+ *   ListCustomersInDescendingOrderOfTheirTotalBill
+ *   Quit
+ *
+ * Every request is answered, in order, by zero or more "ROW" lines of
+ * tab-separated values followed by "OK result" (the new id, or the number
+ * of rows) or by "ERR message". Clients may pipeline: responses are only
+ * flushed once no further request is waiting in the input.
+ *
+ */
+public class ShopApi {
+	/**
+	 * Receives the rows of a request as strings.
+	 */
+	public abstract static class Rows extends ReportRows {
+	}
+
+	/**
+	 * A parsed and checked operation.
+	 */
+	public abstract static class Request {
+		/**
+		 * @param esql shop to run against
+		 * @param rows receives the rows of reports and lookups, unused by updates
+		 * @return the result sent after OK: the new id or the number of rows
+		 * @throws java.sql.SQLException when the database rejects the operation
+		 */
+		public abstract String run(MechanicShop esql, Rows rows) throws SQLException;
+
+		/**
+		 * @return the operation name, as used in the metrics
+		 */
+		public String operation() {
+			return getClass().getSimpleName();
+		}
+	}
+
+	public static class AddCustomer extends Request {
+		public final String fname;
+		public final String lname;
+		public final String phone;
+		public final String address;
+
+		/**
+		 * @param phone ###-###-#### or (###)###-####
+		 */
+		public AddCustomer(String fname, String lname, String phone, String address) {
+			this.fname = name(fname);
+			this.lname = name(lname);
+			String p = phone == null ? "" : phone.trim();
+			if (p.matches("^\\d{3}-\\d{3}-\\d{4}$")) {
+				// stored as (###)###-####, like the menu does
+				p = "(" + p.substring(0, 3) + ")" + p.substring(4);
+			}
+			else if (!p.matches("^\\(\\d{3}\\)\\d{3}-\\d{4}$")) {
+				throw new IllegalArgumentException("Invalid phone #! Format is \"###-###-####\"");
+			}
+			this.phone = p;
+			this.address = text("address", address, 256);
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			return Integer.toString(esql.addCustomer(fname, lname, phone, address));
+		}
+	}
+
+	public static class AddMechanic extends Request {
+		public final String fname;
+		public final String lname;
+		public final int experience;
+
+		public AddMechanic(String fname, String lname, int experience) {
+			if (experience < 0 || experience >= 100) {
+				throw new IllegalArgumentException("Experience must be between 0 and 99 years");
+			}
+			this.fname = name(fname);
+			this.lname = name(lname);
+			this.experience = experience;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			return Integer.toString(esql.addMechanic(fname, lname, experience));
+		}
+	}
+
+	public static class AddCar extends Request {
+		public final int customerId;
+		public final String vin;
+		public final String make;
+		public final String model;
+		public final int year;
+
+		public AddCar(int customerId, String vin, String make, String model, int year) {
+			if (year < 1970) {
+				throw new IllegalArgumentException("Year must be after 1969");
+			}
+			this.customerId = customerId;
+			this.vin = text("vin", vin, 16);
+			this.make = text("make", make, 32);
+			this.model = text("model", model, 32);
+			this.year = year;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			esql.addCar(customerId, vin, make, model, year);
+			return vin;
+		}
+	}
+
+	/**
+	 * Several cars of one customer, added by a single statement.
+	 */
+	public static class AddFleet extends Request {
+		public final int customerId;
+		public final List<Car> cars;
+
+		public AddFleet(int customerId, List<Car> cars) {
+			if (cars.isEmpty()) {
+				throw new IllegalArgumentException("A fleet needs at least one car");
+			}
+			List<Car> checked = new ArrayList<Car>();
+			for (Car car : cars) {
+				AddCar c = new AddCar(customerId, car.vin, car.make, car.model, car.year);
+				checked.add(new Car(c.vin, c.make, c.model, c.year));
+			}
+			this.customerId = customerId;
+			this.cars = Collections.unmodifiableList(checked);
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			return Integer.toString(esql.addCars(customerId, cars));
+		}
+	}
+
+	public static class InsertServiceRequest extends Request {
+		public final int customerId;
+		public final String vin;
+		public final String date;
+		public final int odometer;
+		public final String complain;
+
+		/**
+		 * @param date mm/dd/yyyy
+		 * @param complain may be null
+		 */
+		public InsertServiceRequest(int customerId, String vin, String date, int odometer, String complain) {
+			if (odometer <= 0) {
+				throw new IllegalArgumentException("Odometer must be positive");
+			}
+			this.customerId = customerId;
+			this.vin = text("vin", vin, 16);
+			this.date = date(date);
+			this.odometer = odometer;
+			this.complain = complain;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			return Integer.toString(esql.insertServiceRequest(customerId, vin, date, odometer, complain));
+		}
+	}
+
+	/**
+	 * Closes a request. Unlike the menu, which asks again until the mechanic
+	 * and the request exist, an unknown id is reported by the foreign keys.
+	 */
+	public static class CloseServiceRequest extends Request {
+		public final int rid;
+		public final int mid;
+		public final String date;
+		public final int bill;
+		public final String comment;
+
+		/**
+		 * @param date mm/dd/yyyy
+		 * @param comment may be null
+		 */
+		public CloseServiceRequest(int rid, int mid, String date, int bill, String comment) {
+			if (bill < 0) {
+				throw new IllegalArgumentException("Invalid bill!");
+			}
+			this.rid = rid;
+			this.mid = mid;
+			this.date = date(date);
+			this.bill = bill;
+			this.comment = comment;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			return Integer.toString(esql.closeServiceRequest(rid, mid, date, comment, bill));
+		}
+	}
+
+	/**
+	 * Customers whose last name starts with a prefix, as one row per
+	 * customer: id, fname, lname, phone, address.
+	 */
+	public static class FindCustomers extends Request {
+		public final String prefix;
+		public final int limit;
+
+		public FindCustomers(String prefix, int limit) {
+			if (limit < 1) {
+				throw new IllegalArgumentException("Limit must be positive");
+			}
+			this.prefix = text("last name", prefix, 32);
+			this.limit = limit;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			List<Customer> found = esql.findCustomersByLName(prefix, limit);
+			for (Customer c : found) {
+				rows.values(Integer.toString(c.id), c.fname, c.lname, c.phone, c.address);
+			}
+			return Integer.toString(found.size());
+		}
+	}
+
+	/**
+	 * Customers found by last name, first and last name, or part of the
+	 * phone, tolerating typos when mechanicshop.search is on, as one row per
+	 * customer: id, fname, lname, phone, address.
+	 */
+	public static class SearchCustomers extends Request {
+		public final String text;
+		public final int limit;
+
+		public SearchCustomers(String text, int limit) {
+			if (limit < 1) {
+				throw new IllegalArgumentException("Limit must be positive");
+			}
+			this.text = text("search", text, 64);
+			this.limit = limit;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			List<Customer> found = esql.searchCustomers(text, limit);
+			for (Customer c : found) {
+				rows.values(Integer.toString(c.id), c.fname, c.lname, c.phone, c.address);
+			}
+			return Integer.toString(found.size());
+		}
+	}
+
+	/**
+	 * One page of a customer's cars in VIN order, as one row per car: vin,
+	 * make, model, year. Empty filters are ignored; the next page starts
+	 * after the last VIN of this one.
+	 */
+	public static class FindCars extends Request {
+		public final int customerId;
+		public final String vinPrefix;
+		public final String makeOrModel;
+		public final String afterVin;
+		public final int limit;
+
+		public FindCars(int customerId, String vinPrefix, String makeOrModel, String afterVin, int limit) {
+			if (limit < 1) {
+				throw new IllegalArgumentException("Limit must be positive");
+			}
+			this.customerId = customerId;
+			this.vinPrefix = optional("vin prefix", vinPrefix, 16);
+			this.makeOrModel = optional("make or model", makeOrModel, 32);
+			this.afterVin = optional("vin", afterVin, 16);
+			this.limit = limit;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			List<Car> found = esql.findCarsOwned(customerId, vinPrefix, makeOrModel, afterVin, limit);
+			for (Car c : found) {
+				rows.values(c.vin, c.make, c.model, Integer.toString(c.year));
+			}
+			return Integer.toString(found.size());
+		}
+	}
+
+	/**
+	 * k cars from the ranking by number of service requests, after skipping
+	 * offset cars, as one row per car: rank, vin, make, model, numRequests.
+	 */
+	public static class TopCars extends Request {
+		public final int k;
+		public final int offset;
+
+		public TopCars(int k, int offset) {
+			if (k < 1) {
+				throw new IllegalArgumentException("k must be positive");
+			}
+			if (offset < 0) {
+				throw new IllegalArgumentException("Offset must not be negative");
+			}
+			this.k = k;
+			this.offset = offset;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			List<RankedCar> found = esql.topCarsByServices(offset, k);
+			for (RankedCar c : found) {
+				rows.values(Integer.toString(c.rank), c.car.vin, c.car.make, c.car.model, Integer.toString(c.numRequests));
+			}
+			return Integer.toString(found.size());
+		}
+	}
+
+	/**
+	 * One of the five reports; k is only used by ListKCarsWithTheMostServices.
+	 */
+	public static class Report extends Request {
+		private static final List<String> NAMES = Arrays.asList("ListCustomersWithBillLessThan100",
+			"ListCustomersWithMoreThan20Cars", "ListCarsBefore1995With50000Milles", "ListKCarsWithTheMostServices",
+			"ListCustomersInDescendingOrderOfTheirTotalBill");
+
+		public final String name;
+		public final int k;
+
+		public Report(String name, int k) {
+			String known = null;
+			for (String n : NAMES) {
+				if (n.equalsIgnoreCase(name)) known = n;
+			}
+			if (known == null) {
+				throw new IllegalArgumentException("Unknown operation " + name);
+			}
+			if (known.equals("ListKCarsWithTheMostServices") && k < 1) {
+				throw new IllegalArgumentException("k must be positive");
+			}
+			this.name = known;
+			this.k = k;
+		}
+
+		public String operation() {
+			return name;
+		}
+
+		public String run(MechanicShop esql, Rows rows) throws SQLException {
+			int n;
+			if (name.equals("ListCustomersWithBillLessThan100")) {
+				n = esql.listCustomersWithBillLessThan100(rows);
+			}
+			else if (name.equals("ListCustomersWithMoreThan20Cars")) {
+				n = esql.listCustomersWithMoreThan20Cars(rows);
+			}
+			else if (name.equals("ListCarsBefore1995With50000Milles")) {
+				n = esql.listCarsBefore1995With50000Milles(rows);
+			}
+			else if (name.equals("ListKCarsWithTheMostServices")) {
+				n = esql.listKCarsWithTheMostServices(k, rows);
+			}
+			else {
+				n = esql.listCustomersInDescendingOrderOfTheirTotalBill(rows);
+			}
+			return Integer.toString(n);
+		}
+	}
+
+	/**
+	 * Parses one request line.
+	 *
+	 * @return the request, or null for Quit
+	 * @throws IllegalArgumentException when the operation is unknown or an argument is invalid
+	 */
+	public static Request parse(String line) {
+		String[] f = line.split("\t", -1);
+		String op = f[0].trim();
+		if (op.equalsIgnoreCase("Quit")) {
+			return null;
+		}
+		if (op.equalsIgnoreCase("AddCustomer")) {
+			arguments(f, 4, 4);
+			return new AddCustomer(f[1], f[2], f[3], f[4]);
+		}
+		if (op.equalsIgnoreCase("AddMechanic")) {
+			arguments(f, 3, 3);
+			return new AddMechanic(f[1], f[2], integer("experience", f[3]));
+		}
+		if (op.equalsIgnoreCase("AddCar")) {
+			arguments(f, 5, 5);
+			return new AddCar(integer("customer id", f[1]), f[2], f[3], f[4], integer("year", f[5]));
+		}
+		if (op.equalsIgnoreCase("AddFleet")) {
+			if (f.length < 6 || (f.length - 2) % 4 != 0) {
+				throw new IllegalArgumentException("AddFleet takes a customer id and 4 fields per car");
+			}
+			List<Car> cars = new ArrayList<Car>();
+			for (int i = 2; i < f.length; i += 4) {
+				cars.add(new Car(f[i], f[i + 1], f[i + 2], integer("year", f[i + 3])));
+			}
+			return new AddFleet(integer("customer id", f[1]), cars);
+		}
+		if (op.equalsIgnoreCase("InsertServiceRequest")) {
+			arguments(f, 4, 5);
+			return new InsertServiceRequest(integer("customer id", f[1]), f[2], f[3], integer("odometer", f[4]),
+				f.length > 5 ? f[5] : null);
+		}
+		if (op.equalsIgnoreCase("CloseServiceRequest")) {
+			arguments(f, 4, 5);
+			return new CloseServiceRequest(integer("rid", f[1]), integer("mid", f[2]), f[3], integer("bill", f[4]),
+				f.length > 5 ? f[5] : null);
+		}
+		if (op.equalsIgnoreCase("FindCustomers")) {
+			arguments(f, 1, 2);
+			return new FindCustomers(f[1], f.length > 2 ? integer("limit", f[2]) : MechanicShop.CUSTOMER_LOOKUP_LIMIT);
+		}
+		if (op.equalsIgnoreCase("SearchCustomers")) {
+			arguments(f, 1, 2);
+			return new SearchCustomers(f[1], f.length > 2 ? integer("limit", f[2]) : MechanicShop.CUSTOMER_LOOKUP_LIMIT);
+		}
+		if (op.equalsIgnoreCase("FindCars")) {
+			arguments(f, 1, 5);
+			return new FindCars(integer("customer id", f[1]), f.length > 2 ? f[2] : null, f.length > 3 ? f[3] : null,
+				f.length > 4 ? f[4] : null, f.length > 5 ? integer("limit", f[5]) : MechanicShop.CAR_PAGE_SIZE);
+		}
+		if (op.equalsIgnoreCase("TopCars")) {
+			arguments(f, 1, 2);
+			return new TopCars(integer("k", f[1]), f.length > 2 ? integer("offset", f[2]) : 0);
+		}
+		if (op.equalsIgnoreCase("ListKCarsWithTheMostServices")) {
+			arguments(f, 1, 1);
+			return new Report(op, integer("k", f[1]));
+		}
+		if (op.toLowerCase().startsWith("list")) {
+			arguments(f, 0, 0);
+			return new Report(op, 0);
+		}
+		throw new IllegalArgumentException("Unknown operation " + op);
+	}//end parse
+
+	/**
+	 * Answers the requests read from in until Quit or end of input.
+	 *
+	 * @param esql shop the requests run against
+	 * @param in request lines
+	 * @param out response lines; flushed whenever no request is pending
+	 * @throws java.io.IOException when the connection fails
+	 */
+	public static void serve(MechanicShop esql, BufferedReader in, PrintStream out) throws IOException {
+		Writer writer = new Writer(out);
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				Request request = parse(line);
+				if (request == null) {
+					break;
+				}
+				Metrics.begin(request.operation());
+				try {
+					out.print("OK\t" + request.run(esql, writer) + "\n");
+				}finally {
+					Metrics.end();
+				}
+			}catch (SQLException e) {
+				out.print("ERR\t" + clean(e.getMessage()) + "\n");
+			}catch (IllegalArgumentException e) {
+				out.print("ERR\t" + clean(e.getMessage()) + "\n");
+			}catch (RuntimeException e) {
+				// a bug answering one request must not end the session
+				out.print("ERR\t" + clean(e.toString()) + "\n");
+			}
+			// pipelined requests are answered in one write
+			if (!in.ready()) {
+				out.flush();
+			}
+		}//end while
+		out.flush();
+	}//end serve
+
+	/**
+	 * Sends report rows as ROW lines.
+	 */
+	private static class Writer extends Rows {
+		private final PrintStream _out;
+		private final StringBuilder _line = new StringBuilder();
+
+		Writer(PrintStream out) {
+			this._out = out;
+		}
+
+		public void values(String... values) {
+			_line.setLength(0);
+			_line.append("ROW");
+			for (String v : values) {
+				_line.append('\t').append(v == null ? "" : clean(v.trim()));
+			}
+			_line.append('\n');
+			_out.print(_line);
+		}
+	}
+
+	/**
+	 * Keeps a value on one line and inside its field.
+	 */
+	private static String clean(String s) {
+		return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private static void arguments(String[] f, int min, int max) {
+		int n = f.length - 1;
+		if (n < min || n > max) {
+			throw new IllegalArgumentException(f[0].trim() + " takes " + (min == max ? "" + min : min + " to " + max)
+				+ " arguments, got " + n);
+		}
+	}
+
+	private static int integer(String what, String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		}catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + what + ": " + value);
+		}
+	}
+
+	/**
+	 * Same rule as the menu: 1 to 32 characters, no spaces.
+	 */
+	private static String name(String value) {
+		String v = value == null ? "" : value.trim();
+		if (v.isEmpty() || v.contains(" ") || v.length() > 32) {
+			throw new IllegalArgumentException("Invalid name! Names should be at most 32 characters and contain no spaces (use '-' if needed).");
+		}
+		return v;
+	}
+
+	private static String text(String what, String value, int maxSize) {
+		String v = value == null ? "" : value.trim();
+		if (v.length() > maxSize) {
+			throw new IllegalArgumentException("Invalid " + what + "! Max size is " + maxSize + " characters.");
+		}
+		return v;
+	}
+
+	/**
+	 * Like text, but an empty value is null.
+	 */
+	private static String optional(String what, String value, int maxSize) {
+		String v = text(what, value, maxSize);
+		return v.isEmpty() ? null : v;
+	}
+
+	private static String date(String value) {
+		String v = value == null ? "" : value.trim();
+		if (!v.matches("^\\d{1,2}/\\d{1,2}/\\d{4}$")) {
+			throw new IllegalArgumentException("Invalid date! Accepted format is mm/dd/yyyy");
+		}
+		return v;
+	}
+}
@@ -0,0 +1,133 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the shop menu to many front-desk terminals from one process.
+ * Every TCP connection (telnet, nc, ...) gets its own session thread with
+ * its own Terminal; the sessions share the MechanicShop and with it the
+ * connection pool, so a session only holds a database connection while
+ * one of its statements runs. In api mode the sessions speak the ShopApi
+ * request/response protocol instead of the menu.
+ *
+ * Sessions are not authenticated, so the server only listens on the
+ * loopback interface unless mechanicshop.server.bind names another
+ * address to listen on (0.0.0.0 for every interface).
+ *
+ * Sessions run on virtual threads when the JVM has them (Java 21 on) and
+ * on ordinary daemon threads otherwise.
+ *
+ */
+public class ShopServer {
+	private final MechanicShop _esql;
+	private final int _port;
+	private final boolean _api;
+	private final AtomicInteger _sessions = new AtomicInteger();
+	private final AtomicInteger _open = new AtomicInteger();
+	//Thread.startVirtualThread, or null when the JVM has no virtual threads
+	private final Method _startVirtual;
+
+	/**
+	 * @param esql shop shared by every session
+	 * @param port TCP port to listen on
+	 * @param api true to serve ShopApi requests, false for the interactive menu
+	 */
+	public ShopServer(MechanicShop esql, int port, boolean api) {
+		this._esql = esql;
+		this._port = port;
+		this._api = api;
+		Method start = null;
+		try {
+			start = Thread.class.getMethod("startVirtualThread", Runnable.class);
+		}catch (NoSuchMethodException e) {
+			// Java before 21: platform threads
+		}
+		this._startVirtual = start;
+	}
+
+	/**
+	 * Accepts terminals until the process is stopped.
+	 *
+	 * @throws java.io.IOException when the port cannot be opened
+	 */
+	public void serve() throws IOException {
+		String bind = System.getProperty("mechanicshop.server.bind");
+		ServerSocket server = new ServerSocket(_port, 50,
+			bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind));
+		try {
+			System.out.println("Serving the shop " + (_api ? "api" : "menu") + " on " + server.getLocalSocketAddress() + " using "
+				+ (_startVirtual != null ? "virtual" : "platform") + " threads");
+			while (true) {
+				final Socket socket = server.accept();
+				final int id = _sessions.incrementAndGet();
+				start(new Runnable() {
+					public void run() {
+						session(id, socket);
+					}
+				}, "session-" + id);
+			}
+		}finally {
+			server.close();
+		}
+	}//end serve
+
+	private void start(Runnable session, String name) {
+		if (_startVirtual != null) {
+			try {
+				_startVirtual.invoke(null, session);
+				return;
+			}catch (Exception e) {
+				// fall back to a platform thread
+			}
+		}
+		Thread thread = new Thread(session, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Runs the menu, or answers api requests, for one connected terminal
+	 * until it exits or disconnects.
+	 */
+	private void session(int id, Socket socket) {
+		String peer = String.valueOf(socket.getRemoteSocketAddress());
+		System.out.println("Session " + id + " opened from " + peer + " (" + _open.incrementAndGet() + " open)");
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			if (_api) {
+				// flushed by ShopApi once the pipelined requests are answered
+				socket.setTcpNoDelay(true);
+				ShopApi.serve(_esql, in, new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16),
+					false, "UTF-8"));
+				return;
+			}
+			PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+			Terminal.attach(new Terminal(in, out, out));
+			try {
+				out.println("Connected to MechanicShop, session " + id);
+				MechanicShop.menu(_esql);
+				out.println("Bye !");
+				out.flush();
+			}finally {
+				Terminal.attach(null);
+			}
+		}catch (IOException e) {
+			System.err.println("Session " + id + ": " + e.getMessage());
+		}finally {
+			try {
+				socket.close();
+			}catch (IOException e) {
+				// ignored.
+			}
+			System.out.println("Session " + id + " closed (" + _open.decrementAndGet() + " open)");
+		}
+	}//end session
+}
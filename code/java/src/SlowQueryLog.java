@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Logs statements slower than a threshold, with their bind values, time
+ * and row count, to a local file rotated by size. Optionally the plan of
+ * the statement is captured too: EXPLAIN (ANALYZE, BUFFERS) for queries,
+ * which runs them once more, and a plain EXPLAIN for writes and for
+ * queries with side effects (nextval, setval, locks, ...), which must not
+ * be repeated.
+ *
+ * The statement thread only pays a comparison, or an offer to a bounded
+ * queue when the statement was slow; formatting, EXPLAIN and file writes
+ * happen on a background thread. Entries that do not fit in the queue are
+ * dropped and counted.
+ *
+ */
+public class SlowQueryLog {
+	private static class Entry {
+		final long time;
+		final String key;
+		final String sql;
+		final Object[] params;
+		final long nanos;
+		final long rows;
+
+		Entry(String key, String sql, Object[] params, long nanos, long rows) {
+			this.time = System.currentTimeMillis();
+			this.key = key;
+			this.sql = sql;
+			this.params = params;
+			this.nanos = nanos;
+			this.rows = rows;
+		}
+	}
+
+	//calls and clauses that make a SELECT change something when it runs again
+	private static final Pattern SIDE_EFFECTS = Pattern.compile(
+		"\\b(nextval|setval|pg_notify|set_config|pg_advisory_\\w+|lo_\\w+|pg_terminate_backend|pg_cancel_backend"
+		+ "|dblink\\w*)\\s*\\(|\\bfor\\s+(update|no\\s+key\\s+update|share|key\\s+share)\\b|\\binto\\b");
+
+	//enqueued when the log is closed so the writer stops after the pending entries
+	private static final Entry STOP = new Entry(null, null, null, 0, 0);
+
+	private final ConnectionPool _pool;
+	private final long _thresholdNanos;
+	private final boolean _explain;
+	private final File _file;
+	private final long _maxBytes;
+	private final int _keep;
+	private final BlockingQueue<Entry> _queue;
+	private final AtomicLong _dropped = new AtomicLong();
+	private final Thread _writer;
+	private OutputStream _out;
+	private long _written;
+
+	/**
+	 * @param pool pool the EXPLAIN statements borrow their connection from
+	 * @param thresholdMs statements taking longer are logged
+	 * @param explain true to capture the plan of every logged statement
+	 * @param file log file; rotated to file.1 ... file.keep
+	 * @param maxBytes size at which the file is rotated
+	 * @param keep number of rotated files kept
+	 */
+	public SlowQueryLog(ConnectionPool pool, long thresholdMs, boolean explain, File file, long maxBytes, int keep) {
+		this._pool = pool;
+		this._thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+		this._explain = explain;
+		this._file = file;
+		this._maxBytes = maxBytes;
+		this._keep = keep;
+		this._queue = new ArrayBlockingQueue<Entry>(Integer.getInteger("mechanicshop.slowQuery.queue", 1000));
+		this._writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "slow-query-log");
+		this._writer.setDaemon(true);
+		this._writer.start();
+	}
+
+	/**
+	 * Logs the statement if it took longer than the threshold.
+	 *
+	 * @param key statement cache key
+	 * @param sql the statement
+	 * @param params values bound to the statement; not copied, so they must not change afterwards
+	 * @param start System.nanoTime() when the statement was requested
+	 * @param rows rows returned or changed, or a negative number when it failed
+	 */
+	public void check(String key, String sql, Object[] params, long start, long rows) {
+		long nanos = System.nanoTime() - start;
+		if (nanos < _thresholdNanos) {
+			return;
+		}
+		if (!_queue.offer(new Entry(key, sql, params, nanos, rows))) {
+			_dropped.incrementAndGet();
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				Entry entry = _queue.take();
+				if (entry == STOP) {
+					break;
+				}
+				try {
+					append(format(entry));
+				}catch (IOException e) {
+					System.err.println("Slow query log " + _file + ": " + e.getMessage());
+				}
+			}
+		}catch (InterruptedException e) {
+			// closed without draining
+		}finally {
+			try {
+				if (_out != null) {
+					_out.close();
+				}
+			}catch (IOException e) {
+				// ignored.
+			}
+		}
+	}//end write
+
+	private String format(Entry entry) {
+		StringBuilder text = new StringBuilder();
+		text.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.ROOT).format(new Date(entry.time)))
+			.append(' ').append(entry.key)
+			.append(String.format(Locale.ROOT, " %.1f ms ", entry.nanos / 1e6))
+			.append(entry.rows < 0 ? "failed" : entry.rows + " rows").append('\n');
+		text.append("  ").append(entry.sql.trim().replace("\n", "\n  ")).append('\n');
+		if (entry.params != null && entry.params.length > 0) {
+			text.append("  params:");
+			for (Object p : entry.params) {
+				text.append(' ').append(p instanceof String ? "'" + ((String) p).replace("'", "''") + "'" : String.valueOf(p));
+			}
+			text.append('\n');
+		}
+		long dropped = _dropped.getAndSet(0);
+		if (dropped > 0) {
+			text.append("  (").append(dropped).append(" slow statements not logged, queue full)\n");
+		}
+		if (_explain) {
+			text.append(explain(entry));
+		}
+		return text.toString();
+	}//end format
+
+	/**
+	 * @return the plan of the statement, indented, or the reason there is none
+	 */
+	private String explain(Entry entry) {
+		String sql = entry.sql.trim().toLowerCase(Locale.ROOT);
+		boolean query = sql.startsWith("select") && !SIDE_EFFECTS.matcher(sql).find();
+		StringBuilder text = new StringBuilder(query ? "  plan (EXPLAIN ANALYZE, rerun now):\n" : "  plan (EXPLAIN):\n");
+		ConnectionPool.ShopConnection conn;
+		try {
+			conn = _pool.borrow();
+		}catch (SQLException e) {
+			return text.append("    unavailable: ").append(e.getMessage()).append('\n').toString();
+		}
+		try {
+			// not cached: the same plan is rarely explained twice on one connection
+			PreparedStatement stmt = conn.connection().prepareStatement(
+				(query ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + entry.sql);
+			try {
+				Object[] params = entry.params == null ? new Object[0] : entry.params;
+				for (int i = 0; i < params.length; ++i) {
+					if (params[i] == null)
+						stmt.setNull(i + 1, Types.NULL);
+					else
+						stmt.setObject(i + 1, params[i]);
+				}
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					text.append("    ").append(rs.getString(1)).append('\n');
+				}
+				rs.close();
+			}finally {
+				stmt.close();
+			}
+		}catch (SQLException e) {
+			conn.failed(e);
+			text.append("    unavailable: ").append(e.getMessage()).append('\n');
+		}finally {
+			_pool.release(conn);
+		}
+		return text.toString();
+	}//end explain
+
+	private void append(String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		if (_out != null && _written + bytes.length > _maxBytes) {
+			_out.close();
+			_out = null;
+			rotate();
+		}
+		if (_out == null) {
+			_out = new FileOutputStream(_file, true);
+			_written = _file.length();
+		}
+		_out.write(bytes);
+		_out.flush();
+		_written += bytes.length;
+	}
+
+	/**
+	 * Renames file.(keep-1) to file.keep, ..., file to file.1.
+	 */
+	private void rotate() {
+		for (int i = _keep - 1; i >= 0; --i) {
+			File from = i == 0 ? _file : new File(_file.getPath() + "." + i);
+			File to = new File(_file.getPath() + "." + (i + 1));
+			if (from.exists()) {
+				to.delete();
+				from.renameTo(to);
+			}
+		}
+		if (_keep == 0) {
+			_file.delete();
+		}
+	}
+
+	/**
+	 * Writes the pending entries, waiting at most waitMs for them.
+	 */
+	public void close(long waitMs) {
+		try {
+			_queue.offer(STOP, waitMs, TimeUnit.MILLISECONDS);
+			_writer.join(waitMs);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		_writer.interrupt();
+	}
+}
@@ -0,0 +1,90 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-connection cache of named, parameterized prepared statements.
+ * Statements are keyed by the operation that issues them, so every call of
+ * an operation reuses the same PreparedStatement. Once the driver's
+ * prepareThreshold is reached the statement is also prepared server side and
+ * Postgres stops parsing and planning it on every call.
+ *
+ * Setting -Dmechanicshop.statementCache=false turns reuse off: every call
+ * prepares a fresh statement and closes the previous one, which is how the
+ * shop issued SQL before the cache existed. Benchmarks use it as baseline.
+ *
+ */
+public class StatementCache {
+	//connection the cached statements belong to
+	private final Connection _connection;
+	private final boolean _enabled = Boolean.parseBoolean(System.getProperty("mechanicshop.statementCache", "true"));
+	private final Map<String, Entry> _statements = new HashMap<String, Entry>();
+	private long _hits = 0;
+	private long _misses = 0;
+
+	private static class Entry {
+		final String sql;
+		final PreparedStatement stmt;
+
+		Entry(String sql, PreparedStatement stmt) {
+			this.sql = sql;
+			this.stmt = stmt;
+		}
+	}
+
+	public StatementCache(Connection connection) {
+		this._connection = connection;
+	}
+
+	/**
+	 * Returns the cached statement for key, preparing it on first use.
+	 * If the key was cached with different SQL the old statement is replaced.
+	 *
+	 * @param key name of the operation issuing the statement
+	 * @param sql parameterized SQL text
+	 * @return prepared statement ready to be bound and executed
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public synchronized PreparedStatement prepare(String key, String sql) throws SQLException {
+		Entry entry = _statements.get(key);
+		if (_enabled && entry != null && entry.sql.equals(sql) && !entry.stmt.isClosed()) {
+			++_hits;
+			return entry.stmt;
+		}
+		++_misses;
+		if (entry != null) {
+			entry.stmt.close();
+		}
+		PreparedStatement stmt = _connection.prepareStatement(sql);
+		_statements.put(key, new Entry(sql, stmt));
+		return stmt;
+	}//end prepare
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	public synchronized int size() {
+		return _statements.size();
+	}
+
+	/**
+	 * Closes every cached statement. The connection itself is left open.
+	 */
+	public synchronized void close() {
+		for (Entry entry : _statements.values()) {
+			try {
+				entry.stmt.close();
+			}catch (SQLException e) {
+				// ignored.
+			}
+		}
+		_statements.clear();
+	}//end close
+}
@@ -0,0 +1,84 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+/**
+ * Input and output of one front-desk session. The menu reads and prints
+ * through the terminal of the current thread: the console by default, or
+ * a network session attached by ShopServer.
+ *
+ */
+public class Terminal {
+	private static final Terminal CONSOLE = new Terminal(
+		new BufferedReader(new InputStreamReader(System.in)), System.out, System.err);
+	private static final ThreadLocal<Terminal> CURRENT = new ThreadLocal<Terminal>();
+
+	private final BufferedReader _in;
+	private final PrintStream _out;
+	private final PrintStream _err;
+
+	/**
+	 * Thrown by readLine once the other side has closed its input. The retry
+	 * loops of the prompts pass it on instead of asking again, up to the
+	 * menu, which ends the session.
+	 */
+	public static class Closed extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		Closed() {
+			super("Terminal closed");
+		}
+	}
+
+	public Terminal(BufferedReader in, PrintStream out, PrintStream err) {
+		this._in = in;
+		this._out = out;
+		this._err = err;
+	}
+
+	/**
+	 * @return the terminal attached to the calling thread, or the console
+	 */
+	public static Terminal current() {
+		Terminal terminal = CURRENT.get();
+		return terminal == null ? CONSOLE : terminal;
+	}
+
+	/**
+	 * Makes terminal the current terminal of the calling thread, or the
+	 * console again when terminal is null.
+	 */
+	public static void attach(Terminal terminal) {
+		if (terminal == null) {
+			CURRENT.remove();
+		}
+		else {
+			CURRENT.set(terminal);
+		}
+	}
+
+	/**
+	 * Flushes any pending prompt and reads one line.
+	 *
+	 * @return the line without its terminator
+	 * @throws java.io.IOException when reading fails
+	 * @throws Terminal.Closed when the input has ended
+	 */
+	public String readLine() throws IOException {
+		_out.flush();
+		String line = _in.readLine();
+		if (line == null) {
+			throw new Closed();
+		}
+		return line;
+	}
+
+	public PrintStream out() {
+		return _out;
+	}
+
+	public PrintStream err() {
+		return _err;
+	}
+}
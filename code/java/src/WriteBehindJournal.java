@@ -0,0 +1,668 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind intake of service requests. A request is appended to a
+ * local journal file and synced to disk, and is then acknowledged; a
+ * background thread inserts the journaled requests into Service_Request
+ * in batches, one transaction per batch. Clerks appending at the same
+ * time share one sync of the journal, and the database commits once per
+ * batch instead of once per request.
+ *
+ * The journal is a series of segment files in a directory; a segment is
+ * deleted once every request in it is committed. On start the segments
+ * left by a previous run are replayed; inserts skip rids already present,
+ * so a request committed just before a crash is not inserted twice.
+ * At most capacity requests wait for the database: further appends block,
+ * and fail after a timeout. Requests the database rejects (say, a car that
+ * was deleted meanwhile), and new requests whose rid is already taken, are
+ * written to rejected.log in the directory. The car service ranking only
+ * counts a request once it is committed.
+ *
+ */
+public class WriteBehindJournal {
+	private static final String INSERT = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain)"
+		+ " VALUES (?,?,?,CAST(? AS DATE),?,?) ON CONFLICT DO NOTHING";
+	private static final String PREFIX = "requests-";
+	private static final String SUFFIX = ".wal";
+	//SQL state recorded for a new request whose rid was already taken
+	private static final String UNIQUE_VIOLATION = "23505";
+
+	/**
+	 * A journal file; deleted when sealed and no request in it is pending.
+	 */
+	private static class Segment {
+		final File file;
+		//null once sealed
+		FileOutputStream out;
+		long bytes;
+		int pending;
+
+		Segment(File file) {
+			this.file = file;
+		}
+	}
+
+	static class Request {
+		final int rid;
+		final int customerId;
+		final String vin;
+		final String date;
+		final int odometer;
+		final String complain;
+		//journal line, without the line break
+		final String line;
+		Segment segment;
+		//false for replayed requests, which never took a slot of the capacity
+		boolean counted;
+		//true when the request may have been committed before: replayed, or
+		//in a batch whose commit failed without telling whether it went through
+		boolean mayExist;
+
+		Request(int rid, int customerId, String vin, String date, int odometer, String complain, String line) {
+			this.rid = rid;
+			this.customerId = customerId;
+			this.vin = vin;
+			this.date = date;
+			this.odometer = odometer;
+			this.complain = complain;
+			this.line = line;
+		}
+	}
+
+	private final MechanicShop _esql;
+	private final ConnectionPool _pool;
+	private final File _dir;
+	private final long _segmentBytes;
+	private final int _batchSize;
+	private final long _lingerMs;
+	private final long _timeoutMs;
+	private final Semaphore _capacity;
+	private final LinkedBlockingQueue<Request> _queue = new LinkedBlockingQueue<Request>();
+	//rids appended and not yet committed
+	private final Set<Integer> _pendingRids = ConcurrentHashMap.newKeySet();
+	//guards the segments
+	private final Object _writeLock = new Object();
+	//held while syncing, so appenders waiting for it share the next sync
+	private final Object _syncLock = new Object();
+	private Segment _current;
+	private long _nextSegment = 0;
+	//bytes appended and bytes synced, over all segments
+	private long _appended = 0;
+	private volatile long _synced = 0;
+	private Thread _writer;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param esql shop whose pool inserts the requests and whose partitions are created when missing
+	 * @param dir directory of the journal segments
+	 * @param capacity number of requests that may wait for the database
+	 * @param batchSize maximum number of requests per transaction
+	 */
+	public WriteBehindJournal(MechanicShop esql, File dir, int capacity, int batchSize) {
+		if (capacity < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Capacity and batch size must be positive");
+		}
+		this._esql = esql;
+		this._pool = esql.getConnectionPool();
+		this._dir = dir;
+		this._capacity = new Semaphore(capacity);
+		this._batchSize = batchSize;
+		this._segmentBytes = Long.getLong("mechanicshop.writeBehind.segmentMb", 64L) << 20;
+		this._lingerMs = Long.getLong("mechanicshop.writeBehind.lingerMs", 5L);
+		this._timeoutMs = Long.getLong("mechanicshop.writeBehind.timeoutMs", 10000L);
+	}
+
+	/**
+	 * Queues the requests of the segments left in the directory, opens a new
+	 * segment and starts inserting.
+	 *
+	 * @throws java.io.IOException when the directory or a segment cannot be read or created
+	 */
+	public void start() throws IOException {
+		if (!_dir.isDirectory() && !_dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + _dir);
+		}
+		int replayed = 0;
+		for (File file : segments()) {
+			Segment segment = new Segment(file);
+			for (Request request : read(file)) {
+				request.segment = segment;
+				request.mayExist = true;
+				++segment.pending;
+				_pendingRids.add(request.rid);
+				_queue.add(request);
+				++replayed;
+			}
+			_nextSegment = Math.max(_nextSegment, number(file) + 1);
+			if (segment.pending == 0 && !file.delete()) {
+				System.err.println("Cannot delete journal segment " + file);
+			}
+		}
+		if (replayed > 0) {
+			System.out.println("Write-behind journal: replaying " + replayed + " service requests");
+		}
+		synchronized (_writeLock) {
+			roll();
+		}
+		_writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "write-behind");
+		_writer.setDaemon(true);
+		_writer.start();
+	}//end start
+
+	/**
+	 * @return the segment files of the directory, oldest first
+	 */
+	private File[] segments() {
+		File[] files = _dir.listFiles();
+		List<File> segments = new ArrayList<File>();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+				segments.add(file);
+			}
+		}
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(number(a), number(b));
+			}
+		});
+		return sorted;
+	}
+
+	private static long number(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * Seals the current segment, if any, and opens the next one. Called with
+	 * the write lock held.
+	 */
+	private void roll() throws IOException {
+		if (_current != null) {
+			_current.out.getFD().sync();
+			_current.out.close();
+			_current.out = null;
+			_synced = _appended;
+			if (_current.pending == 0 && !_current.file.delete()) {
+				System.err.println("Cannot delete journal segment " + _current.file);
+			}
+		}
+		Segment segment = new Segment(new File(_dir, String.format("%s%012d%s", PREFIX, _nextSegment++, SUFFIX)));
+		segment.out = new FileOutputStream(segment.file);
+		_current = segment;
+	}
+
+	/**
+	 * Journals a new service request and returns once it is on disk; it is
+	 * inserted into Service_Request later. Blocks while capacity requests
+	 * are waiting for the database.
+	 *
+	 * @param date request date in format mm/dd/yyyy
+	 * @param complain complaint text, may be null
+	 * @throws java.sql.SQLException when the journal is full for longer than the timeout, closed or cannot be written
+	 */
+	public void append(int rid, int customerId, String vin, String date, int odometer, String complain) throws SQLException {
+		long start = System.nanoTime();
+		Request request = new Request(rid, customerId, vin, date, odometer, complain,
+			format(rid, customerId, vin, date, odometer, complain));
+		try {
+			if (!_capacity.tryAcquire(_timeoutMs, TimeUnit.MILLISECONDS)) {
+				Metrics.statement("WriteBehindAppend", start, -1);
+				throw new SQLException("Service request queue is full, try again later");
+			}
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the service request queue", e);
+		}
+		request.counted = true;
+		byte[] bytes = (request.line + "\n").getBytes(StandardCharsets.UTF_8);
+		long end;
+		try {
+			synchronized (_writeLock) {
+				if (_closed) {
+					throw new IOException("Write-behind journal is closed");
+				}
+				if (_current.bytes > 0 && _current.bytes + bytes.length > _segmentBytes) {
+					roll();
+				}
+				_current.out.write(bytes);
+				_current.bytes += bytes.length;
+				++_current.pending;
+				request.segment = _current;
+				_appended += bytes.length;
+				end = _appended;
+			}
+			sync(end);
+		}catch (IOException e) {
+			_capacity.release();
+			Metrics.statement("WriteBehindAppend", start, -1);
+			throw new SQLException("Cannot journal service request " + rid + ": " + e.getMessage(), e);
+		}
+		// on disk; from here on the request is as good as committed
+		_pendingRids.add(rid);
+		_queue.add(request);
+		Metrics.statement("WriteBehindAppend", start, 1);
+	}//end append
+
+	/**
+	 * Syncs the journal up to byte end of the appended bytes. One sync
+	 * covers every append made before it, so appenders arriving during a
+	 * sync wait for it and then share the next one.
+	 */
+	private void sync(long end) throws IOException {
+		synchronized (_syncLock) {
+			if (_synced >= end) {
+				return;
+			}
+			FileOutputStream out;
+			long target;
+			synchronized (_writeLock) {
+				if (_synced >= end) {
+					return;
+				}
+				out = _current.out;
+				target = _appended;
+			}
+			try {
+				out.getFD().sync();
+			}catch (IOException e) {
+				synchronized (_writeLock) {
+					// unless the segment was sealed meanwhile, which synced it
+					if (_current.out == out) {
+						throw e;
+					}
+				}
+			}
+			synchronized (_writeLock) {
+				_synced = Math.max(_synced, target);
+			}
+		}
+	}
+
+	/**
+	 * Waits until request rid, if it was journaled, is committed, so it can
+	 * be read back from the database.
+	 *
+	 * @throws java.sql.SQLException when it is not committed within the append timeout
+	 */
+	public void awaitCommitted(int rid) throws SQLException {
+		long deadline = System.currentTimeMillis() + _timeoutMs;
+		synchronized (_pendingRids) {
+			while (_pendingRids.contains(rid)) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					throw new SQLException("Service request " + rid + " is not yet written to the database, try again later");
+				}
+				try {
+					_pendingRids.wait(left);
+				}catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for service request " + rid, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of journaled requests not yet committed
+	 */
+	public int pending() {
+		return _pendingRids.size();
+	}
+
+	private void write() {
+		List<Request> batch = new ArrayList<Request>(_batchSize);
+		while (true) {
+			try {
+				Request first = _queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					if (_closed) {
+						return;
+					}
+					continue;
+				}
+				batch.add(first);
+				// gather what arrives within the linger time, up to a full batch
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_lingerMs);
+				while (batch.size() < _batchSize) {
+					Request next = _queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				insert(batch);
+				committed(batch);
+				batch.clear();
+			}catch (InterruptedException e) {
+				return;
+			}
+		}
+	}//end write
+
+	/**
+	 * Inserts batch, retrying while the database is unreachable. Requests
+	 * the database rejects are set aside in rejected.log.
+	 */
+	private void insert(List<Request> batch) throws InterruptedException {
+		while (true) {
+			try {
+				inserted(batch, insertBatch(batch));
+				return;
+			}catch (SQLException e) {
+				SQLException cause = cause(e);
+				if (Partitioning.isMissingPartition(cause) && _esql.getPartitioning() != null) {
+					createPartitions(batch);
+				}
+				else if (isRejected(cause)) {
+					insertOneByOne(batch);
+					return;
+				}
+				else {
+					System.err.println("Write-behind insert of " + batch.size() + " service requests failed, retrying: "
+						+ cause.getMessage());
+					Thread.sleep(1000);
+				}
+			}
+		}
+	}//end insert
+
+	/**
+	 * @return the update count of every request of batch, 0 for a rid already present
+	 */
+	private int[] insertBatch(List<Request> batch) throws SQLException {
+		long start = System.nanoTime();
+		long rows = -1;
+		ConnectionPool.ShopConnection conn = _pool.borrow();
+		Connection connection = conn.connection();
+		try {
+			connection.setAutoCommit(false);
+			PreparedStatement insert = conn.statements().prepare("WriteBehindInsert", INSERT);
+			for (Request request : batch) {
+				bind(insert, request);
+				insert.addBatch();
+			}
+			int[] counts = insert.executeBatch();
+			try {
+				connection.commit();
+			}catch (SQLException e) {
+				// the commit may have gone through before the connection failed
+				for (Request request : batch) {
+					request.mayExist = true;
+				}
+				throw e;
+			}
+			connection.setAutoCommit(true);
+			rows = batch.size();
+			return counts;
+		}catch (SQLException e) {
+			try {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}catch (SQLException rollbackFailed) {
+				// the pool drops the connection
+			}
+			conn.failed(e);
+			throw e;
+		}finally {
+			_pool.release(conn);
+			Metrics.statement("WriteBehindInsert", start, rows);
+		}
+	}//end insertBatch
+
+	/**
+	 * Inserts the requests of a batch the database rejected one at a time,
+	 * setting aside those rejected on their own.
+	 */
+	private void insertOneByOne(List<Request> batch) throws InterruptedException {
+		for (Request request : batch) {
+			List<Request> one = Arrays.asList(request);
+			while (true) {
+				try {
+					inserted(one, insertBatch(one));
+					break;
+				}catch (SQLException e) {
+					SQLException cause = cause(e);
+					if (Partitioning.isMissingPartition(cause) && _esql.getPartitioning() != null) {
+						createPartitions(one);
+					}
+					else if (isRejected(cause)) {
+						reject(request, cause.getSQLState(), cause.getMessage());
+						break;
+					}
+					else {
+						Thread.sleep(1000);
+					}
+				}
+			}
+		}
+	}//end insertOneByOne
+
+	private void createPartitions(List<Request> batch) {
+		Set<String> dates = new HashSet<String>();
+		for (Request request : batch) {
+			if (dates.add(request.date)) {
+				try {
+					_esql.getPartitioning().ensureFor(request.date);
+				}catch (SQLException e) {
+					// another process may just have created it
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ranks the requests of a committed batch. A request that inserted no
+	 * row and cannot have been committed before collided with another
+	 * request of the same rid, and is rejected.
+	 *
+	 * @param counts update count of every request, as returned by executeBatch
+	 */
+	private void inserted(List<Request> batch, int[] counts) {
+		for (int i = 0; i < batch.size(); ++i) {
+			Request request = batch.get(i);
+			int count = i < counts.length ? counts[i] : Statement.SUCCESS_NO_INFO;
+			if (count != 0) {
+				_esql.rankService(request.vin);
+			}
+			else if (!request.mayExist) {
+				reject(request, UNIQUE_VIOLATION, "rid " + request.rid + " is already taken");
+			}
+		}
+	}
+
+	/**
+	 * Sets request aside in rejected.log, with the SQL state of the reason.
+	 */
+	private void reject(Request request, String state, String message) {
+		System.err.println("Service request " + request.rid + " rejected by the database: " + message);
+		try {
+			FileOutputStream out = new FileOutputStream(new File(_dir, "rejected.log"), true);
+			try {
+				out.write((request.line + "\t" + state + "\n").getBytes(StandardCharsets.UTF_8));
+			}finally {
+				out.close();
+			}
+		}catch (IOException e) {
+			System.err.println("Cannot record rejected service request " + request.rid + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the error reported for the first failed statement of a batch, or e
+	 */
+	private static SQLException cause(SQLException e) {
+		return e.getNextException() != null ? e.getNextException() : e;
+	}
+
+	/**
+	 * @return true if the database refused the data itself (integrity or data
+	 * error), which retrying cannot fix
+	 */
+	private static boolean isRejected(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && (state.startsWith("23") || state.startsWith("22")) && !Partitioning.isMissingPartition(e);
+	}
+
+	/**
+	 * Releases the slots of committed requests and deletes the sealed
+	 * segments they emptied.
+	 */
+	private void committed(List<Request> batch) {
+		synchronized (_writeLock) {
+			for (Request request : batch) {
+				Segment segment = request.segment;
+				if (--segment.pending == 0 && segment.out == null && !segment.file.delete()) {
+					System.err.println("Cannot delete journal segment " + segment.file);
+				}
+			}
+		}
+		synchronized (_pendingRids) {
+			for (Request request : batch) {
+				_pendingRids.remove(request.rid);
+				if (request.counted) {
+					_capacity.release();
+				}
+			}
+			_pendingRids.notifyAll();
+		}
+	}
+
+	private static void bind(PreparedStatement insert, Request request) throws SQLException {
+		insert.setInt(1, request.rid);
+		insert.setInt(2, request.customerId);
+		insert.setString(3, request.vin);
+		insert.setString(4, request.date);
+		insert.setInt(5, request.odometer);
+		if (request.complain == null)
+			insert.setNull(6, Types.VARCHAR);
+		else
+			insert.setString(6, request.complain);
+	}
+
+	/**
+	 * @return the journal line of a request: tab separated fields, then the
+	 * CRC32 of the fields so a line torn by a crash is recognized
+	 */
+	static String format(int rid, int customerId, String vin, String date, int odometer, String complain) {
+		String fields = rid + "\t" + customerId + "\t" + escape(vin) + "\t" + escape(date) + "\t" + odometer + "\t"
+			+ (complain == null ? "\\N" : escape(complain));
+		return fields + "\t" + Long.toHexString(crc(fields));
+	}
+
+	private static long crc(String fields) {
+		CRC32 crc = new CRC32();
+		crc.update(fields.getBytes(StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String s) {
+		StringBuilder text = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				char next = s.charAt(++i);
+				text.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			}
+			else {
+				text.append(c);
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Reads the requests of a segment, up to the first line that is torn or
+	 * fails its checksum.
+	 */
+	static List<Request> read(File segment) throws IOException {
+		List<Request> requests = new ArrayList<Request>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(segment), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int crcAt = line.lastIndexOf('\t');
+				String[] fields = crcAt < 0 ? new String[0] : line.substring(0, crcAt).split("\t", -1);
+				if (fields.length != 6 || !Long.toHexString(crc(line.substring(0, crcAt))).equals(line.substring(crcAt + 1))) {
+					System.err.println("Journal segment " + segment + " ends in a damaged line after "
+						+ requests.size() + " requests; the rest is ignored");
+					break;
+				}
+				requests.add(new Request(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), unescape(fields[2]),
+					unescape(fields[3]), Integer.parseInt(fields[4]), fields[5].equals("\\N") ? null : unescape(fields[5]), line));
+			}
+		}finally {
+			in.close();
+		}
+		return requests;
+	}//end read
+
+	/**
+	 * Stops accepting requests and waits up to waitMs for the queued ones to
+	 * be committed; those still queued then stay in the journal for the next
+	 * start.
+	 */
+	public void close(long waitMs) {
+		synchronized (_writeLock) {
+			if (_closed) {
+				return;
+			}
+			_closed = true;
+			try {
+				if (_current != null && _current.out != null) {
+					_current.out.getFD().sync();
+					_current.out.close();
+					_current.out = null;
+					if (_current.pending == 0 && !_current.file.delete()) {
+						System.err.println("Cannot delete journal segment " + _current.file);
+					}
+				}
+			}catch (IOException e) {
+				System.err.println("Cannot close journal segment " + _current.file + ": " + e.getMessage());
+			}
+		}
+		if (_writer != null) {
+			try {
+				_writer.join(waitMs);
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (_writer.isAlive()) {
+				_writer.interrupt();
+				System.err.println("Write-behind journal: " + pending() + " service requests left for the next start");
+			}
+		}
+	}//end close
+}
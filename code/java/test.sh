@@ -0,0 +1,9 @@
+#! /bin/bash
+# Runs the unit tests of ../test, the logic that needs no database.
+# Example: ./test.sh            (every *Test class)
+#          ./test.sh LeaderboardTest
+rm -rf bin-test
+mkdir -p bin-test
+javac -cp "lib/postgresql-42.1.4.jar" src/*.java ../test/Tests.java ../test/*Test.java -d bin-test/ || exit 1
+TESTS="${@:-$(cd ../test && ls *Test.java | sed 's/\.java$//')}"
+java -ea -Dmechanicshop.metrics=false -cp lib/*:bin-test/ Tests $TESTS
@@ -4,6 +4,19 @@ DROP TABLE IF EXISTS Car CASCADE;--OK
 DROP TABLE IF EXISTS Owns CASCADE;--OK
 DROP TABLE IF EXISTS Service_Request CASCADE;--OK
 DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+-- schema changes applied by the Java client (indexes, ...) are redone after a rebuild
+DROP TABLE IF EXISTS Schema_Migration CASCADE;--OK
+DROP TABLE IF EXISTS Car_Service_Count CASCADE;--OK
+DROP TABLE IF EXISTS Customer_Bill_Total CASCADE;--OK
+-- domains too, so the script can rebuild a database that already has them
+DROP DOMAIN IF EXISTS us_postal_code CASCADE;--OK
+DROP DOMAIN IF EXISTS _STATUS CASCADE;--OK
+DROP DOMAIN IF EXISTS _GENDER CASCADE;--OK
+DROP DOMAIN IF EXISTS _CODE CASCADE;--OK
+DROP DOMAIN IF EXISTS _PINTEGER CASCADE;--OK
+DROP DOMAIN IF EXISTS _PZEROINTEGER CASCADE;--OK
+DROP DOMAIN IF EXISTS _YEARS CASCADE;--OK
+DROP DOMAIN IF EXISTS _YEAR CASCADE;--OK
 
 
 -------------
@@ -27,8 +40,7 @@ CREATE TABLE Customer
 	fname CHAR(32) NOT NULL,
 	lname CHAR(32) NOT NULL,
 	phone CHAR(13) NOT NULL,
-	address CHAR(256) NOT NULL,
-	PRIMARY KEY (id)
+	address CHAR(256) NOT NULL
 );
 
 CREATE TABLE Mechanic
@@ -36,8 +48,7 @@ CREATE TABLE Mechanic
 	id INTEGER NOT NULL,
 	fname CHAR(32) NOT NULL,
 	lname CHAR(32) NOT NULL,
-	experience _YEARS NOT NULL,
-	PRIMARY KEY (id) 
+	experience _YEARS NOT NULL
 );
 
 CREATE TABLE Car
@@ -45,8 +56,7 @@ CREATE TABLE Car
 	vin VARCHAR(16) NOT NULL,
 	make VARCHAR(32) NOT NULL,
 	model VARCHAR(32) NOT NULL,
-	year _YEAR NOT NULL,
-	PRIMARY KEY (vin)
+	year _YEAR NOT NULL
 );
 ---------------
 ---RELATIONS---
@@ -55,10 +65,7 @@ CREATE TABLE Owns
 (
 	ownership_id INTEGER NOT NULL,
 	customer_id INTEGER NOT NULL,
-	car_vin VARCHAR(16) NOT NULL,
-	PRIMARY KEY (ownership_id),
-	FOREIGN KEY (customer_id) REFERENCES Customer(id),
-	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+	car_vin VARCHAR(16) NOT NULL
 );
 
 CREATE TABLE Service_Request
@@ -68,10 +75,7 @@ CREATE TABLE Service_Request
 	car_vin VARCHAR(16) NOT NULL,
 	date DATE NOT NULL,
 	odometer _PINTEGER NOT NULL,
-	complain TEXT,
-	PRIMARY KEY (rid),
-	FOREIGN KEY (customer_id) REFERENCES Customer(id),
-	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+	complain TEXT
 );
 
 CREATE TABLE Closed_Request
@@ -81,10 +85,7 @@ CREATE TABLE Closed_Request
 	mid INTEGER NOT NULL,
 	date DATE NOT NULL,
 	comment TEXT,
-	bill _PINTEGER NOT NULL,
-	PRIMARY KEY (wid),
-	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
-	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+	bill _PINTEGER NOT NULL
 );
 
 ----------------------------
@@ -147,4 +148,39 @@ COPY Closed_Request (
 	bill
 )
 FROM 'closed_request.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
+
+------------------
+---PRIMARY KEYS---
+------------------
+-- Keys are added after the data is in: building an index over loaded rows
+-- is much faster than maintaining it row by row. The Java loader runs the
+-- statements of a section in parallel, and the sections in order.
+
+ALTER TABLE Customer ADD PRIMARY KEY (id);
+
+ALTER TABLE Mechanic ADD PRIMARY KEY (id);
+
+ALTER TABLE Car ADD PRIMARY KEY (vin);
+
+ALTER TABLE Owns ADD PRIMARY KEY (ownership_id);
+
+ALTER TABLE Service_Request ADD PRIMARY KEY (rid);
+
+ALTER TABLE Closed_Request ADD PRIMARY KEY (wid);
+
+------------------
+---FOREIGN KEYS---
+------------------
+
+ALTER TABLE Owns
+	ADD FOREIGN KEY (customer_id) REFERENCES Customer(id),
+	ADD FOREIGN KEY (car_vin) REFERENCES Car(vin);
+
+ALTER TABLE Service_Request
+	ADD FOREIGN KEY (customer_id) REFERENCES Customer(id),
+	ADD FOREIGN KEY (car_vin) REFERENCES Car(vin);
+
+ALTER TABLE Closed_Request
+	ADD FOREIGN KEY (rid) REFERENCES Service_Request(rid),
+	ADD FOREIGN KEY (mid) REFERENCES Mechanic(id);
@@ -0,0 +1,128 @@
+import java.util.List;
+
+/**
+ * Keys and ranking of CustomerIndex, on customers added directly, without
+ * a database.
+ *
+ */
+public class CustomerIndexTest {
+	//shared by the search tests, which only read it
+	private static final CustomerIndex INDEX = index();
+
+	private static CustomerIndex index() {
+		CustomerIndex index = new CustomerIndex(null);
+		index.add(new Customer(1, "Armand", "Enderle", "(473)259-5186", "9497 Chapel Drive"));
+		index.add(new Customer(2, "Wyatt", "Ruoff", "(516)560-5642", "9169 Campfire Ave."));
+		index.add(new Customer(3, "Alberto", "Scarlett", "(337)926-8804", "8120 Bald Hill Street"));
+		index.add(new Customer(5, "Bob", "Smith", "(555)111-3333", "2 Main Street"));
+		index.add(new Customer(4, "Ann", "Smith", "(555)111-2222", "1 Main Street"));
+		index.add(new Customer(6, "Carl", "Smyth", "(555)444-5186", "3 Main Street"));
+		index.add(new Customer(7, "Dana", "Smithers", "(555)777-0000", "4 Main Street"));
+		index.add(new Customer(8, "Eve", "Rupert", "(555)888-0000", "5 Main Street"));
+		index.add(new Customer(9, "Zed", "Schmidt", "(555)999-0000", "6 Main Street"));
+		index.add(new Customer(4, "Ann", "Smith", "(555)111-2222", "1 Main Street"));
+		return index;
+	}
+
+	public static void testAddingTwiceIndexesOnce() {
+		Tests.check(INDEX.size() == 9, "a customer added twice is indexed once");
+	}
+
+	/**
+	 * Checks that text finds the customers of ids first, in that order.
+	 */
+	private static void expect(CustomerIndex index, String text, int... ids) {
+		List<Customer> found = index.search(text, 20);
+		StringBuilder got = new StringBuilder();
+		for (Customer c : found) {
+			got.append(' ').append(c.id);
+		}
+		Tests.check(found.size() >= ids.length, text + " found" + got);
+		for (int i = 0; i < ids.length; ++i) {
+			Tests.check(found.get(i).id == ids[i], text + " found" + got);
+		}
+	}
+
+	private static boolean finds(CustomerIndex index, String text, int id) {
+		for (Customer c : index.search(text, 20)) {
+			if (c.id == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static void testSoundex() {
+		String[][] codes = { { "robert", "R163" }, { "rupert", "R163" }, { "ashcraft", "A261" }, { "tymczak", "T522" },
+			{ "pfister", "P236" }, { "smith", "S530" }, { "smyth", "S530" }, { "lee", "L000" }, { "smith jones", "S530" } };
+		for (String[] code : codes) {
+			Tests.check(code[1].equals(CustomerIndex.soundex(code[0])), code[0] + " sounds " + CustomerIndex.soundex(code[0]));
+		}
+		Tests.check(CustomerIndex.soundex("") == null && CustomerIndex.soundex("\u00e9\u00e9") == null, "no letter a-z");
+	}
+
+	public static void testTrigrams() {
+		// as pg_trgm: "  w", " wo", "wor", "ord", "rd "
+		Tests.check(CustomerIndex.trigrams("word").length == 5, "trigrams of word");
+		Tests.check(CustomerIndex.trigrams("ab ab").length == 3, "repeated words count once");
+		Tests.check(CustomerIndex.trigrams("").length == 0, "no trigrams of nothing");
+		long[] grams = CustomerIndex.trigrams("mississippi");
+		for (int i = 1; i < grams.length; ++i) {
+			Tests.check(grams[i - 1] < grams[i], "trigrams sorted and distinct");
+		}
+		Tests.check(CustomerIndex.normalize("  O'Neil-SMITH ").equals("o neil smith"), "normalize");
+	}
+
+	public static void testPrefixesComeFirst() {
+		CustomerIndex index = INDEX;
+		// as the database lookup: by last name, then id
+		expect(index, "smi", 4, 5, 7);
+		expect(index, "SMITH", 4, 5, 7);
+		Tests.check(index.search("smi", 20).size() == 3, "only prefix matches for smi");
+	}
+
+	public static void testTypos() {
+		CustomerIndex index = INDEX;
+		// two letters swapped; equally similar names by last name, then id
+		expect(index, "Smtih", 4, 5, 6);
+		Tests.check(finds(index, "Smtih", 9), "schmidt sounds like smtih");
+		Tests.check(!finds(index, "Smtih", 7), "smithers is not one typo from smtih");
+		expect(index, "Scralett", 3); // swap
+		expect(index, "Scarlettt", 3); // extra letter
+		expect(index, "Scarlitt", 3); // wrong letter
+		expect(index, "Ruof", 2); // prefix of the name
+		expect(index, "Rof", 2); // missing letter
+	}
+
+	public static void testSoundsAlike() {
+		CustomerIndex index = INDEX;
+		// two letters apart, found by their Soundex code only
+		expect(index, "Robert", 8);
+	}
+
+	public static void testFirstAndLastName() {
+		CustomerIndex index = INDEX;
+		expect(index, "Alberto Scarlett", 3);
+		expect(index, "Scarlett Alberto", 3);
+		expect(index, "Bob Smith", 5, 4);
+		expect(index, "Ann Smith", 4, 5);
+	}
+
+	public static void testPhones() {
+		CustomerIndex index = INDEX;
+		expect(index, "(473)259-5186", 1);
+		Tests.check(index.search("259-5186", 20).size() == 1, "one phone with 2595186");
+		// both end with 5186, ranked by last name
+		expect(index, "5186", 1, 6);
+		expect(index, "555-111", 4, 5);
+		Tests.check(index.search("000-000", 20).isEmpty(), "no such phone");
+	}
+
+	public static void testLimits() {
+		CustomerIndex index = INDEX;
+		Tests.check(index.search("smi", 2).size() == 2, "limit cuts the prefix matches");
+		Tests.check(index.search("Smtih", 1).size() == 1, "limit cuts the ranked matches");
+		Tests.check(index.search("smith", 0).isEmpty(), "limit 0");
+		Tests.check(index.search(" - ", 5).isEmpty(), "no words");
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Bucket bounds of Histogram: a quantile is reported as the highest value
+ * of its bucket, never below the recorded value and at most 1/32 above it.
+ *
+ */
+public class HistogramTest {
+	/**
+	 * @return the bound reported for value: the median of value and a much larger one
+	 */
+	private static long bound(long value) {
+		Histogram h = new Histogram();
+		h.record(value);
+		h.record(Long.MAX_VALUE);
+		return h.quantile(0.5);
+	}
+
+	public static void testEmptyIsZero() {
+		Histogram h = new Histogram();
+		Tests.check(h.quantile(0.99) == 0, "empty quantile");
+		Tests.check(h.getCount() == 0 && h.getMax() == 0, "empty count and max");
+	}
+
+	public static void testSmallValuesAreExact() {
+		for (long v = 0; v < 64; ++v) {
+			Tests.check(bound(v) == v, "value " + v + " reported as " + bound(v));
+		}
+	}
+
+	public static void testBucketsAreWithinAThirtySecond() {
+		for (int bit = 6; bit < 63; ++bit) {
+			long power = 1L << bit;
+			for (long v : new long[] { power - 1, power, power + 1, power + power / 3, (power << 1) - 1 }) {
+				if (v <= 0) {
+					continue;
+				}
+				long b = bound(v);
+				Tests.check(b >= v, "value " + v + " reported below itself as " + b);
+				Tests.check(b - v <= v / 32, "value " + v + " reported as " + b);
+			}
+		}
+	}
+
+	public static void testNegativeValuesCountAsZero() {
+		Histogram h = new Histogram();
+		h.record(-5);
+		Tests.check(h.getCount() == 1 && h.getSum() == 0 && h.quantile(1) == 0, "negative value");
+	}
+
+	public static void testQuantilesNeverExceedTheMax() {
+		Histogram h = new Histogram();
+		for (long v = 1000; v <= 100000; v += 1000) {
+			h.record(v);
+		}
+		Tests.check(h.getMax() == 100000, "max");
+		Tests.check(h.quantile(1) == 100000, "p100 is the max");
+		long p50 = h.quantile(0.5);
+		Tests.check(p50 >= 50000 && p50 <= 50000 + 50000 / 32, "p50 " + p50);
+		Tests.check(h.getCount() == 100 && h.getSum() == 5050000, "count and sum");
+	}
+}
@@ -0,0 +1,94 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Increments and pages of Leaderboard, checked against plain counts.
+ *
+ */
+public class LeaderboardTest {
+	public static void testIncrementsRankNewKeys() {
+		Leaderboard board = new Leaderboard();
+		Tests.check(board.size() == 0 && board.page(0, 10).isEmpty(), "empty");
+		Tests.check(board.increment("a") == 1, "first increment");
+		board.increment("b");
+		board.increment("b");
+		List<Leaderboard.Entry> page = board.page(0, 10);
+		Tests.check(page.size() == 2, "two keys");
+		Tests.check(page.get(0).key.equals("b") && page.get(0).count == 2 && page.get(0).rank == 1, "b first");
+		Tests.check(page.get(1).key.equals("a") && page.get(1).count == 1 && page.get(1).rank == 2, "a second");
+		Tests.check(board.count("c") == 0, "unknown key");
+	}
+
+	public static void testLoadThenIncrement() {
+		Leaderboard board = new Leaderboard();
+		board.add("x", 5);
+		board.add("y", 3);
+		board.add("z", 3);
+		board.add("w", 0);
+		Tests.check(board.size() == 3, "keys with a count of 0 are not ranked");
+		board.increment("z");
+		board.increment("z");
+		board.increment("w");
+		List<Leaderboard.Entry> page = board.page(0, 10);
+		Tests.check(page.get(0).key.equals("x") && page.get(0).count == 5, "x stays first");
+		Tests.check(page.get(1).key.equals("z") && page.get(1).count == 5, "z catches up");
+		Tests.check(page.get(2).key.equals("y") && page.get(2).count == 3, "y third");
+		Tests.check(page.get(3).key.equals("w") && page.get(3).count == 1, "w ranked once incremented");
+		Tests.check(board.size() == 4, "four ranked keys");
+	}
+
+	public static void testAddRefusesIncreasingCounts() {
+		Leaderboard board = new Leaderboard();
+		board.add("x", 2);
+		try {
+			board.add("y", 3);
+			Tests.check(false, "count above the previous one accepted");
+		}catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			board.add("x", 1);
+			Tests.check(false, "key added twice");
+		}catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public static void testPagesSliceTheRanking() {
+		Leaderboard board = new Leaderboard();
+		for (int i = 100; i >= 1; --i) {
+			board.add("k" + i, i);
+		}
+		List<Leaderboard.Entry> page = board.page(10, 5);
+		Tests.check(page.size() == 5, "page size");
+		for (int i = 0; i < 5; ++i) {
+			Tests.check(page.get(i).rank == 11 + i && page.get(i).count == 90 - i, "rank " + page.get(i).rank);
+		}
+		Tests.check(board.page(98, 5).size() == 2, "last page is cut at the end");
+		Tests.check(board.page(100, 5).isEmpty() && board.page(200, 5).isEmpty(), "past the end");
+		Tests.check(board.page(0, Integer.MAX_VALUE).size() == 100, "large limit");
+	}
+
+	public static void testRandomIncrementsMatchCounts() {
+		Random rnd = new Random(42);
+		Leaderboard board = new Leaderboard();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		// enough keys to grow the arrays past their first size
+		for (int i = 0; i < 50000; ++i) {
+			String key = "car" + (int) Math.abs(rnd.nextGaussian() * 600);
+			Integer count = counts.get(key);
+			counts.put(key, count == null ? 1 : count + 1);
+			Tests.check(board.increment(key) == counts.get(key), "increment of " + key);
+		}
+		Tests.check(board.size() == counts.size(), "size");
+		List<Leaderboard.Entry> all = board.page(0, counts.size());
+		for (int i = 0; i < all.size(); ++i) {
+			Leaderboard.Entry e = all.get(i);
+			Tests.check(e.count == counts.get(e.key), "count of " + e.key);
+			Tests.check(e.rank == i + 1, "rank " + e.rank);
+			Tests.check(i == 0 || all.get(i - 1).count >= e.count, "sorted at rank " + e.rank);
+		}
+	}
+}
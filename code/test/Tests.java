@@ -0,0 +1,62 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests of the classes named on the command line: every public
+ * static method without parameters whose name starts with "test", in name
+ * order. A test fails by throwing, e.g. through check.
+ *
+ */
+public class Tests {
+	/**
+	 * @throws AssertionError with what when ok is false
+	 */
+	public static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int failed = 0;
+		for (String name : args) {
+			int run = 0;
+			for (Method test : tests(Class.forName(name))) {
+				++run;
+				try {
+					test.invoke(null);
+				}catch (InvocationTargetException e) {
+					++failed;
+					System.out.println(name + "." + test.getName() + " FAILED: " + e.getCause());
+				}
+			}
+			System.out.println(name + ": " + run + " tests run");
+		}
+		if (failed > 0) {
+			System.out.println(failed + " tests failed");
+			System.exit(1);
+		}
+	}
+
+	private static List<Method> tests(Class<?> c) {
+		List<Method> tests = new ArrayList<Method>();
+		for (Method m : c.getMethods()) {
+			if (m.getName().startsWith("test") && m.getParameterTypes().length == 0
+					&& Modifier.isStatic(m.getModifiers()) && m.getDeclaringClass() == c) {
+				tests.add(m);
+			}
+		}
+		Method[] sorted = tests.toArray(new Method[tests.size()]);
+		Arrays.sort(sorted, new Comparator<Method>() {
+			public int compare(Method a, Method b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return Arrays.asList(sorted);
+	}
+}
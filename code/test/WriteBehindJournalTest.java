@@ -0,0 +1,92 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Journal lines of WriteBehindJournal: written with format and read back
+ * on replay with read, which stops at a line torn or damaged by a crash.
+ *
+ */
+public class WriteBehindJournalTest {
+	//what read reported on stderr during the last call of read
+	private static String _logged = "";
+
+	private static File segment(String... lines) throws IOException {
+		File file = File.createTempFile("requests-", ".wal");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (String line : lines) {
+				out.write(line.getBytes(StandardCharsets.UTF_8));
+			}
+		}finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Reads segment, capturing what read reports about damaged lines.
+	 */
+	private static List<WriteBehindJournal.Request> read(File segment) throws IOException {
+		PrintStream err = System.err;
+		ByteArrayOutputStream logged = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(logged, true, "UTF-8"));
+		try {
+			return WriteBehindJournal.read(segment);
+		}finally {
+			System.setErr(err);
+			_logged = logged.toString("UTF-8");
+			segment.delete();
+		}
+	}
+
+	private static String line(int rid, String complain) {
+		return WriteBehindJournal.format(rid, rid * 10, "VIN" + rid, rid + "/7/2017", rid * 100, complain);
+	}
+
+	public static void testRoundTrip() throws IOException {
+		String odd = "tab\there, line\nbreak, \\N and back\\slash\r";
+		List<WriteBehindJournal.Request> read = read(segment(line(1, "Brakes") + "\n",
+			WriteBehindJournal.format(2, 20, "VIN\t2", "2/7/2017", 200, null) + "\n", line(3, odd) + "\n"));
+		Tests.check(read.size() == 3, "three requests read, not " + read.size());
+		WriteBehindJournal.Request first = read.get(0);
+		Tests.check(first.rid == 1 && first.customerId == 10 && first.vin.equals("VIN1") && first.date.equals("1/7/2017")
+			&& first.odometer == 100 && first.complain.equals("Brakes"), "first request");
+		Tests.check(read.get(1).complain == null, "null complaint");
+		Tests.check(read.get(1).vin.equals("VIN\t2"), "escaped vin");
+		Tests.check(read.get(2).complain.equals(odd), "escaped complaint: " + read.get(2).complain);
+		Tests.check(read.get(2).line.equals(line(3, odd)), "line kept for rejected.log");
+		Tests.check(_logged.isEmpty(), "nothing reported: " + _logged);
+	}
+
+	public static void testTornLastLine() throws IOException {
+		String last = line(3, "Oil");
+		// the crash cut the last append at every possible byte
+		for (int cut = 1; cut < last.length(); ++cut) {
+			List<WriteBehindJournal.Request> read = read(segment(line(1, "Brakes") + "\n", line(2, null) + "\n",
+				last.substring(0, cut)));
+			Tests.check(read.size() == 2, "cut at " + cut + ": " + read.size() + " requests read");
+			Tests.check(read.get(1).rid == 2, "cut at " + cut + ": last whole request");
+			Tests.check(_logged.contains("damaged line after 2 requests"), "cut at " + cut + " not reported: " + _logged);
+		}
+		// a whole line whose line break was not written yet is complete
+		Tests.check(read(segment(line(1, "Brakes") + "\n", last)).size() == 2, "line without its line break");
+	}
+
+	public static void testDamagedLine() throws IOException {
+		String damaged = line(2, null).replace("VIN2", "VIN9");
+		List<WriteBehindJournal.Request> read = read(segment(line(1, "Brakes") + "\n", damaged + "\n",
+			line(3, "Oil") + "\n"));
+		Tests.check(read.size() == 1 && read.get(0).rid == 1, "reading stops at the line failing its checksum");
+		Tests.check(_logged.contains("damaged line after 1 requests"), "damage not reported: " + _logged);
+	}
+
+	public static void testEmptySegment() throws IOException {
+		Tests.check(read(segment()).isEmpty(), "empty segment");
+	}
+}